@@ -1,8 +1,10 @@
 import java.util.*;
 
-public class AST {
-    private Stack<ASTNode> stack = new Stack<>();
-    private Stack<Integer> posStack = new Stack<>();
+public class AST implements TreeBuilder {
+    /* Unsynchronized: a tree is built by one thread. */
+    private ArrayList<ASTNode> stack = new ArrayList<>();
+    private int[] marks = new int[16];
+    private int markCount = 0;
     public enum Type {
 	IntLiteral("IntLiteral"),
 	FloatLiteral("FloatLiteral"),
@@ -18,9 +20,11 @@ public class AST {
 	Subtraction("Subtraction"),
 	Multiplication("Multiplication"),
 	Division("Division"),
+	Call("Call"),
 	Assignment("Assignment"),
 	Read("Read"),
 	Write("Write"),
+	Return("Return"),
 	If("If"),
 	While("While"),
 	Condition("Condition"),
@@ -49,6 +53,13 @@ public class AST {
 	public final String value;
 	public final List<ASTNode> children;
 	public Scope scope;
+	public int offset = -1;
+
+	/* Set by Resolver: an Identifier's variable and its slot in the
+	   function, and the type of an expression's value. */
+	public Variable variable;
+	public int slot = -1;
+	public ValueType valueType;
 
 	public ASTNode(Type type, String value) {
 	    this.type = type;
@@ -56,66 +67,109 @@ public class AST {
 	    children = new ArrayList<ASTNode>();
 	}
 
+	public ASTNode(Type type, String value, int offset) {
+	    this(type, value);
+	    this.offset = offset;
+	}
+
 	public ASTNode(Type type) {
 	    this.type = type;
 	    this.value = null;
 	    children = new ArrayList<ASTNode>();
 	}
 
+	private ASTNode(Type type, String value, List<ASTNode> children) {
+	    this.type = type;
+	    this.value = value;
+	    this.children = children;
+	}
+
 	public String toString() {
 	    StringBuffer buf = new StringBuffer();
-	    buf.append("<");
-	    buf.append(type.string);
-	    if(value != null) {
-		buf.append(" ");
-		buf.append(value);
-	    }
-	    if(children.size() > 0) {
-		if(scope != null) {
-		    buf.append(" table=\"");
-		    buf.append(scope);
-		    buf.append("\"");
-		}
-		buf.append(">\n");
-
-		for(ASTNode child : children) {
-		    buf.append(child.toString());
-		}
-		buf.append("</");
-		buf.append(type.string);
-		buf.append(">\n");
-	    } else {
-		if(scope != null) {
-		    buf.append(" table=\"");
-		    buf.append(scope);
-		    buf.append("\"");
-		}
-		buf.append("/>\n");
-	    }
-
+	    NODES.appendXml(buf, this);
 	    return buf.toString();
+	}
+    }
+
+    public static final SyntaxTree<ASTNode> NODES = new SyntaxTree<ASTNode>() {
+	public Type type(ASTNode node) {
+	    return node.type;
+	}
+
+	public String value(ASTNode node) {
+	    return node.value;
+	}
+
+	public Scope scope(ASTNode node) {
+	    return node.scope;
+	}
+
+	public int size(ASTNode node) {
+	    return node.children.size();
+	}
+
+	public ASTNode child(ASTNode node, int i) {
+	    return node.children.get(i);
+	}
+
+	public List<ASTNode> children(ASTNode node) {
+	    return node.children;
+	}
+
+	public int offset(ASTNode node) {
+	    return node.offset;
+	}
 
-	    /*public void generateCode(List<IRNode> irCode) {
-		
-		for(ASTNode child : children) {
-		    generateCode(irCode);
-		}
-		}*/
+	public Variable variable(ASTNode node) {
+	    return node.variable;
 	}
+
+	public int slot(ASTNode node) {
+	    return node.slot;
+	}
+
+	public ValueType valueType(ASTNode node) {
+	    return node.valueType;
+	}
+
+	public void resolve(ASTNode node, Variable variable, int slot, ValueType valueType) {
+	    node.variable = variable;
+	    node.slot = slot;
+	    node.valueType = valueType;
+	}
+    };
+
+    public AST() {
+    }
+
+    public AST(ASTNode root) {
+	stack.add(root);
     }
 
     public ASTNode getRoot() {
-	return stack.peek();
+	return stack.get(stack.size() - 1);
     }
 
     public void print() {
+	System.out.print(toXml());
+    }
+
+    public String toXml() {
+	StringBuffer buf = new StringBuffer();
 	for(ASTNode n : stack) {
-	    System.out.println(n);
+	    NODES.appendXml(buf, n);
+	    buf.append("\n");
 	}
+	return buf.toString();
+    }
+
+    /* Everything built so far that is not yet a child of another node. */
+    public List<ASTNode> getNodes() {
+	return new ArrayList<ASTNode>(stack);
     }
 
     public void setTopScope(Scope scope) {
-	stack.peek().scope = scope;
+	stack.get(stack.size() - 1).scope = scope;
     }
 
     public void buildNode(Type type) {
@@ -126,26 +180,31 @@ public class AST {
 	stack.add(new ASTNode(type, value));
     }
 
-    public void buildNode(Type type, String value, int numChildren) {
-	stack.add(readChildren(new ASTNode(type, value), numChildren));
+    public void buildNode(Type type, String value, int offset) {
+	stack.add(new ASTNode(type, value, offset));
     }
 
     public void buildNode(Type type, int numChildren) {
-	 stack.add(readChildren(new ASTNode(type), numChildren));
+	stack.add(readChildren(type, numChildren));
     }
 
     public void startMark() {
-	posStack.push(stack.size());
+	if(markCount == marks.length)
+	    marks = Arrays.copyOf(marks, 2 * markCount);
+	marks[markCount++] = stack.size();
     }
 
     public int endMark() {
-	return stack.size() - posStack.pop();
+	return stack.size() - marks[--markCount];
     }
 
-    private ASTNode readChildren(ASTNode node, int num) {
-	for(int i = 0; i < num; i++) {
-	    node.children.add(0, stack.pop());
-	}
-	return node;
+    /* A node taking the top num nodes, in order, as its children. */
+    private ASTNode readChildren(Type type, int num) {
+	int first = stack.size() - num;
+	List<ASTNode> children = new ArrayList<ASTNode>(num);
+	for(int i = first; i < stack.size(); i++)
+	    children.add(stack.get(i));
+	stack.subList(first, stack.size()).clear();
+	return new ASTNode(type, null, children);
     }
 }
@@ -0,0 +1,484 @@
+import java.util.*;
+
+public class AstInterpreter {
+    static final class Frame {
+	final int[] ints;
+	final double[] floats;
+	final MicroIO io;
+	long executed;
+
+	Frame(int slots, MicroIO io) {
+	    ints = new int[slots];
+	    floats = new double[slots];
+	    this.io = io;
+	}
+    }
+
+    static abstract class Node {
+	Node parent;
+
+	<T extends Node> T adopt(T child) {
+	    child.parent = this;
+	    return child;
+	}
+
+	<T extends Node> T replace(T replacement) {
+	    replacement.parent = parent;
+	    parent.replaceChild(this, replacement);
+	    return replacement;
+	}
+
+	void replaceChild(Node old, Node replacement) {
+	    throw new IllegalStateException("Node has no replaceable children");
+	}
+    }
+
+    static abstract class ExprNode extends Node {
+	abstract int executeInt(Frame frame);
+	abstract double executeFloat(Frame frame);
+	abstract boolean isFloat();
+    }
+
+    static abstract class StmtNode extends Node {
+	abstract void execute(Frame frame);
+    }
+
+    static final class IntLiteralNode extends ExprNode {
+	private final int value;
+	IntLiteralNode(int value) { this.value = value; }
+	int executeInt(Frame frame) { frame.executed++; return value; }
+	double executeFloat(Frame frame) { frame.executed++; return value; }
+	boolean isFloat() { return false; }
+    }
+
+    static final class FloatLiteralNode extends ExprNode {
+	private final double value;
+	FloatLiteralNode(double value) { this.value = value; }
+	int executeInt(Frame frame) { frame.executed++; return (int) value; }
+	double executeFloat(Frame frame) { frame.executed++; return value; }
+	boolean isFloat() { return true; }
+    }
+
+    static final class IntVarNode extends ExprNode {
+	private final int slot;
+	IntVarNode(int slot) { this.slot = slot; }
+	int executeInt(Frame frame) { frame.executed++; return frame.ints[slot]; }
+	double executeFloat(Frame frame) { frame.executed++; return frame.ints[slot]; }
+	boolean isFloat() { return false; }
+    }
+
+    static final class FloatVarNode extends ExprNode {
+	private final int slot;
+	FloatVarNode(int slot) { this.slot = slot; }
+	int executeInt(Frame frame) { frame.executed++; return (int) frame.floats[slot]; }
+	double executeFloat(Frame frame) { frame.executed++; return frame.floats[slot]; }
+	boolean isFloat() { return true; }
+    }
+
+    static abstract class BinaryNode extends ExprNode {
+	protected ExprNode left, right;
+	protected final AST.Type op;
+
+	BinaryNode(AST.Type op, ExprNode left, ExprNode right) {
+	    this.op = op;
+	    this.left = adopt(left);
+	    this.right = adopt(right);
+	}
+
+	void replaceChild(Node old, Node replacement) {
+	    if(left == old)
+		left = (ExprNode) replacement;
+	    else if(right == old)
+		right = (ExprNode) replacement;
+	}
+    }
+
+    /* Rewrites itself into an INT-only or FLOAT-only node on first execution. */
+    static final class UninitializedArithNode extends BinaryNode {
+	UninitializedArithNode(AST.Type op, ExprNode left, ExprNode right) {
+	    super(op, left, right);
+	}
+
+	private ExprNode specialize() {
+	    if(left instanceof UninitializedArithNode)
+		((UninitializedArithNode) left).specialize();
+	    if(right instanceof UninitializedArithNode)
+		((UninitializedArithNode) right).specialize();
+	    if(left.isFloat() || right.isFloat())
+		return replace(new FloatArithNode(op, left, right));
+	    return replace(new IntArithNode(op, left, right));
+	}
+
+	int executeInt(Frame frame) { return specialize().executeInt(frame); }
+	double executeFloat(Frame frame) { return specialize().executeFloat(frame); }
+	boolean isFloat() { return specialize().isFloat(); }
+    }
+
+    static final class IntArithNode extends BinaryNode {
+	IntArithNode(AST.Type op, ExprNode left, ExprNode right) {
+	    super(op, left, right);
+	}
+
+	int executeInt(Frame frame) {
+	    frame.executed++;
+	    int a = left.executeInt(frame);
+	    int b = right.executeInt(frame);
+	    switch(op) {
+	    case Addition: return a + b;
+	    case Subtraction: return a - b;
+	    case Multiplication: return a * b;
+	    default: return a / b;
+	    }
+	}
+
+	double executeFloat(Frame frame) { return executeInt(frame); }
+	boolean isFloat() { return false; }
+    }
+
+    static final class FloatArithNode extends BinaryNode {
+	FloatArithNode(AST.Type op, ExprNode left, ExprNode right) {
+	    super(op, left, right);
+	}
+
+	double executeFloat(Frame frame) {
+	    frame.executed++;
+	    double a = left.executeFloat(frame);
+	    double b = right.executeFloat(frame);
+	    switch(op) {
+	    case Addition: return a + b;
+	    case Subtraction: return a - b;
+	    case Multiplication: return a * b;
+	    default: return a / b;
+	    }
+	}
+
+	int executeInt(Frame frame) { return (int) executeFloat(frame); }
+	boolean isFloat() { return true; }
+    }
+
+    static abstract class ConditionNode extends BinaryNode {
+	ConditionNode(AST.Type op, ExprNode left, ExprNode right) {
+	    super(op, left, right);
+	}
+
+	abstract boolean test(Frame frame);
+
+	int executeInt(Frame frame) { return test(frame) ? 1 : 0; }
+	double executeFloat(Frame frame) { return executeInt(frame); }
+	boolean isFloat() { return false; }
+
+	static boolean holds(AST.Type op, int cmp) {
+	    switch(op) {
+	    case LessThan: return cmp < 0;
+	    case LessThanEqual: return cmp <= 0;
+	    case GreaterThan: return cmp > 0;
+	    case GreaterThanEqual: return cmp >= 0;
+	    case Equal: return cmp == 0;
+	    default: return cmp != 0;
+	    }
+	}
+    }
+
+    static final class UninitializedConditionNode extends ConditionNode {
+	UninitializedConditionNode(AST.Type op, ExprNode left, ExprNode right) {
+	    super(op, left, right);
+	}
+
+	boolean test(Frame frame) {
+	    if(left instanceof UninitializedArithNode)
+		((UninitializedArithNode) left).specialize();
+	    if(right instanceof UninitializedArithNode)
+		((UninitializedArithNode) right).specialize();
+	    ConditionNode specialized = left.isFloat() || right.isFloat() ?
+		new FloatConditionNode(op, left, right) : new IntConditionNode(op, left, right);
+	    return replace(specialized).test(frame);
+	}
+    }
+
+    static final class IntConditionNode extends ConditionNode {
+	IntConditionNode(AST.Type op, ExprNode left, ExprNode right) {
+	    super(op, left, right);
+	}
+
+	boolean test(Frame frame) {
+	    frame.executed++;
+	    return holds(op, Integer.compare(left.executeInt(frame), right.executeInt(frame)));
+	}
+    }
+
+    static final class FloatConditionNode extends ConditionNode {
+	FloatConditionNode(AST.Type op, ExprNode left, ExprNode right) {
+	    super(op, left, right);
+	}
+
+	boolean test(Frame frame) {
+	    frame.executed++;
+	    return holds(op, Double.compare(left.executeFloat(frame), right.executeFloat(frame)));
+	}
+    }
+
+    static final class AssignNode extends StmtNode {
+	private final int slot;
+	private final boolean toFloat;
+	private ExprNode value;
+
+	AssignNode(int slot, boolean toFloat, ExprNode value) {
+	    this.slot = slot;
+	    this.toFloat = toFloat;
+	    this.value = adopt(value);
+	}
+
+	void replaceChild(Node old, Node replacement) {
+	    value = (ExprNode) replacement;
+	}
+
+	void execute(Frame frame) {
+	    frame.executed++;
+	    if(toFloat)
+		frame.floats[slot] = value.executeFloat(frame);
+	    else
+		frame.ints[slot] = value.executeInt(frame);
+	}
+    }
+
+    static final class ReadNode extends StmtNode {
+	private final int[] slots;
+	private final boolean[] floats;
+
+	ReadNode(int[] slots, boolean[] floats) {
+	    this.slots = slots;
+	    this.floats = floats;
+	}
+
+	void execute(Frame frame) {
+	    frame.executed++;
+	    for(int i = 0; i < slots.length; i++) {
+		if(floats[i])
+		    frame.floats[slots[i]] = frame.io.readFloat();
+		else
+		    frame.ints[slots[i]] = frame.io.readInt();
+	    }
+	}
+    }
+
+    static final class WriteNode extends StmtNode {
+	private final ExprNode[] values;
+	private final String[] strings;
+
+	WriteNode(ExprNode[] values, String[] strings) {
+	    this.values = values;
+	    this.strings = strings;
+	    for(ExprNode value : values) {
+		if(value != null)
+		    adopt(value);
+	    }
+	}
+
+	void execute(Frame frame) {
+	    frame.executed++;
+	    for(int i = 0; i < values.length; i++) {
+		if(strings[i] != null)
+		    frame.io.writeString(strings[i]);
+		else if(values[i].isFloat())
+		    frame.io.writeFloat(values[i].executeFloat(frame));
+		else
+		    frame.io.writeInt(values[i].executeInt(frame));
+	    }
+	}
+    }
+
+    static final class BlockNode extends StmtNode {
+	private final StmtNode[] stmts;
+
+	BlockNode(StmtNode[] stmts) {
+	    this.stmts = stmts;
+	    for(StmtNode stmt : stmts)
+		adopt(stmt);
+	}
+
+	void execute(Frame frame) {
+	    for(StmtNode stmt : stmts)
+		stmt.execute(frame);
+	}
+    }
+
+    static final class IfNode extends StmtNode {
+	private ConditionNode condition;
+	private final BlockNode thenBlock, elseBlock;
+
+	IfNode(ConditionNode condition, BlockNode thenBlock, BlockNode elseBlock) {
+	    this.condition = adopt(condition);
+	    this.thenBlock = adopt(thenBlock);
+	    this.elseBlock = elseBlock == null ? null : adopt(elseBlock);
+	}
+
+	void replaceChild(Node old, Node replacement) {
+	    condition = (ConditionNode) replacement;
+	}
+
+	void execute(Frame frame) {
+	    frame.executed++;
+	    if(condition.test(frame))
+		thenBlock.execute(frame);
+	    else if(elseBlock != null)
+		elseBlock.execute(frame);
+	}
+    }
+
+    static final class WhileNode extends StmtNode {
+	private ConditionNode condition;
+	private final BlockNode body;
+
+	WhileNode(ConditionNode condition, BlockNode body) {
+	    this.condition = adopt(condition);
+	    this.body = adopt(body);
+	}
+
+	void replaceChild(Node old, Node replacement) {
+	    condition = (ConditionNode) replacement;
+	}
+
+	void execute(Frame frame) {
+	    frame.executed++;
+	    while(condition.test(frame))
+		body.execute(frame);
+	}
+    }
+
+    private final int slots;
+    private final BlockNode body;
+
+    /* Builds main, which Resolver has resolved or resolves now. */
+    public AstInterpreter(AST.ASTNode root) {
+	assert root.type == AST.Type.Program;
+
+	AST.ASTNode mainFunction = null;
+	for(AST.ASTNode child : root.children.get(2).children) {
+	    if(child.children.get(1).value.equals("main"))
+		mainFunction = child;
+	}
+	if(mainFunction == null)
+	    throw new CompileException("Could not find main method");
+
+	slots = Resolver.resolveFunction(AST.NODES, root, mainFunction);
+	body = buildBlock(mainFunction.children.get(4));
+    }
+
+    public long run(MicroIO io) {
+	Frame frame = new Frame(Math.max(slots, 1), io);
+	body.execute(frame);
+	return frame.executed;
+    }
+
+    private BlockNode buildBlock(AST.ASTNode stmtList) {
+	assert stmtList.type == AST.Type.StatementList;
+	StmtNode[] stmts = new StmtNode[stmtList.children.size()];
+	for(int i = 0; i < stmts.length; i++)
+	    stmts[i] = buildStmt(stmtList.children.get(i));
+	return new BlockNode(stmts);
+    }
+
+    private StmtNode buildStmt(AST.ASTNode stmt) {
+	switch(stmt.type) {
+	case Assignment: {
+	    AST.ASTNode var = stmt.children.get(0);
+	    return new AssignNode(var.slot, var.valueType == ValueType.FLOAT, buildExpr(stmt.children.get(1)));
+	}
+	case Read: {
+	    int n = stmt.children.size();
+	    int[] readSlots = new int[n];
+	    boolean[] floats = new boolean[n];
+	    for(int i = 0; i < n; i++) {
+		AST.ASTNode var = stmt.children.get(i);
+		readSlots[i] = var.slot;
+		floats[i] = var.valueType == ValueType.FLOAT;
+	    }
+	    return new ReadNode(readSlots, floats);
+	}
+	case Write: {
+	    int n = stmt.children.size();
+	    ExprNode[] values = new ExprNode[n];
+	    String[] strings = new String[n];
+	    for(int i = 0; i < n; i++) {
+		AST.ASTNode var = stmt.children.get(i);
+		if(var.valueType == ValueType.STRING)
+		    strings[i] = TinySimulator.unescape(var.variable.value);
+		else
+		    values[i] = buildExpr(var);
+	    }
+	    return new WriteNode(values, strings);
+	}
+	case If: {
+	    ConditionNode cond = buildCondition(stmt.children.get(0));
+	    BlockNode elseBlock = stmt.children.size() == 5 ? buildBlock(stmt.children.get(4)) : null;
+	    return new IfNode(cond, buildBlock(stmt.children.get(2)), elseBlock);
+	}
+	case While:
+	    return new WhileNode(buildCondition(stmt.children.get(0)), buildBlock(stmt.children.get(2)));
+	default:
+	    throw new CompileException("Interpreter cannot execute "+stmt.type.string);
+	}
+    }
+
+    private ConditionNode buildCondition(AST.ASTNode cond) {
+	AST.ASTNode comparison = cond.children.get(0);
+	return new UninitializedConditionNode(comparison.type,
+					      buildExpr(comparison.children.get(0)),
+					      buildExpr(comparison.children.get(1)));
+    }
+
+    private ExprNode buildExpr(AST.ASTNode expr) {
+	switch(expr.type) {
+	case IntLiteral:
+	    return new IntLiteralNode(Integer.parseInt(expr.value));
+	case FloatLiteral:
+	    return new FloatLiteralNode(Double.parseDouble(expr.value));
+	case Identifier:
+	    if(expr.valueType == ValueType.FLOAT)
+		return new FloatVarNode(expr.slot);
+	    return new IntVarNode(expr.slot);
+	case Addition: case Subtraction: case Multiplication: case Division:
+	    return new UninitializedArithNode(expr.type, buildExpr(expr.children.get(0)),
+					      buildExpr(expr.children.get(1)));
+	default:
+	    throw new CompileException("Interpreter cannot evaluate "+expr.type.string);
+	}
+    }
+
+    public static void main(String[] args) throws java.io.IOException {
+	String fileName = null;
+	boolean time = false;
+	for(String arg : args) {
+	    if(arg.equals("-time"))
+		time = true;
+	    else
+		fileName = arg;
+	}
+
+	String input = new String(java.nio.file.Files.readAllBytes(new java.io.File(fileName).toPath()));
+	CompileResult result = new Compiler().compile(fileName, input);
+	if(result.ast == null) {
+	    System.out.print(result.diagnosticText());
+	    return;
+	}
+	try {
+	    AstInterpreter interpreter = new AstInterpreter(result.ast.getRoot());
+
+	    long start = System.nanoTime();
+	    long executed = interpreter.run(new MicroIO.Console(System.in, System.out));
+	    long nanos = System.nanoTime() - start;
+	    System.out.flush();
+	    if(time)
+		System.err.printf("%nNodes executed: %d%nRun time: %.3f ms (%.1f M nodes/s)%n",
+				  executed, nanos / 1e6, executed * 1e3 / Math.max(nanos, 1));
+	} catch(MicroIO.TrapException t) {
+	    System.out.println();
+	    System.out.println("Runtime error: "+t.getMessage());
+	} catch(ArithmeticException e) {
+	    System.out.println();
+	    System.out.println("Runtime error: Integer division by zero");
+	} catch(CompileException c) {
+	    System.out.print(ErrorPrinter.format(input, c));
+	}
+    }
+}
@@ -0,0 +1,125 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+public class BatchCompiler {
+    static class FileResult {
+	public final Path file;
+	public final long nanos;
+	public final boolean ok;
+
+	FileResult(Path file, long nanos, boolean ok) {
+	    this.file = file;
+	    this.nanos = nanos;
+	    this.ok = ok;
+	}
+    }
+
+    private final Path outDir, treeDir;
+    private final Compiler compiler;
+
+    public BatchCompiler(Path outDir, Compiler compiler) {
+	this.outDir = outDir;
+	this.treeDir = outDir.resolve("tree");
+	this.compiler = compiler;
+    }
+
+    public static List<Path> expand(String pattern) throws IOException {
+	Path path = Paths.get(pattern);
+	if(Files.isDirectory(path)) {
+	    try(Stream<Path> files = Files.list(path)) {
+		return sorted(files.filter(Files::isRegularFile));
+	    }
+	}
+	if(Files.isRegularFile(path))
+	    return Arrays.asList(path);
+
+	Path dir = path.getParent() == null ? Paths.get(".") : path.getParent();
+	PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:"+path.getFileName());
+	try(Stream<Path> files = Files.list(dir)) {
+	    return sorted(files.filter((p) -> Files.isRegularFile(p) && matcher.matches(p.getFileName())));
+	}
+    }
+
+    private static List<Path> sorted(Stream<Path> files) {
+	List<Path> list = new ArrayList<Path>();
+	files.forEach(list::add);
+	Collections.sort(list);
+	return list;
+    }
+
+    public FileResult compile(Path file) throws IOException {
+	long start = System.nanoTime();
+	String fileName = file.toString();
+	String name = file.getFileName().toString();
+	int dot = name.lastIndexOf('.');
+	if(dot > 0)
+	    name = name.substring(0, dot);
+
+	String input = new String(Files.readAllBytes(file));
+	CompileResult result = compiler.compile(fileName, input);
+
+	Files.write(outDir.resolve(name+".out"), result.codeOutput().getBytes(StandardCharsets.UTF_8));
+	Files.write(treeDir.resolve(name+".xml"), result.treeOutput().getBytes(StandardCharsets.UTF_8));
+	return new FileResult(file, System.nanoTime() - start, result.succeeded());
+    }
+
+    public List<FileResult> compileAll(List<Path> files, int threads) throws IOException, InterruptedException {
+	Files.createDirectories(treeDir);
+	ForkJoinPool pool = new ForkJoinPool(threads);
+	try {
+	    List<ForkJoinTask<FileResult>> tasks = new ArrayList<ForkJoinTask<FileResult>>();
+	    for(Path file : files)
+		tasks.add(pool.submit(() -> compile(file)));
+
+	    List<FileResult> results = new ArrayList<FileResult>();
+	    for(ForkJoinTask<FileResult> task : tasks) {
+		try {
+		    results.add(task.get());
+		} catch(ExecutionException e) {
+		    throw new IOException(e.getCause());
+		}
+	    }
+	    return results;
+	} finally {
+	    pool.shutdown();
+	}
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+	List<String> options = new ArrayList<String>();
+	int threads = Runtime.getRuntime().availableProcessors();
+	Path outDir = Paths.get("output");
+	boolean quiet = false;
+	List<Path> files = new ArrayList<Path>();
+	for(String arg : args) {
+	    if(arg.startsWith("-threads="))
+		threads = Integer.parseInt(arg.substring(9));
+	    else if(arg.startsWith("-out="))
+		outDir = Paths.get(arg.substring(5));
+	    else if(arg.equals("-quiet"))
+		quiet = true;
+	    else if(arg.startsWith("-"))
+		options.add(arg);
+	    else
+		files.addAll(expand(arg));
+	}
+
+	long start = System.nanoTime();
+	List<FileResult> results = new BatchCompiler(outDir, Compiler.fromOptions(options)).compileAll(files, threads);
+	long nanos = System.nanoTime() - start;
+
+	int failed = 0;
+	for(FileResult r : results) {
+	    if(!r.ok)
+		failed++;
+	    if(!quiet)
+		System.out.printf("%-40s %10.3f ms%s%n", r.file, r.nanos / 1e6, r.ok ? "" : "  (error)");
+	}
+	System.out.printf("%d files (%d with errors) in %.3f ms on %d threads: %.1f files/s%n",
+			  results.size(), failed, nanos / 1e6, threads, results.size() * 1e9 / Math.max(nanos, 1));
+    }
+}
@@ -0,0 +1,494 @@
+import java.util.*;
+
+/*
+ * Passes over the calls between functions, and the register saves that
+ * calls need. A function other than main runs from its entry label,
+ * which CodeGenerator follows with LINK, to the next function's entry;
+ * main's code is everything before the first of them. A call is a PUSH
+ * of the return slot, a PUSH per argument, the JSR, a POP per argument
+ * and the POP of the value.
+ */
+public class CallPasses {
+    private static final String BODY_SUFFIX = "_body";
+
+    /* A function's code: code[start, end), start being its entry label
+       except in main. */
+    static class Function {
+	final String name;
+	final int start, end;
+
+	Function(String name, int start, int end) {
+	    this.name = name;
+	    this.start = start;
+	    this.end = end;
+	}
+    }
+
+    /* The functions in code, main first. */
+    static List<Function> functions(List<IRNode> code) {
+	List<Integer> starts = new ArrayList<Integer>();
+	List<String> names = new ArrayList<String>();
+	starts.add(0);
+	names.add(Resolver.MAIN_FUNCTION);
+	for(int i = 0; i + 1 < code.size(); i++) {
+	    String function = entered(code.get(i));
+	    if(function != null && !code.get(i + 1).isDeclaration() &&
+	       code.get(i + 1).getType() == IRNode.Type.LINK) {
+		starts.add(i);
+		names.add(function);
+	    }
+	}
+	starts.add(code.size());
+
+	List<Function> functions = new ArrayList<Function>(names.size());
+	for(int f = 0; f < names.size(); f++)
+	    functions.add(new Function(names.get(f), starts.get(f), starts.get(f + 1)));
+	return functions;
+    }
+
+    /* The function whose entry label node is, or null. */
+    private static String entered(IRNode node) {
+	if(node.isDeclaration() || node.getType() != IRNode.Type.LABEL ||
+	   !node.getRes().endsWith(CodeGenerator.ENTRY_SUFFIX))
+	    return null;
+	return node.getRes().substring(0, node.getRes().length() - CodeGenerator.ENTRY_SUFFIX.length());
+    }
+
+    static class Call {
+	/* The return slot's PUSH, the JSR and the value's POP. */
+	final int push, jsr, pop;
+	final String[] args;
+	final String value;
+
+	Call(int push, int jsr, String[] args, String value) {
+	    this.push = push;
+	    this.jsr = jsr;
+	    this.pop = jsr + args.length + 1;
+	    this.args = args;
+	    this.value = value;
+	}
+    }
+
+    /* The call whose JSR is code[jsr], or null if it is not laid out as
+       CodeGenerator lays calls out. */
+    static Call callAt(List<IRNode> code, int jsr) {
+	int push = jsr;
+	while(push > 0 && is(code.get(push - 1), IRNode.Type.PUSH))
+	    push--;
+	if(push == jsr || code.get(push).getRes() != null)
+	    return null;
+	String[] args = new String[jsr - push - 1];
+	for(int i = 0; i < args.length; i++)
+	    args[i] = code.get(push + 1 + i).getRes();
+	int pop = jsr + args.length + 1;
+	if(pop >= code.size())
+	    return null;
+	for(int i = jsr + 1; i <= pop; i++) {
+	    if(!is(code.get(i), IRNode.Type.POP) || (i < pop) != (code.get(i).getRes() == null))
+		return null;
+	}
+	return new Call(push, jsr, args, code.get(pop).getRes());
+    }
+
+    private static boolean is(IRNode node, IRNode.Type type) {
+	return !node.isDeclaration() && node.getType() == type;
+    }
+
+    /* A frame slot: a parameter, return slot or local. */
+    static boolean isSlot(String operand) {
+	return operand != null && operand.startsWith("$") && !IRNode.isRegister(operand);
+    }
+
+    /*
+     * The frame slots f's code uses, each mapped to whether it holds a
+     * FLOAT, or to null if only PUSH and POP use it.
+     */
+    private static Map<String, Boolean> slotTypes(List<IRNode> code, Function f) {
+	Map<String, Boolean> types = new HashMap<String, Boolean>();
+	for(int i = f.start; i < f.end; i++) {
+	    IRNode node = code.get(i);
+	    if(node.isDeclaration() || node.getType() == IRNode.Type.LINK)
+		continue;
+	    IRNode.Type type = node.getType();
+	    boolean typed = type != IRNode.Type.PUSH && type != IRNode.Type.POP;
+	    for(String operand : new String[] {node.getOp1(), node.getOp2(), node.getRes()}) {
+		if(isSlot(operand) && (types.get(operand) == null))
+		    types.put(operand, typed ? type.isFloat() : null);
+	    }
+	}
+	return types;
+    }
+
+    static IRNode store(Boolean isFloat, String from, String to) {
+	return new IRNode(isFloat == Boolean.TRUE ? IRNode.Type.STOREF : IRNode.Type.STOREI, from, to);
+    }
+
+    /*
+     * Turns a function's calls to itself whose value it returns straight
+     * away into jumps back to the start of its body, with the arguments
+     * stored into the parameters' slots; the frame is kept rather than
+     * popped and linked again. Arguments read from memory are loaded
+     * first, so that no parameter is overwritten before it is read.
+     */
+    static class TailCalls implements PassManager.Pass {
+	public String name() {
+	    return "tail-calls";
+	}
+
+	public List<IRNode> run(List<IRNode> code) {
+	    List<Function> functions = functions(code);
+	    if(functions.size() == 1)
+		return code;
+	    int next = CodeGenerator.maxRegister(code) + 1;
+	    List<IRNode> out = new ArrayList<IRNode>(code.size());
+	    out.addAll(code.subList(0, functions.get(0).end));
+	    for(Function f : functions.subList(1, functions.size())) {
+		String entry = CodeGenerator.entryLabel(f.name);
+		Map<Integer, Call> tail = new HashMap<Integer, Call>();
+		for(int i = f.start; i < f.end; i++) {
+		    if(is(code.get(i), IRNode.Type.JSR) && code.get(i).getRes().equals(entry)) {
+			Call call = callAt(code, i);
+			if(call != null && returnsAt(code, call, f) >= 0)
+			    tail.put(call.push, call);
+		    }
+		}
+		if(tail.isEmpty()) {
+		    out.addAll(code.subList(f.start, f.end));
+		    continue;
+		}
+
+		String body = f.name+BODY_SUFFIX;
+		Map<String, Boolean> types = slotTypes(code, f);
+		out.add(code.get(f.start));
+		out.add(code.get(f.start + 1));
+		out.add(new IRNode(IRNode.Type.LABEL, body));
+		int i = f.start + 2;
+		while(i < f.end) {
+		    Call call = tail.get(i);
+		    if(call == null) {
+			out.add(code.get(i++));
+			continue;
+		    }
+		    int n = call.args.length;
+		    String[] values = new String[n];
+		    for(int a = 0; a < n; a++) {
+			String slot = "$"+(n + 1 - a);
+			String arg = call.args[a];
+			if(!types.containsKey(slot) || arg.equals(slot))
+			    continue;
+			if(IRNode.isMemory(arg)) {
+			    values[a] = "$T"+(next++);
+			    out.add(store(types.get(slot), arg, values[a]));
+			} else {
+			    values[a] = arg;
+			}
+		    }
+		    for(int a = 0; a < n; a++) {
+			if(values[a] != null)
+			    out.add(store(types.get("$"+(n + 1 - a)), values[a], "$"+(n + 1 - a)));
+		    }
+		    out.add(new IRNode(IRNode.Type.JUMP, body));
+		    i = returnsAt(code, call, f);
+		}
+	    }
+	    return out;
+	}
+
+	/* Where the code after call's value has been returned from f starts,
+	   or -1 if f does more than return the value. */
+	private static int returnsAt(List<IRNode> code, Call call, Function f) {
+	    int i = call.pop + 1;
+	    String returnSlot = "$"+(call.args.length + 2);
+	    if(i < f.end && is(code.get(i), IRNode.Type.STOREI) || i < f.end && is(code.get(i), IRNode.Type.STOREF)) {
+		IRNode store = code.get(i);
+		if(!store.getOp1().equals(call.value) || !store.getRes().equals(returnSlot))
+		    return -1;
+		i++;
+	    }
+	    if(i + 1 < f.end && is(code.get(i), IRNode.Type.UNLINK) && is(code.get(i + 1), IRNode.Type.RET))
+		return i + 2;
+	    return -1;
+	}
+    }
+
+    /*
+     * Replaces calls to small functions that call nothing with the
+     * functions' code, their parameters, locals and registers becoming
+     * registers of the caller and the return slot the call's value. A
+     * function left with no calls is dropped, but for its declarations.
+     * A function whose calls have all been inlined may be inlined in
+     * turn, so this goes on until no call changes.
+     */
+    static class Inliner implements PassManager.Pass {
+	/* The most instructions a function may have, besides its entry and
+	   LINK, to be inlined. */
+	static final int MAX_SIZE = 24;
+
+	public String name() {
+	    return "inline";
+	}
+
+	public List<IRNode> run(List<IRNode> code) {
+	    int[] sites = {0};
+	    while(true) {
+		List<IRNode> out = inlineLeaves(code, sites);
+		if(out == code)
+		    return code;
+		code = out;
+	    }
+	}
+
+	/* One round; sites counts the calls inlined so far, which number
+	   the labels of the code put in their place. */
+	private static List<IRNode> inlineLeaves(List<IRNode> code, int[] sites) {
+	    List<Function> functions = functions(code);
+	    if(functions.size() == 1)
+		return code;
+	    Map<String, Function> small = new HashMap<String, Function>();
+	    for(Function f : functions.subList(1, functions.size())) {
+		if(inlinable(code, f))
+		    small.put(CodeGenerator.entryLabel(f.name), f);
+	    }
+	    if(small.isEmpty())
+		return code;
+
+	    List<List<IRNode>> bodies = new ArrayList<List<IRNode>>();
+	    Set<String> called = new HashSet<String>();
+	    int next = CodeGenerator.maxRegister(code) + 1;
+	    for(Function f : functions) {
+		Map<Integer, Call> calls = new HashMap<Integer, Call>();
+		for(int i = f.start; i < f.end; i++) {
+		    if(is(code.get(i), IRNode.Type.JSR) && small.containsKey(code.get(i).getRes())) {
+			Call call = callAt(code, i);
+			if(call != null)
+			    calls.put(call.push, call);
+		    }
+		}
+		List<IRNode> body = new ArrayList<IRNode>(f.end - f.start);
+		int i = f.start;
+		while(i < f.end) {
+		    Call call = calls.get(i);
+		    if(call != null) {
+			next = inline(code, small.get(code.get(call.jsr).getRes()), call, sites[0]++, next, body);
+			i = call.pop + 1;
+		    } else {
+			if(is(code.get(i), IRNode.Type.JSR))
+			    called.add(code.get(i).getRes());
+			body.add(code.get(i++));
+		    }
+		}
+		bodies.add(body);
+	    }
+
+	    List<IRNode> out = new ArrayList<IRNode>(code.size());
+	    for(int f = 0; f < functions.size(); f++) {
+		if(f == 0 || called.contains(CodeGenerator.entryLabel(functions.get(f).name))) {
+		    out.addAll(bodies.get(f));
+		} else {
+		    for(IRNode node : bodies.get(f)) {
+			if(node.isDeclaration())
+			    out.add(node);
+		    }
+		}
+	    }
+	    return out;
+	}
+
+	private static boolean inlinable(List<IRNode> code, Function f) {
+	    int size = 0;
+	    for(int i = f.start + 2; i < f.end; i++) {
+		IRNode node = code.get(i);
+		if(node.isDeclaration())
+		    continue;
+		if(node.getType() == IRNode.Type.JSR || ++size > MAX_SIZE)
+		    return false;
+	    }
+	    return true;
+	}
+
+	/*
+	 * Adds f's code in place of call to out and returns the next free
+	 * register. Labels get the call site's number; a local read before
+	 * anything is stored into it starts at zero, as does the value if
+	 * f never stores it.
+	 */
+	private static int inline(List<IRNode> code, Function f, Call call, int site,
+				  int next, List<IRNode> out) {
+	    int n = call.args.length;
+	    String returnSlot = "$"+(n + 2);
+	    String suffix = "_i"+site;
+	    String exit = f.name+"_return"+site;
+	    Map<String, Boolean> types = slotTypes(code, f);
+	    Map<String, String> names = new HashMap<String, String>();
+
+	    for(int a = 0; a < n; a++) {
+		String slot = "$"+(n + 1 - a);
+		if(!types.containsKey(slot))
+		    continue;
+		String reg = "$T"+(next++);
+		names.put(slot, reg);
+		out.add(store(types.get(slot), call.args[a], reg));
+	    }
+	    names.put(returnSlot, call.value);
+	    if(!types.containsKey(returnSlot))
+		out.add(new IRNode(IRNode.Type.STOREI, "0", call.value));
+
+	    Set<String> stored = new HashSet<String>();
+	    for(int i = f.start + 2; i < f.end; i++) {
+		IRNode node = code.get(i);
+		if(node.isDeclaration())
+		    continue;
+		for(String use : node.getUses()) {
+		    if(isSlot(use) && !names.containsKey(use) && stored.add(use)) {
+			String reg = "$T"+(next++);
+			names.put(use, reg);
+			out.add(store(types.get(use), types.get(use) == Boolean.TRUE ? "0.0" : "0", reg));
+		    }
+		}
+		if(isSlot(node.getDef()))
+		    stored.add(node.getDef());
+	    }
+
+	    boolean returned = false;
+	    for(int i = f.start + 2; i < f.end; i++) {
+		IRNode node = code.get(i);
+		if(node.isDeclaration() || node.getType() == IRNode.Type.UNLINK)
+		    continue;
+		IRNode.Type type = node.getType();
+		if(type == IRNode.Type.RET) {
+		    if(i + 1 < f.end) {
+			out.add(new IRNode(IRNode.Type.JUMP, exit));
+			returned = true;
+		    }
+		    continue;
+		}
+		String[] ops = {node.getOp1(), node.getOp2(), node.getRes()};
+		for(int o = 0; o < ops.length; o++) {
+		    if(o == 2 && (type == IRNode.Type.LABEL || node.getTarget() != null)) {
+			ops[o] = ops[o]+suffix;
+		    } else if(IRNode.isRegister(ops[o]) || isSlot(ops[o])) {
+			String name = names.get(ops[o]);
+			if(name == null) {
+			    name = "$T"+(next++);
+			    names.put(ops[o], name);
+			}
+			ops[o] = name;
+		    }
+		}
+		out.add(new IRNode(type, ops[0], ops[1], ops[2]));
+	    }
+	    if(returned)
+		out.add(new IRNode(IRNode.Type.LABEL, exit));
+	    return next;
+	}
+    }
+
+    /*
+     * Registers belong to the machine, not to a frame, so a call has to
+     * save those of its caller's that are live across it and that the
+     * callee may write. No two functions share a register, as
+     * CodeGenerator numbers them and the passes here take new ones, so a
+     * call can only overwrite its caller's registers if the callee can
+     * call back into the caller, and only such calls save anything.
+     * Calls to leaf functions, and any call that cannot come back round
+     * to its caller, save nothing. The registers are pushed before the
+     * call's first PUSH and popped after its last POP.
+     */
+    public static List<IRNode> saveRegisters(List<IRNode> code) {
+	List<Function> functions = functions(code);
+	if(functions.size() == 1)
+	    return code;
+
+	Map<String, Integer> entries = new HashMap<String, Integer>();
+	for(int f = 0; f < functions.size(); f++)
+	    entries.put(CodeGenerator.entryLabel(functions.get(f).name), f);
+	BitSet[] reach = new BitSet[functions.size()];
+	for(int f = 0; f < functions.size(); f++) {
+	    reach[f] = new BitSet();
+	    for(int i = functions.get(f).start; i < functions.get(f).end; i++) {
+		if(is(code.get(i), IRNode.Type.JSR))
+		    reach[f].set(entries.get(code.get(i).getRes()));
+	    }
+	}
+	boolean changed = true;
+	while(changed) {
+	    changed = false;
+	    for(BitSet r : reach) {
+		int before = r.cardinality();
+		for(int g = r.nextSetBit(0); g >= 0; g = r.nextSetBit(g + 1))
+		    r.or(reach[g]);
+		changed |= r.cardinality() != before;
+	    }
+	}
+
+	List<IRNode> out = new ArrayList<IRNode>(code.size());
+	for(int f = 0; f < functions.size(); f++) {
+	    List<IRNode> region = code.subList(functions.get(f).start, functions.get(f).end);
+	    Set<Integer> reentrant = new HashSet<Integer>();
+	    for(int i = 0; i < region.size(); i++) {
+		if(is(region.get(i), IRNode.Type.JSR) && reach[entries.get(region.get(i).getRes())].get(f))
+		    reentrant.add(i);
+	    }
+	    if(reentrant.isEmpty()) {
+		out.addAll(region);
+		continue;
+	    }
+	    saveAcross(region, reentrant, out);
+	}
+	return out;
+    }
+
+    /* Adds region to out, saving round the calls at the given JSRs the
+       registers live across them. */
+    private static void saveAcross(List<IRNode> region, Set<Integer> calls, List<IRNode> out) {
+	List<IRNode> instrs = new ArrayList<IRNode>(region.size());
+	List<Integer> at = new ArrayList<Integer>(region.size());
+	Map<String, Integer> index = new HashMap<String, Integer>();
+	List<String> registers = new ArrayList<String>();
+	for(int i = 0; i < region.size(); i++) {
+	    IRNode node = region.get(i);
+	    if(node.isDeclaration())
+		continue;
+	    instrs.add(node);
+	    at.add(i);
+	    for(String operand : new String[] {node.getOp1(), node.getOp2(), node.getRes()}) {
+		if(IRNode.isRegister(operand) && !index.containsKey(operand)) {
+		    index.put(operand, registers.size());
+		    registers.add(operand);
+		}
+	    }
+	}
+
+	Liveness liveness = new Liveness(instrs, index);
+	Map<Integer, List<String>> before = new HashMap<Integer, List<String>>();
+	Map<Integer, List<String>> after = new HashMap<Integer, List<String>>();
+	for(int b = 0; b < liveness.blocks(); b++) {
+	    BitSet live = liveness.liveOut(b);
+	    for(int i = liveness.end(b) - 1; i >= liveness.start(b); i--) {
+		if(calls.contains(at.get(i)) && !live.isEmpty()) {
+		    Call call = callAt(region, at.get(i));
+		    List<String> saved = new ArrayList<String>();
+		    for(int r = live.nextSetBit(0); r >= 0; r = live.nextSetBit(r + 1))
+			saved.add(registers.get(r));
+		    before.put(call.push, saved);
+		    after.put(call.pop, saved);
+		}
+		liveness.step(instrs.get(i), live);
+	    }
+	}
+
+	for(int i = 0; i < region.size(); i++) {
+	    List<String> saved = before.get(i);
+	    if(saved != null) {
+		for(String reg : saved)
+		    out.add(new IRNode(IRNode.Type.PUSH, reg));
+	    }
+	    out.add(region.get(i));
+	    saved = after.get(i);
+	    if(saved != null) {
+		for(int r = saved.size() - 1; r >= 0; r--)
+		    out.add(new IRNode(IRNode.Type.POP, saved.get(r)));
+	    }
+	}
+    }
+}
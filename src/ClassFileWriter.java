@@ -0,0 +1,299 @@
+import java.io.*;
+import java.util.*;
+
+public class ClassFileWriter {
+    public static final int ACC_PUBLIC = 0x0001, ACC_PRIVATE = 0x0002, ACC_STATIC = 0x0008,
+	ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+    private static final int CONSTANT_Utf8 = 1, CONSTANT_Integer = 3, CONSTANT_Double = 6,
+	CONSTANT_Class = 7, CONSTANT_String = 8, CONSTANT_Fieldref = 9, CONSTANT_Methodref = 10,
+	CONSTANT_InterfaceMethodref = 11, CONSTANT_NameAndType = 12;
+
+    private static final int MAJOR_VERSION = 61;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<String, Integer>();
+    private int poolCount = 1;
+
+    private final int thisClass, superClass;
+    private final int[] interfaces;
+    private final List<byte[]> fieldInfos = new ArrayList<byte[]>();
+    private final List<byte[]> methodInfos = new ArrayList<byte[]>();
+
+    public ClassFileWriter(String name, String superName, String... interfaceNames) {
+	thisClass = classRef(name);
+	superClass = classRef(superName);
+	interfaces = new int[interfaceNames.length];
+	for(int i = 0; i < interfaceNames.length; i++)
+	    interfaces[i] = classRef(interfaceNames[i]);
+    }
+
+    private int constant(String key, int tag, int slots, byte[] body) {
+	Integer index = poolIndex.get(key);
+	if(index != null)
+	    return index;
+	try {
+	    pool.writeByte(tag);
+	    pool.write(body);
+	} catch(IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+	index = poolCount;
+	poolCount += slots;
+	if(poolCount > 0xFFFF)
+	    throw new CompileException("Constant pool overflow in generated class");
+	poolIndex.put(key, index);
+	return index;
+    }
+
+    private static byte[] bytes(int... u2s) {
+	byte[] out = new byte[u2s.length * 2];
+	for(int i = 0; i < u2s.length; i++) {
+	    out[2*i] = (byte) (u2s[i] >> 8);
+	    out[2*i+1] = (byte) u2s[i];
+	}
+	return out;
+    }
+
+    public int utf8(String value) {
+	ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	try {
+	    new DataOutputStream(buf).writeUTF(value);
+	} catch(IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+	return constant("U"+value, CONSTANT_Utf8, 1, buf.toByteArray());
+    }
+
+    public int classRef(String internalName) {
+	return constant("C"+internalName, CONSTANT_Class, 1, bytes(utf8(internalName)));
+    }
+
+    public int string(String value) {
+	return constant("S"+value, CONSTANT_String, 1, bytes(utf8(value)));
+    }
+
+    public int integer(int value) {
+	return constant("I"+value, CONSTANT_Integer, 1, bytes(value >>> 16, value & 0xFFFF));
+    }
+
+    public int doubleConst(double value) {
+	long bits = Double.doubleToLongBits(value);
+	return constant("D"+bits, CONSTANT_Double, 2,
+			bytes((int) (bits >>> 48) & 0xFFFF, (int) (bits >>> 32) & 0xFFFF,
+			      (int) (bits >>> 16) & 0xFFFF, (int) bits & 0xFFFF));
+    }
+
+    private int nameAndType(String name, String desc) {
+	return constant("N"+name+":"+desc, CONSTANT_NameAndType, 1, bytes(utf8(name), utf8(desc)));
+    }
+
+    public int fieldRef(String owner, String name, String desc) {
+	return constant("F"+owner+"."+name+":"+desc, CONSTANT_Fieldref, 1,
+			bytes(classRef(owner), nameAndType(name, desc)));
+    }
+
+    public int methodRef(String owner, String name, String desc) {
+	return constant("M"+owner+"."+name+":"+desc, CONSTANT_Methodref, 1,
+			bytes(classRef(owner), nameAndType(name, desc)));
+    }
+
+    public int interfaceMethodRef(String owner, String name, String desc) {
+	return constant("IM"+owner+"."+name+":"+desc, CONSTANT_InterfaceMethodref, 1,
+			bytes(classRef(owner), nameAndType(name, desc)));
+    }
+
+    public void addField(int access, String name, String desc) {
+	fieldInfos.add(bytes(access, utf8(name), utf8(desc), 0));
+    }
+
+    public void addMethod(int access, String name, String desc, Code code) {
+	ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	DataOutputStream out = new DataOutputStream(buf);
+	try {
+	    out.write(bytes(access, utf8(name), utf8(desc), 1));
+	    out.write(code.toAttribute());
+	} catch(IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+	methodInfos.add(buf.toByteArray());
+    }
+
+    public byte[] toByteArray() {
+	ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	DataOutputStream out = new DataOutputStream(buf);
+	try {
+	    out.writeInt(0xCAFEBABE);
+	    out.writeShort(0);
+	    out.writeShort(MAJOR_VERSION);
+	    out.writeShort(poolCount);
+	    out.write(poolBytes.toByteArray());
+	    out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+	    out.writeShort(thisClass);
+	    out.writeShort(superClass);
+	    out.writeShort(interfaces.length);
+	    for(int i : interfaces)
+		out.writeShort(i);
+	    out.writeShort(fieldInfos.size());
+	    for(byte[] f : fieldInfos)
+		out.write(f);
+	    out.writeShort(methodInfos.size());
+	    for(byte[] m : methodInfos)
+		out.write(m);
+	    out.writeShort(0);
+	} catch(IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+	return buf.toByteArray();
+    }
+
+    static class Label {
+	private int position = -1;
+	private final List<int[]> fixups = new ArrayList<int[]>();
+    }
+
+    class Code {
+	private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+	private final List<Label> labels = new ArrayList<Label>();
+	private final TreeSet<Integer> frames = new TreeSet<Integer>();
+	private final int maxStack, maxLocals;
+	private byte[] frameLocals = new byte[0];
+	private int frameLocalCount = 0;
+
+	Code(int maxStack, int maxLocals) {
+	    this.maxStack = maxStack;
+	    this.maxLocals = maxLocals;
+	}
+
+	public void setFrameLocals(byte[] encoded, int count) {
+	    frameLocals = encoded;
+	    frameLocalCount = count;
+	}
+
+	public int position() {
+	    return code.size();
+	}
+
+	public void u1(int value) {
+	    code.write(value);
+	}
+
+	public void u2(int value) {
+	    code.write(value >> 8);
+	    code.write(value);
+	}
+
+	public void op(int opcode) {
+	    u1(opcode);
+	}
+
+	public void op(int opcode, int u2operand) {
+	    u1(opcode);
+	    u2(u2operand);
+	}
+
+	public void local(int opcode, int wideOpcodeBase, int slot) {
+	    if(slot <= 3 && wideOpcodeBase >= 0) {
+		u1(wideOpcodeBase + slot);
+	    } else if(slot <= 0xFF) {
+		u1(opcode);
+		u1(slot);
+	    } else {
+		u1(0xC4);
+		u1(opcode);
+		u2(slot);
+	    }
+	}
+
+	public Label newLabel() {
+	    Label label = new Label();
+	    labels.add(label);
+	    return label;
+	}
+
+	public void bind(Label label) {
+	    label.position = position();
+	    frames.add(label.position);
+	}
+
+	public void frameHere() {
+	    frames.add(position());
+	}
+
+	public void jump(int opcode, Label target) {
+	    int at = position();
+	    u1(opcode);
+	    target.fixups.add(new int[] {at, position()});
+	    u2(0);
+	}
+
+	private byte[] resolve() {
+	    byte[] bytes = code.toByteArray();
+	    for(Label label : labels) {
+		for(int[] fixup : label.fixups) {
+		    if(label.position < 0)
+			throw new CompileException("Unbound label in generated bytecode");
+		    int offset = label.position - fixup[0];
+		    if(offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+			throw new CompileException("Branch offset too large for JVM backend");
+		    bytes[fixup[1]] = (byte) (offset >> 8);
+		    bytes[fixup[1]+1] = (byte) offset;
+		}
+	    }
+	    if(bytes.length > 0xFFFF)
+		throw new CompileException("Method too large for JVM backend");
+	    return bytes;
+	}
+
+	private byte[] stackMapTable() throws IOException {
+	    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	    DataOutputStream out = new DataOutputStream(buf);
+	    out.writeShort(frames.size());
+	    int last = -1;
+	    for(int offset : frames) {
+		out.writeByte(255);
+		out.writeShort(offset - last - 1);
+		out.writeShort(frameLocalCount);
+		out.write(frameLocals);
+		out.writeShort(0);
+		last = offset;
+	    }
+	    return buf.toByteArray();
+	}
+
+	byte[] toAttribute() throws IOException {
+	    byte[] bytes = resolve();
+	    frames.remove(bytes.length);
+	    byte[] stackMap = frames.isEmpty() ? null : stackMapTable();
+
+	    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	    DataOutputStream out = new DataOutputStream(buf);
+	    out.writeShort(maxStack);
+	    out.writeShort(maxLocals);
+	    out.writeInt(bytes.length);
+	    out.write(bytes);
+	    out.writeShort(0);
+	    if(stackMap == null) {
+		out.writeShort(0);
+	    } else {
+		out.writeShort(1);
+		out.writeShort(utf8("StackMapTable"));
+		out.writeInt(stackMap.length);
+		out.write(stackMap);
+	    }
+	    byte[] body = buf.toByteArray();
+
+	    ByteArrayOutputStream attr = new ByteArrayOutputStream();
+	    DataOutputStream attrOut = new DataOutputStream(attr);
+	    attrOut.writeShort(utf8("Code"));
+	    attrOut.writeInt(body.length);
+	    attrOut.write(body);
+	    return attr.toByteArray();
+	}
+    }
+
+    public Code newCode(int maxStack, int maxLocals) {
+	return new Code(maxStack, maxLocals);
+    }
+}
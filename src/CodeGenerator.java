@@ -1,280 +1,488 @@
 import java.io.*;
 import java.util.*;
-
-public class CodeGenerator {
-    private AST.ASTNode root;
-    private static final String MAIN_FUNCTION = "main";
-    public final List<IRNode> irCode = new ArrayList<IRNode>();
-    public CodeGenerator(AST.ASTNode root) {
-	this.root = root;
-
-	assert root.type == AST.Type.Program;
-
-	AST.ASTNode declList = root.children.get(1);
-	assert declList.type == AST.Type.DeclarationList;
-	assert declList.scope != null;
-	
-	if(declList.scope.getDeclared().size() > 0)
-	    irCode.add(new IRNode(declList.scope));
+import java.util.stream.IntStream;
+
+/*
+ * Generates IR from a syntax tree read through SyntaxTree, so the same
+ * code serves AST nodes and the off-heap NodeTable.
+ *
+ * Functions other than main keep their parameters, locals and return
+ * value in a stack frame. A call pushes a slot for the value and the
+ * arguments and jumps to the function's entry label, which links a frame
+ * for the locals; the caller pops the arguments and then the value. With
+ * the frame pointer at the saved one, an n-parameter function so finds
+ * its ith parameter (from 0) at $(n+1-i), its return slot at $(n+2) and
+ * its locals at $-1, $-2, ... Its string constants are still declared
+ * globally, named for the function. main ends the program when other
+ * functions' code follows it.
+ */
+public class CodeGenerator<N> {
+    private final SyntaxTree<N> tree;
+    private final List<IRNode> irCode = new ArrayList<IRNode>();
+    private final String labelPrefix;
+
+    /*
+     * With parallel set the functions are generated concurrently, each
+     * with its own registers and labels, and joined in the order given:
+     * main first, as Resolver returns them. Each function's registers are
+     * then numbered after those of the functions before it, so that no
+     * two functions share one.
+     */
+    public CodeGenerator(SyntaxTree<N> tree, N root, List<N> functions, boolean parallel) {
+	this.tree = tree;
+	this.labelPrefix = null;
+
+	assert tree.type(root) == AST.Type.Program;
+
+	N declList = tree.child(root, 1);
+	assert tree.type(declList) == AST.Type.DeclarationList;
+	assert tree.scope(declList) != null;
 	
-	AST.ASTNode funcList = root.children.get(2);
-	assert funcList.type == AST.Type.FunctionList;
+	if(tree.scope(declList).getDeclared().size() > 0)
+	    irCode.add(new IRNode(tree.scope(declList)));
+
+	List<List<IRNode>> code = new ArrayList<List<IRNode>>(Collections.nCopies(functions.size(), null));
+	CompileException[] errors = new CompileException[functions.size()];
+	IntStream indices = IntStream.range(0, functions.size());
+	(parallel ? indices.parallel() : indices).forEach((int i) -> {
+	    try {
+		code.set(i, generateFunction(tree, functions.get(i)));
+	    } catch(CompileException c) {
+		errors[i] = c;
+	    }
+	});
+	int registers = 0;
+	for(int i = 0; i < code.size(); i++) {
+	    if(errors[i] != null)
+		throw errors[i];
+	    for(IRNode node : code.get(i))
+		irCode.add(registers == 0 ? node : renumber(node, registers));
+	    registers += maxRegister(code.get(i)) + 1;
+	    if(i == 0 && code.size() > 1 && !endsWith(code.get(0), IRNode.Type.HALT))
+		irCode.add(new IRNode(IRNode.Type.HALT, null));
+	}
+    }
 
-	AST.ASTNode mainFunction = null;
-	for(AST.ASTNode child : funcList.children) {
-	    assert child.type == AST.Type.Function;
+    private CodeGenerator(SyntaxTree<N> tree, String labelPrefix) {
+	this.tree = tree;
+	this.labelPrefix = labelPrefix;
+    }
+
+    /* The label a call to function jumps to. */
+    static String entryLabel(String function) {
+	return function+ENTRY_SUFFIX;
+    }
 
-	    String name = child.children.get(1).value;
-	    if(name.equals(MAIN_FUNCTION)) {
-		mainFunction = child;
-		break;
+    static final String ENTRY_SUFFIX = "_entry";
+
+    /*
+     * Generates one function's code. Registers are numbered from $T0;
+     * labels are prefixed with the function's name,
+     * except in main, whose labels stay label0, label1, ...
+     */
+    public static <N> List<IRNode> generateFunction(SyntaxTree<N> tree, N function) {
+	String name = tree.value(tree.child(function, 1));
+	boolean main = name.equals(Resolver.MAIN_FUNCTION);
+	CodeGenerator<N> gen = new CodeGenerator<N>(tree, main ? "label" : name+"_label");
+
+	N stmts = tree.child(function, 4);
+	assert tree.type(stmts) == AST.Type.StatementList;
+	assert tree.scope(stmts) != null;
+
+	if(!main)
+	    gen.enterFrame(function, name);
+	gen.generateBlock(stmts);
+	if(!main) {
+	    gen.irCode.add(1, new IRNode(IRNode.Type.LINK, Integer.toString(gen.locals)));
+	    if(!endsWith(gen.irCode, IRNode.Type.RET)) {
+		gen.irCode.add(new IRNode(IRNode.Type.UNLINK, null));
+		gen.irCode.add(new IRNode(IRNode.Type.RET, null));
 	    }
 	}
-	if(mainFunction == null)
-	    throw new CompileException("Could not find main method");
+	return gen.irCode;
+    }
 
-	AST.ASTNode mainStmts = mainFunction.children.get(4);
-	assert mainStmts.type == AST.Type.StatementList;
-	assert mainStmts.scope != null;
+    private static boolean endsWith(List<IRNode> code, IRNode.Type type) {
+	return !code.isEmpty() && code.get(code.size() - 1).getType() == type;
+    }
 
-	if(mainStmts.scope.getDeclared().size() > 0)
-	    irCode.add(new IRNode(mainStmts.scope));
-	
-	for(AST.ASTNode stmt : mainStmts.children) {
-	    generateCode(stmt, mainStmts.scope);
+    /*
+     * Where a function other than main keeps its variables: the frame
+     * slot of each parameter and local, or for a string constant the
+     * global name it is declared under. Null in main, whose variables are
+     * all declared.
+     */
+    private Map<Variable, String> frame;
+    private String function, returnSlot;
+    private ValueType returnType;
+    private int locals;
+
+    private void enterFrame(N function, String name) {
+	this.function = name;
+	frame = new IdentityHashMap<Variable, String>();
+	Scope scope = tree.scope(tree.child(function, 4));
+	N params = tree.child(function, 2);
+	int n = tree.size(params);
+	for(int i = 0; i < n; i++) {
+	    N ident = tree.child(tree.child(params, i), 1);
+	    frame.put(scope.getVariable(tree.value(ident)), "$"+(n + 1 - i));
 	}
+	returnSlot = "$"+(n + 2);
+	returnType = Resolver.returnType(tree, function);
+	irCode.add(new IRNode(IRNode.Type.LABEL, entryLabel(name)));
+    }
+
+    /* Gives a block's locals their frame slots, and declares its strings. */
+    private void declareFrame(Scope scope) {
+	Scope strings = null;
+	for(String name : scope.getDeclared()) {
+	    Variable var = scope.getVariable(name);
+	    if(frame.containsKey(var))
+		continue;
+	    if(var.valueType != ValueType.STRING) {
+		frame.put(var, "$-"+(++locals));
+		continue;
+	    }
+	    if(strings == null)
+		strings = new Scope(scope.getNumber());
+	    Variable global = new Variable(new Token(var.nameToken.type, function+"_"+name,
+						     var.nameToken.offset), var.type, var.value);
+	    strings.addVariable(global);
+	    frame.put(var, global.makeName());
+	}
+	if(strings != null)
+	    irCode.add(new IRNode(strings));
+    }
+
+    /* The operand a variable is read or written through. */
+    private String name(Variable var) {
+	String slot = frame == null ? null : frame.get(var);
+	return slot != null ? slot : var.makeName();
     }
 
     public List<IRNode> getIRCode() {
 	return irCode;
     }
 
-    private static final String INT = "INT";
-    private static final String FLOAT = "FLOAT";
-    private static final String STRING = "STRING";
-    private void generateCode(AST.ASTNode stmt, Scope scope) {
-	if(stmt.type == AST.Type.Assignment) {
-	    assert stmt.children.size() == 2;
+    /*
+     * Work still to do in the blocks being generated, next first: a
+     * statement, a StatementList to enter, or an instruction that closes
+     * an IF or WHILE. Keeping it here rather than on the call stack lets
+     * blocks nest to any depth.
+     */
+    private static class Pending<N> {
+	final N stmt;
+	final IRNode code;
+
+	Pending(N stmt, IRNode code) {
+	    this.stmt = stmt;
+	    this.code = code;
+	}
+    }
+
+    private final ArrayDeque<Pending<N>> pending = new ArrayDeque<Pending<N>>();
+
+    private void generateBlock(N block) {
+	then(block);
+	while(!pending.isEmpty()) {
+	    Pending<N> next = pending.pop();
+	    if(next.code != null) {
+		irCode.add(next.code);
+	    } else if(tree.type(next.stmt) == AST.Type.StatementList) {
+		assert tree.scope(next.stmt) != null;
+
+		if(tree.scope(next.stmt).getDeclared().size() > 0) {
+		    if(frame == null)
+			irCode.add(new IRNode(tree.scope(next.stmt)));
+		    else
+			declareFrame(tree.scope(next.stmt));
+		}
+
+		List<N> stmts = tree.children(next.stmt);
+		for(int i = stmts.size() - 1; i >= 0; i--)
+		    pending.push(new Pending<N>(stmts.get(i), null));
+	    } else {
+		generateCode(next.stmt);
+	    }
+	}
+    }
+
+    private void then(N block) {
+	assert tree.type(block) == AST.Type.StatementList;
+	pending.push(new Pending<N>(block, null));
+    }
+
+    private void then(IRNode code) {
+	pending.push(new Pending<N>(null, code));
+    }
+
+    /* Generates stmt, except that the blocks of an IF or WHILE and the
+       code after them are left pending, pushed last first. Variables and
+       types are those Resolver found. */
+    private void generateCode(N stmt) {
+	if(tree.type(stmt) == AST.Type.Assignment) {
+	    assert tree.size(stmt) == 2;
 	    
-	    AST.ASTNode left = stmt.children.get(0);
-	    AST.ASTNode right = stmt.children.get(1);
+	    N left = tree.child(stmt, 0);
+	    N right = tree.child(stmt, 1);
 
-	    assert left.type == AST.Type.Identifier;
+	    assert tree.type(left) == AST.Type.Identifier;
 	    
-	    Variable lhs = scope.getVariable(left.value);
-	    if(lhs == null)
-		throw new CompileException("Variable not defined in this scope",
-					   lhs.nameToken);
-
-	    ExprInfo result = generateExpr(right, scope);
-	    if(lhs.type.equals(INT))
-		irCode.add(new IRNode(IRNode.Type.STOREI, result.out, lhs.makeName()));
-	    else if(lhs.type.equals(FLOAT))
-		irCode.add(new IRNode(IRNode.Type.STOREF, result.out, lhs.makeName()));
+	    Variable lhs = tree.variable(left);
+	    String result = generateExpr(right);
+	    if(lhs.valueType == ValueType.INT)
+		irCode.add(new IRNode(IRNode.Type.STOREI, result, name(lhs)));
+	    else if(lhs.valueType == ValueType.FLOAT)
+		irCode.add(new IRNode(IRNode.Type.STOREF, result, name(lhs)));
 	    else
 		assert false;
-	} else if(stmt.type == AST.Type.Read) {
-	    for(AST.ASTNode operand : stmt.children) {
-		assert operand.type == AST.Type.Identifier;
+	} else if(tree.type(stmt) == AST.Type.Read) {
+	    for(N operand : tree.children(stmt)) {
+		assert tree.type(operand) == AST.Type.Identifier;
 
-		Variable opVar = scope.getVariable(operand.value);
+		Variable opVar = tree.variable(operand);
 
-		if(opVar.type.equals(INT))
-		    irCode.add(new IRNode(IRNode.Type.READI, opVar.makeName()));
-		else if(opVar.type.equals(FLOAT))
-		    irCode.add(new IRNode(IRNode.Type.READF, opVar.makeName()));
+		if(opVar.valueType == ValueType.INT)
+		    irCode.add(new IRNode(IRNode.Type.READI, name(opVar)));
+		else if(opVar.valueType == ValueType.FLOAT)
+		    irCode.add(new IRNode(IRNode.Type.READF, name(opVar)));
 		else
 		    assert false;
 	    }
-	} else if(stmt.type == AST.Type.Write) {
-	    for(AST.ASTNode operand : stmt.children) {
-		assert operand.type == AST.Type.Identifier;
-
-		Variable opVar = scope.getVariable(operand.value);
-
-		if(opVar.type.equals(INT))
-		    irCode.add(new IRNode(IRNode.Type.WRITEI, opVar.makeName()));
-		else if(opVar.type.equals(FLOAT))
-		    irCode.add(new IRNode(IRNode.Type.WRITEF, opVar.makeName()));
-		else if(opVar.type.equals(STRING))
-		    irCode.add(new IRNode(IRNode.Type.WRITES, opVar.makeName()));
+	} else if(tree.type(stmt) == AST.Type.Write) {
+	    for(N operand : tree.children(stmt)) {
+		assert tree.type(operand) == AST.Type.Identifier;
+
+		Variable opVar = tree.variable(operand);
+
+		if(opVar.valueType == ValueType.INT)
+		    irCode.add(new IRNode(IRNode.Type.WRITEI, name(opVar)));
+		else if(opVar.valueType == ValueType.FLOAT)
+		    irCode.add(new IRNode(IRNode.Type.WRITEF, name(opVar)));
 		else
-		    assert false;
+		    irCode.add(new IRNode(IRNode.Type.WRITES, name(opVar)));
 	    }
-	} else if(stmt.type == AST.Type.If) {
-	    boolean hasElse = stmt.children.size() == 5;
+	} else if(tree.type(stmt) == AST.Type.If) {
+	    boolean hasElse = tree.size(stmt) == 5;
 	    if(hasElse) {
 		String elseLabel = newLabel();
 		String exitLabel = newLabel();
 
-		AST.ASTNode condition = stmt.children.get(0);
-		assert condition.type == AST.Type.Condition;
+		N condition = tree.child(stmt, 0);
+		assert tree.type(condition) == AST.Type.Condition;
 		
-		generateCondition(condition, scope, elseLabel);
+		generateCondition(condition, elseLabel);
 		
-		AST.ASTNode ifBlock = stmt.children.get(2);
-		assert ifBlock.type == AST.Type.StatementList;
-		assert ifBlock.scope != null;
-
-		if(ifBlock.scope.getDeclared().size() > 0)
-		    irCode.add(new IRNode(ifBlock.scope));
-		
-		for(AST.ASTNode substmt : ifBlock.children) {
-		    generateCode(substmt, ifBlock.scope);
-		}
-
-		irCode.add(new IRNode(IRNode.Type.JUMP, exitLabel));
-		irCode.add(new IRNode(IRNode.Type.LABEL, elseLabel));
-
-		AST.ASTNode elseBlock = stmt.children.get(4);
-		assert elseBlock.type == AST.Type.StatementList;
-		assert elseBlock.scope != null;
-
-		if(elseBlock.scope.getDeclared().size() > 0)
-		    irCode.add(new IRNode(elseBlock.scope));
-		
-		for(AST.ASTNode substmt : elseBlock.children) {
-		    generateCode(substmt, elseBlock.scope);
-		}
-		irCode.add(new IRNode(IRNode.Type.LABEL, exitLabel));
+		then(new IRNode(IRNode.Type.LABEL, exitLabel));
+		then(tree.child(stmt, 4));
+		then(new IRNode(IRNode.Type.LABEL, elseLabel));
+		then(new IRNode(IRNode.Type.JUMP, exitLabel));
+		then(tree.child(stmt, 2));
 	    } else {
 		String exitLabel = newLabel();
 
-		AST.ASTNode condition = stmt.children.get(0);
-		assert condition.type == AST.Type.Condition;
-		
-		generateCondition(condition, scope, exitLabel);
+		N condition = tree.child(stmt, 0);
+		assert tree.type(condition) == AST.Type.Condition;
 		
-		AST.ASTNode ifBlock = stmt.children.get(2);
-		assert ifBlock.type == AST.Type.StatementList;
-		assert ifBlock.scope != null;
-
-		if(ifBlock.scope.getDeclared().size() > 0)
-		    irCode.add(new IRNode(ifBlock.scope));
+		generateCondition(condition, exitLabel);
 		
-		for(AST.ASTNode substmt : ifBlock.children) {
-		    generateCode(substmt, ifBlock.scope);
-		}
-		irCode.add(new IRNode(IRNode.Type.LABEL, exitLabel));
+		then(new IRNode(IRNode.Type.LABEL, exitLabel));
+		then(tree.child(stmt, 2));
 	    }
-	} else if(stmt.type == AST.Type.While) {
+	} else if(tree.type(stmt) == AST.Type.While) {
 	    String loopLabel = newLabel();
 	    String exitLabel = newLabel();
 
 	    irCode.add(new IRNode(IRNode.Type.LABEL, loopLabel));
 	    
-	    AST.ASTNode condition = stmt.children.get(0);
-	    assert condition.type == AST.Type.Condition;
+	    N condition = tree.child(stmt, 0);
+	    assert tree.type(condition) == AST.Type.Condition;
 
-	    generateCondition(condition, scope, exitLabel);
+	    generateCondition(condition, exitLabel);
 		
-	    AST.ASTNode whileBlock = stmt.children.get(2);
-	    assert whileBlock.type == AST.Type.StatementList;
-	    assert whileBlock.scope != null;
-
-	    if(whileBlock.scope.getDeclared().size() > 0)
-		irCode.add(new IRNode(whileBlock.scope));
-	    
-	    for(AST.ASTNode substmt : whileBlock.children) {
-		generateCode(substmt, whileBlock.scope);
+	    then(new IRNode(IRNode.Type.LABEL, exitLabel));
+	    then(new IRNode(IRNode.Type.JUMP, loopLabel));
+	    then(tree.child(stmt, 2));
+	} else if(tree.type(stmt) == AST.Type.Return) {
+	    String value = generateExpr(tree.child(stmt, 0));
+	    if(frame == null) {
+		irCode.add(new IRNode(IRNode.Type.HALT, null));
+	    } else {
+		if(returnType != null)
+		    irCode.add(new IRNode(returnType == ValueType.FLOAT ? IRNode.Type.STOREF : IRNode.Type.STOREI,
+					  value, returnSlot));
+		irCode.add(new IRNode(IRNode.Type.UNLINK, null));
+		irCode.add(new IRNode(IRNode.Type.RET, null));
 	    }
-	    
-	    irCode.add(new IRNode(IRNode.Type.JUMP, loopLabel));
-	    irCode.add(new IRNode(IRNode.Type.LABEL, exitLabel));
 	} else
 	    assert false;
     }
 
-    static class ExprInfo {
-	public String out;
-	public String type;
-    }
-
-    private void generateCondition(AST.ASTNode cond, Scope scope, String exitLabel) {
-	assert cond.children.size() == 1;
+    private void generateCondition(N cond, String exitLabel) {
+	assert tree.size(cond) == 1;
 
-	AST.ASTNode condition = cond.children.get(0);
-	assert condition.children.size() == 2;
+	N condition = tree.child(cond, 0);
+	assert tree.size(condition) == 2;
 	
-	ExprInfo left = generateExpr(condition.children.get(0), scope);
-	ExprInfo right = generateExpr(condition.children.get(1), scope);
+	String left = generateExpr(tree.child(condition, 0));
+	String right = generateExpr(tree.child(condition, 1));
+	boolean isFloat = tree.valueType(condition) == ValueType.FLOAT;
 
-	switch(condition.type) {
+	switch(tree.type(condition)) {
 	case LessThan:
-	    generateCondition(IRNode.Type.GEI, IRNode.Type.GEF, left, right, exitLabel);
+	    irCode.add(new IRNode(isFloat ? IRNode.Type.GEF : IRNode.Type.GEI, left, right, exitLabel));
 	    break;
 	case LessThanEqual:
-	    generateCondition(IRNode.Type.GTI, IRNode.Type.GTF, left, right, exitLabel);
+	    irCode.add(new IRNode(isFloat ? IRNode.Type.GTF : IRNode.Type.GTI, left, right, exitLabel));
 	    break;
 	case GreaterThan:
-	    generateCondition(IRNode.Type.LEI, IRNode.Type.LEF, left, right, exitLabel);
+	    irCode.add(new IRNode(isFloat ? IRNode.Type.LEF : IRNode.Type.LEI, left, right, exitLabel));
 	    break;
 	case GreaterThanEqual:
-	    generateCondition(IRNode.Type.LTI, IRNode.Type.LTF, left, right, exitLabel);
+	    irCode.add(new IRNode(isFloat ? IRNode.Type.LTF : IRNode.Type.LTI, left, right, exitLabel));
 	    break;
 	case Equal:
-	    generateCondition(IRNode.Type.NEI, IRNode.Type.NEF, left, right, exitLabel);
+	    irCode.add(new IRNode(isFloat ? IRNode.Type.NEF : IRNode.Type.NEI, left, right, exitLabel));
 	    break;
 	case NotEqual:
-	    generateCondition(IRNode.Type.EQI, IRNode.Type.EQF, left, right, exitLabel);
+	    irCode.add(new IRNode(isFloat ? IRNode.Type.EQF : IRNode.Type.EQI, left, right, exitLabel));
 	    break;
 	}
     }
 
-    private void generateCondition(IRNode.Type branchi, IRNode.Type branchf, ExprInfo left, ExprInfo right, String exitLabel) {
-	if(left.type.equals(FLOAT) || right.type.equals(FLOAT)) {
-	    irCode.add(new IRNode(branchf, left.out, right.out, exitLabel));
-	} else if(left.type.equals(INT) && right.type.equals(INT)) {
-	    irCode.add(new IRNode(branchi, left.out, right.out, exitLabel));
-	} else
-	    assert false;
+    /*
+     * An operator or call some of whose operands are done and the next of
+     * which is being generated; a call's operands are its arguments.
+     * Operands are generated depth first with these kept on exprStack
+     * instead of the call stack, and registers are taken in the same order
+     * as recursion would take them: an operator's before its operands'.
+     */
+    private static class ExprFrame<N> {
+	final N expr;
+	final String out;
+	final String[] operands;
+	int done;
+
+	ExprFrame(N expr, String out, int operands) {
+	    this.expr = expr;
+	    this.out = out;
+	    this.operands = new String[operands];
+	}
     }
-    
-    private ExprInfo generateExpr(AST.ASTNode expr, Scope scope) {
-	ExprInfo info = new ExprInfo();
-	info.out = newRegister();
-	if(expr.type == AST.Type.IntLiteral) {
-	    irCode.add(new IRNode(IRNode.Type.STOREI, expr.value, info.out));
-	    info.type = INT;
-	} else if(expr.type == AST.Type.FloatLiteral) {
-	    irCode.add(new IRNode(IRNode.Type.STOREF, expr.value, info.out));
-	    info.type = FLOAT;
-	} else if(expr.type == AST.Type.Identifier) {
-	    Variable var = scope.getVariable(expr.value);
-	    if(var.type.equals(INT)) {
-		irCode.add(new IRNode(IRNode.Type.STOREI, var.makeName(), info.out));
-		info.type = INT;
-	    } else if(var.type.equals(FLOAT)) {
-		irCode.add(new IRNode(IRNode.Type.STOREF, var.makeName(), info.out));
-		info.type = FLOAT;
+
+    private final ArrayDeque<ExprFrame<N>> exprStack = new ArrayDeque<ExprFrame<N>>();
+
+    /* Generates expr and returns the register holding its value. */
+    private String generateExpr(N expr) {
+	int base = exprStack.size();
+	while(true) {
+	    String out = newRegister();
+	    AST.Type type = tree.type(expr);
+	    if(type == AST.Type.IntLiteral) {
+		irCode.add(new IRNode(IRNode.Type.STOREI, tree.value(expr), out));
+	    } else if(type == AST.Type.FloatLiteral) {
+		irCode.add(new IRNode(IRNode.Type.STOREF, tree.value(expr), out));
+	    } else if(type == AST.Type.Identifier) {
+		irCode.add(new IRNode(tree.valueType(expr) == ValueType.FLOAT ? IRNode.Type.STOREF : IRNode.Type.STOREI,
+				      name(tree.variable(expr)), out));
+	    } else if(type == AST.Type.Addition || type == AST.Type.Subtraction ||
+		      type == AST.Type.Multiplication || type == AST.Type.Division) {
+		exprStack.push(new ExprFrame<N>(expr, out, 2));
+		expr = tree.child(expr, 0);
+		continue;
+	    } else if(type == AST.Type.Call) {
+		ExprFrame<N> call = new ExprFrame<N>(expr, out, tree.size(expr) - 1);
+		if(call.operands.length > 0) {
+		    exprStack.push(call);
+		    expr = tree.child(expr, 1);
+		    continue;
+		}
+		generateCall(expr, out, call.operands);
 	    } else
 		assert false;
-	} else if(expr.type == AST.Type.Addition) {
-	    generateBinaryExpr(expr, info, scope, IRNode.Type.ADDI, IRNode.Type.ADDF);
-	} else if(expr.type == AST.Type.Subtraction) {
-	    generateBinaryExpr(expr, info, scope, IRNode.Type.SUBI, IRNode.Type.SUBF);
-	} else if(expr.type == AST.Type.Multiplication) {
-	    generateBinaryExpr(expr, info, scope, IRNode.Type.MULTI, IRNode.Type.MULTF);	    
-	} else if(expr.type == AST.Type.Division) {
-	    generateBinaryExpr(expr, info, scope, IRNode.Type.DIVI, IRNode.Type.DIVF);	    
-	} else
-	    assert false;
-	    
-	return info;
+
+	    /* Finish everything whose last operand this completes. */
+	    while(exprStack.size() > base) {
+		ExprFrame<N> frame = exprStack.peek();
+		frame.operands[frame.done++] = out;
+		if(frame.done < frame.operands.length)
+		    break;
+		exprStack.pop();
+		if(tree.type(frame.expr) == AST.Type.Call)
+		    generateCall(frame.expr, frame.out, frame.operands);
+		else
+		    generateBinaryExpr(frame.expr, frame.out, frame.operands[0], frame.operands[1]);
+		out = frame.out;
+	    }
+	    if(exprStack.size() == base)
+		return out;
+	    ExprFrame<N> frame = exprStack.peek();
+	    expr = tree.child(frame.expr, tree.type(frame.expr) == AST.Type.Call ? frame.done + 1 : frame.done);
+	}
     }
 
-    private void generateBinaryExpr(AST.ASTNode expr, ExprInfo info, Scope scope, IRNode.Type typei, IRNode.Type typef) {
-	ExprInfo argInfo1 = generateExpr(expr.children.get(0), scope);
-	ExprInfo argInfo2 = generateExpr(expr.children.get(1), scope);
-	    
-	if(argInfo1.type.equals(FLOAT) || argInfo2.type.equals(FLOAT)) {
-	    irCode.add(new IRNode(typef, argInfo1.out, argInfo2.out, info.out));
-	    info.type = FLOAT;
-	} else if(argInfo1.type.equals(INT) && argInfo2.type.equals(INT)) {
-	    irCode.add(new IRNode(typei, argInfo1.out, argInfo2.out, info.out));
-	    info.type = INT;
-	} else
-	    assert false;
+    private void generateCall(N call, String out, String[] args) {
+	irCode.add(new IRNode(IRNode.Type.PUSH, null));
+	for(String arg : args)
+	    irCode.add(new IRNode(IRNode.Type.PUSH, arg));
+	irCode.add(new IRNode(IRNode.Type.JSR, entryLabel(tree.value(tree.child(call, 0)))));
+	for(int i = 0; i < args.length; i++)
+	    irCode.add(new IRNode(IRNode.Type.POP, null));
+	irCode.add(new IRNode(IRNode.Type.POP, out));
+    }
+
+    private void generateBinaryExpr(N expr, String out, String left, String right) {
+	boolean isFloat = tree.valueType(expr) == ValueType.FLOAT;
+	switch(tree.type(expr)) {
+	case Addition:
+	    irCode.add(new IRNode(isFloat ? IRNode.Type.ADDF : IRNode.Type.ADDI, left, right, out));
+	    break;
+	case Subtraction:
+	    irCode.add(new IRNode(isFloat ? IRNode.Type.SUBF : IRNode.Type.SUBI, left, right, out));
+	    break;
+	case Multiplication:
+	    irCode.add(new IRNode(isFloat ? IRNode.Type.MULTF : IRNode.Type.MULTI, left, right, out));
+	    break;
+	case Division:
+	    irCode.add(new IRNode(isFloat ? IRNode.Type.DIVF : IRNode.Type.DIVI, left, right, out));
+	    break;
+	}
+    }
+
+    /* The number of register $Tn, or -1 if operand is not one. */
+    static int register(String operand) {
+	if(!IRNode.isRegister(operand))
+	    return -1;
+	try {
+	    return Integer.parseInt(operand.substring(2));
+	} catch(NumberFormatException e) {
+	    return -1;
+	}
+    }
+
+    /* The highest register number code uses, or -1 if it uses none. */
+    static int maxRegister(List<IRNode> code) {
+	int max = -1;
+	for(IRNode node : code) {
+	    if(!node.isDeclaration())
+		max = Math.max(max, Math.max(register(node.getOp1()),
+					     Math.max(register(node.getOp2()), register(node.getRes()))));
+	}
+	return max;
+    }
+
+    private static IRNode renumber(IRNode node, int base) {
+	if(node.isDeclaration())
+	    return node;
+	String[] ops = {node.getOp1(), node.getOp2(), node.getRes()};
+	boolean changed = false;
+	for(int o = 0; o < ops.length; o++) {
+	    if(register(ops[o]) >= 0) {
+		ops[o] = "$T"+(register(ops[o]) + base);
+		changed = true;
+	    }
+	}
+	return changed ? new IRNode(node.getType(), ops[0], ops[1], ops[2]) : node;
     }
 
     private int regCounter = 0;
@@ -284,31 +492,74 @@ public class CodeGenerator {
 
     private int labelCounter = 0;
     private String newLabel() {
-	return "label"+(labelCounter++);
+	return labelPrefix+(labelCounter++);
+    }
+
+    public static String render(List<IRNode> code) {
+	return renderIR(code)+"\n"+renderTiny(code)+"\n";
+    }
+
+    public static String renderIR(List<IRNode> code) {
+	StringBuffer irBuf = new StringBuffer();
+	for(IRNode node : code) {
+	    String irOut = node.toString();
+	    if(irOut != null) {
+		irBuf.append(";");
+		irBuf.append(irOut);
+		irBuf.append("\n");
+	    }
+	}
+	return irBuf.toString();
+    }
+
+    public static String renderTiny(List<IRNode> code) {
+	StringBuffer tinyBuf = new StringBuffer();
+	for(IRNode node : code) {
+	    tinyBuf.append(node.translate());
+	}
+	return tinyBuf.toString();
     }
 
     public static void main(String[] args) throws IOException {
-	String input = new String(java.nio.file.Files.readAllBytes(new java.io.File(args[0]).toPath()));
-	Token[] toks = new LittleScanner(input).getTokens();
+	String fileName = null;
+	boolean timePasses = false, costReport = false;
+	List<String> options = new ArrayList<String>();
+	for(String arg : args) {
+	    if(arg.equals("-time-passes"))
+		timePasses = true;
+	    else if(arg.equals("-cost-report"))
+		costReport = true;
+	    else if(arg.startsWith("-"))
+		options.add(arg);
+	    else
+		fileName = arg;
+	}
+
+	if(fileName == null) {
+	    System.err.println("usage: CodeGenerator [compiler flags] [-time-passes] [-cost-report] file");
+	    System.exit(2);
+	}
+
+	Compiler compiler;
 	try {
-	    LittleParser parser = new LittleParser(toks);
-
-	    CodeGenerator gen = new CodeGenerator(parser.getAST().getRoot());
-	    StringBuffer irBuf = new StringBuffer();
-	    StringBuffer tinyBuf = new StringBuffer();
-	    for(IRNode node : gen.getIRCode()) {
-		String irOut = node.toString();
-		if(irOut != null) {
-		    irBuf.append(";");
-		    irBuf.append(node.toString());
-		    irBuf.append("\n");
-		}
-		tinyBuf.append(node.translate());
-	    }
-	    System.out.println(irBuf);
-	    System.out.println(tinyBuf);
+	    compiler = Compiler.fromOptions(options);
 	} catch(CompileException c) {
-	    ErrorPrinter.printError(args[0], c);
+	    System.err.println(c.msg);
+	    System.exit(2);
+	    return;
 	}
+	String input = new String(java.nio.file.Files.readAllBytes(new java.io.File(fileName).toPath()));
+	/* A cached result has only the code, not the IR and pass stats the
+	   reports are made from. */
+	if(timePasses || costReport)
+	    compiler = compiler.withCache(null);
+	CompileResult result = compiler.compile(fileName, input);
+	System.out.print(result.codeOutput());
+	if(costReport && result.ir != null)
+	    System.out.print(compiler.getCostModel().report(result.ir));
+	if(timePasses && result.passStats != null)
+	    System.err.print(PassManager.report(result.passStats));
+	if(result.phaseStats != null)
+	    System.err.print(CompilePhases.report(result.phaseStats));
     }
 }
@@ -0,0 +1,107 @@
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Off-heap memory for one compilation. Ints live in fixed-size blocks
+ * of direct memory taken from a pool shared by all compilations; close()
+ * gives every block back at once, so a long-running compiler reuses the
+ * same memory and the garbage collector never sees token or node data.
+ * Token and node values are interned, so each distinct identifier or
+ * literal is on the heap once however often it occurs.
+ *
+ * An arena is used by one thread at a time.
+ */
+public class CompileArena implements AutoCloseable {
+    static final int BLOCK_SHIFT = 16;
+    static final int BLOCK_INTS = 1 << BLOCK_SHIFT;
+    static final int BLOCK_MASK = BLOCK_INTS - 1;
+    private static final int MAX_POOLED_BLOCKS = 256;
+
+    private static final ConcurrentLinkedQueue<IntBuffer> pool = new ConcurrentLinkedQueue<IntBuffer>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private final List<IntBuffer> blocks = new ArrayList<IntBuffer>();
+    private final Map<String,Integer> ids = new HashMap<String,Integer>();
+    private final List<String> strings = new ArrayList<String>();
+
+    private IntBuffer block() {
+	IntBuffer block = pool.poll();
+	if(block != null)
+	    pooled.decrementAndGet();
+	else
+	    block = ByteBuffer.allocateDirect(BLOCK_INTS * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+	blocks.add(block);
+	return block;
+    }
+
+    public int intern(String s) {
+	Integer id = ids.get(s);
+	if(id == null) {
+	    id = strings.size();
+	    ids.put(s, id);
+	    strings.add(s);
+	}
+	return id;
+    }
+
+    public String string(int id) {
+	return strings.get(id);
+    }
+
+    /* Bytes of direct memory held, for statistics. */
+    public long offHeapBytes() {
+	return (long)blocks.size() * BLOCK_INTS * 4;
+    }
+
+    public void close() {
+	for(IntBuffer block : blocks) {
+	    if(pooled.incrementAndGet() <= MAX_POOLED_BLOCKS)
+		pool.offer(block);
+	    else
+		pooled.decrementAndGet();
+	}
+	blocks.clear();
+	ids.clear();
+	strings.clear();
+    }
+
+    /* A growable array of ints in the arena's blocks. */
+    public static class Ints {
+	private final CompileArena arena;
+	private IntBuffer[] blocks = new IntBuffer[4];
+	private int size;
+
+	public Ints(CompileArena arena) {
+	    this.arena = arena;
+	}
+
+	public int size() {
+	    return size;
+	}
+
+	public void add(int value) {
+	    int b = size >>> BLOCK_SHIFT;
+	    if(b == blocks.length)
+		blocks = Arrays.copyOf(blocks, b * 2);
+	    if(blocks[b] == null)
+		blocks[b] = arena.block();
+	    blocks[b].put(size & BLOCK_MASK, value);
+	    size++;
+	}
+
+	public int get(int i) {
+	    return blocks[i >>> BLOCK_SHIFT].get(i & BLOCK_MASK);
+	}
+
+	public void set(int i, int value) {
+	    blocks[i >>> BLOCK_SHIFT].put(i & BLOCK_MASK, value);
+	}
+
+	/* Drops the ints from size on, as popping a stack does. */
+	public void truncate(int size) {
+	    this.size = size;
+	}
+    }
+}
@@ -0,0 +1,214 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.*;
+
+/*
+ * Content-addressed cache of compiler output shared by any number of
+ * threads and processes. Entries are written to a temporary file and
+ * renamed into place, so readers only ever see complete entries; a
+ * hit bumps the file's modification time, which drives LRU eviction.
+ *
+ * Entry layout: int MAGIC, int FORMAT, then a deflated body of
+ * boolean hasIR, [string irListing, string tinyCode], boolean hasTree,
+ * [string treeXml], int diagnostics, {int line, int col, string msg,
+ * string text}*. Strings are int length plus UTF-8 bytes.
+ */
+public class CompileCache {
+    private static final int MAGIC = 0x4D434331;
+    private static final int FORMAT = 1;
+    private static final String SUFFIX = ".mcc";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final long TOUCH_INTERVAL_MILLIS = 60 * 1000;
+
+    private final Path dir;
+    private final long maxBytes;
+    private final AtomicLong size = new AtomicLong();
+
+    public CompileCache(Path dir, long maxBytes) throws IOException {
+	this.dir = dir;
+	this.maxBytes = maxBytes;
+	Files.createDirectories(dir);
+	size.set(scanSize());
+    }
+
+    public static String key(String source, String configuration) {
+	try {
+	    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+	    digest.update(Compiler.VERSION.getBytes(StandardCharsets.UTF_8));
+	    digest.update((byte) 0);
+	    digest.update(configuration.getBytes(StandardCharsets.UTF_8));
+	    digest.update((byte) 0);
+	    digest.update(source.getBytes(StandardCharsets.UTF_8));
+	    byte[] hash = digest.digest();
+	    char[] hex = new char[hash.length * 2];
+	    for(int i = 0; i < hash.length; i++) {
+		hex[2*i] = HEX[(hash[i] >> 4) & 0xF];
+		hex[2*i+1] = HEX[hash[i] & 0xF];
+	    }
+	    return new String(hex);
+	} catch(NoSuchAlgorithmException e) {
+	    throw new IllegalStateException(e);
+	}
+    }
+
+    public CompileResult get(String key, String fileName) {
+	Path entry = dir.resolve(key+SUFFIX);
+	byte[] bytes;
+	try {
+	    bytes = Files.readAllBytes(entry);
+	} catch(IOException e) {
+	    return null;
+	}
+
+	try(DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+	    if(in.readInt() != MAGIC || in.readInt() != FORMAT)
+		throw new IOException("bad cache entry header");
+	    DataInputStream body = new DataInputStream(new InflaterInputStream(in));
+
+	    CompileResult.Builder result = new CompileResult.Builder(fileName, null);
+	    result.fromCache = true;
+	    if(body.readBoolean()) {
+		result.irListing = readString(body);
+		result.tinyCode = readString(body);
+	    }
+	    if(body.readBoolean())
+		result.treeXml = readString(body);
+	    int diagnostics = body.readInt();
+	    for(int i = 0; i < diagnostics; i++) {
+		int line = body.readInt();
+		int col = body.readInt();
+		String msg = readString(body);
+		result.diagnostic(new CompileResult.Diagnostic(msg, line, col, readString(body)));
+	    }
+	    touch(entry);
+	    return result.build();
+	} catch(IOException e) {
+	    try {
+		Files.deleteIfExists(entry);
+	    } catch(IOException ignored) {
+	    }
+	    return null;
+	}
+    }
+
+    public void put(String key, CompileResult result) throws IOException {
+	ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	DataOutputStream out = new DataOutputStream(buf);
+	out.writeInt(MAGIC);
+	out.writeInt(FORMAT);
+	DeflaterOutputStream deflated = new DeflaterOutputStream(out, new Deflater(Deflater.BEST_SPEED));
+	DataOutputStream body = new DataOutputStream(deflated);
+	body.writeBoolean(result.tinyCode != null);
+	if(result.tinyCode != null) {
+	    writeString(body, result.irListing);
+	    writeString(body, result.tinyCode);
+	}
+	body.writeBoolean(result.treeXml != null);
+	if(result.treeXml != null)
+	    writeString(body, result.treeXml);
+	body.writeInt(result.diagnostics.size());
+	for(CompileResult.Diagnostic d : result.diagnostics) {
+	    body.writeInt(d.line);
+	    body.writeInt(d.col);
+	    writeString(body, d.msg);
+	    writeString(body, d.text);
+	}
+	body.flush();
+	deflated.finish();
+	byte[] bytes = buf.toByteArray();
+
+	Path tmp = Files.createTempFile(dir, "tmp", ".part");
+	try {
+	    Files.write(tmp, bytes);
+	    Files.move(tmp, dir.resolve(key+SUFFIX), StandardCopyOption.ATOMIC_MOVE,
+		       StandardCopyOption.REPLACE_EXISTING);
+	} finally {
+	    Files.deleteIfExists(tmp);
+	}
+
+	if(size.addAndGet(bytes.length) > maxBytes)
+	    evict();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+	byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+	out.writeInt(bytes.length);
+	out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+	byte[] bytes = new byte[in.readInt()];
+	in.readFully(bytes);
+	return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /* Recency only needs minute resolution, so most hits skip the metadata write. */
+    private static void touch(Path entry) {
+	try {
+	    long now = System.currentTimeMillis();
+	    if(now - Files.getLastModifiedTime(entry).toMillis() > TOUCH_INTERVAL_MILLIS)
+		Files.setLastModifiedTime(entry, FileTime.fromMillis(now));
+	} catch(IOException ignored) {
+	}
+    }
+
+    private long scanSize() throws IOException {
+	long total = 0;
+	for(Path entry : entries())
+	    total += sizeOf(entry);
+	return total;
+    }
+
+    private List<Path> entries() throws IOException {
+	try(Stream<Path> files = Files.list(dir)) {
+	    List<Path> entries = new ArrayList<Path>();
+	    files.filter((p) -> p.getFileName().toString().endsWith(SUFFIX)).forEach(entries::add);
+	    return entries;
+	}
+    }
+
+    private static long sizeOf(Path entry) {
+	try {
+	    return Files.size(entry);
+	} catch(IOException e) {
+	    return 0;
+	}
+    }
+
+    private static long modified(Path entry) {
+	try {
+	    return Files.getLastModifiedTime(entry).toMillis();
+	} catch(IOException e) {
+	    return 0;
+	}
+    }
+
+    /* Drops least recently used entries until the cache is at 3/4 of its limit. */
+    private synchronized void evict() throws IOException {
+	List<Path> entries = entries();
+	Map<Path, Long> times = new HashMap<Path, Long>();
+	long total = 0;
+	for(Path entry : entries) {
+	    times.put(entry, modified(entry));
+	    total += sizeOf(entry);
+	}
+	entries.sort(Comparator.comparingLong(times::get));
+
+	long target = maxBytes / 4 * 3;
+	for(Path entry : entries) {
+	    if(total <= target)
+		break;
+	    long entrySize = sizeOf(entry);
+	    if(Files.deleteIfExists(entry))
+		total -= entrySize;
+	}
+	size.set(total);
+    }
+}
@@ -0,0 +1,70 @@
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+public class CompileClient {
+    public static void main(String[] args) throws IOException {
+	Path socket = CompileDaemon.defaultSocket();
+	String mode = "code";
+	boolean inline = false;
+	List<String> options = new ArrayList<String>();
+	List<String> files = new ArrayList<String>();
+	for(String arg : args) {
+	    if(arg.startsWith("-socket="))
+		socket = Paths.get(arg.substring(8));
+	    else if(arg.equals("-tree"))
+		mode = "tree";
+	    else if(arg.equals("-inline"))
+		inline = true;
+	    else if(arg.startsWith("-"))
+		options.add(arg);
+	    else
+		files.add(arg);
+	}
+
+	SocketChannel channel;
+	try {
+	    channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+	    channel.connect(UnixDomainSocketAddress.of(socket));
+	} catch(IOException e) {
+	    System.err.println("Could not reach compile daemon at "+socket+": "+e.getMessage());
+	    System.exit(2);
+	    return;
+	}
+
+	int worst = CompileDaemon.STATUS_OK;
+	try(SocketChannel c = channel) {
+	    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(c)));
+	    DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(c)));
+	    for(String file : files) {
+		Path path = Paths.get(file).toAbsolutePath();
+		out.writeUTF(mode);
+		out.writeUTF(String.join(" ", options));
+		out.writeUTF(inline ? file : path.toString());
+		out.writeBoolean(inline);
+		if(inline) {
+		    byte[] source = Files.readAllBytes(path);
+		    out.writeInt(source.length);
+		    out.write(source);
+		}
+		out.flush();
+
+		int status = in.readInt();
+		byte[] chunk = new byte[CompileDaemon.CHUNK_SIZE];
+		int len;
+		while((len = in.readInt()) > 0) {
+		    in.readFully(chunk, 0, len);
+		    System.out.write(chunk, 0, len);
+		}
+		System.out.flush();
+		worst = Math.max(worst, status);
+	    }
+	}
+	if(worst == CompileDaemon.STATUS_FAILURE)
+	    System.exit(2);
+    }
+}
@@ -0,0 +1,169 @@
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ * Long-running compile server on a Unix domain socket.
+ *
+ * Request:  UTF mode ("code" or "tree"), UTF options (space separated
+ *           CodeGenerator flags), UTF file name, boolean inline, and if
+ *           inline an int length followed by the UTF-8 source bytes;
+ *           otherwise the server reads the named file.
+ * Response: int status (STATUS_*), then the output as a sequence of
+ *           length-prefixed UTF-8 chunks ended by a zero length. A bad
+ *           request or an internal error is STATUS_FAILURE with the
+ *           message as output, on which the client exits non-zero.
+ *
+ * A connection may carry any number of requests.
+ */
+public class CompileDaemon {
+    public static final int STATUS_OK = 0, STATUS_COMPILE_ERROR = 1, STATUS_FAILURE = 2;
+    static final int CHUNK_SIZE = 16 * 1024;
+    private static final int WARMUP_ROUNDS = 300;
+    /* Compilers kept for distinct option strings; past this they are
+       all dropped, being only configuration, and made again on demand. */
+    private static final int MAX_COMPILERS = 64;
+
+    private static final String WARMUP_PROGRAM =
+	"PROGRAM warmup\nBEGIN\n\tINT i, j;\n\tFLOAT x, y;\n\tSTRING nl := \"\\n\";\n" +
+	"\tFUNCTION VOID main()\n\tBEGIN\n\t\ti := 10;\n\t\tx := 1.5;\n" +
+	"\t\tWHILE (i > 0)\n\t\t\tIF (i = 5)\n\t\t\t\ty := x * 2.0 / (x + 1.0);\n" +
+	"\t\t\tELSE\n\t\t\t\tj := i * 3 - 1;\n\t\t\tENDIF\n\t\t\ti := i - 1;\n\t\tENDWHILE\n" +
+	"\t\tWRITE(x, nl, j);\n\tEND\nEND\n";
+
+    private final Path socketPath;
+    private final Map<String, Compiler> compilers = new ConcurrentHashMap<String, Compiler>();
+    private final ExecutorService workers = Executors.newCachedThreadPool((r) -> {
+	    Thread t = new Thread(r, "compile-worker");
+	    t.setDaemon(true);
+	    return t;
+	});
+    private final boolean verbose;
+
+    public CompileDaemon(Path socketPath, boolean verbose) {
+	this.socketPath = socketPath;
+	this.verbose = verbose;
+    }
+
+    public static Path defaultSocket() {
+	return Paths.get(System.getProperty("java.io.tmpdir"), "micro-compiler.sock");
+    }
+
+    private Compiler compilerFor(String options) {
+	Compiler compiler = compilers.get(options);
+	if(compiler != null)
+	    return compiler;
+	if(compilers.size() >= MAX_COMPILERS)
+	    compilers.clear();
+	return compilers.computeIfAbsent(options, (o) ->
+	    Compiler.fromOptions(o.isEmpty() ? new ArrayList<String>() : Arrays.asList(o.split(" ")))
+	    .withMetrics(CompileMetrics.platform()));
+    }
+
+    public void warmUp() {
+	for(String options : new String[] {"", "-O1", "-O2"}) {
+	    Compiler compiler = compilerFor(options);
+	    for(int i = 0; i < WARMUP_ROUNDS; i++)
+		compiler.compile("warmup.micro", WARMUP_PROGRAM);
+	}
+	CompileMetrics.platform().reset();
+    }
+
+    public void serve() throws IOException {
+	Files.deleteIfExists(socketPath);
+	try(ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+	    server.bind(UnixDomainSocketAddress.of(socketPath));
+	    if(verbose)
+		System.err.println("Listening on "+socketPath);
+	    while(true) {
+		SocketChannel client = server.accept();
+		workers.execute(() -> handle(client));
+	    }
+	} finally {
+	    Files.deleteIfExists(socketPath);
+	}
+    }
+
+    private void handle(SocketChannel channel) {
+	try(SocketChannel c = channel) {
+	    DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(c)));
+	    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(c), CHUNK_SIZE));
+	    while(true) {
+		String mode;
+		try {
+		    mode = in.readUTF();
+		} catch(EOFException e) {
+		    return;
+		}
+		String options = in.readUTF();
+		String fileName = in.readUTF();
+		String source = null;
+		if(in.readBoolean()) {
+		    byte[] bytes = new byte[in.readInt()];
+		    in.readFully(bytes);
+		    source = new String(bytes, StandardCharsets.UTF_8);
+		}
+		serveRequest(mode, options, fileName, source, out);
+	    }
+	} catch(IOException e) {
+	    if(verbose)
+		System.err.println("Connection failed: "+e.getMessage());
+	}
+    }
+
+    private void serveRequest(String mode, String options, String fileName, String source,
+			      DataOutputStream out) throws IOException {
+	long start = System.nanoTime();
+	int status;
+	String text;
+	try {
+	    if(source == null)
+		source = new String(Files.readAllBytes(Paths.get(fileName)));
+	    CompileResult result = compilerFor(options).compile(fileName, source);
+	    text = mode.equals("tree") ? result.treeOutput() : result.codeOutput();
+	    status = result.succeeded() ? STATUS_OK : STATUS_COMPILE_ERROR;
+	} catch(IOException | CompileException e) {
+	    text = e.getMessage()+"\n";
+	    status = STATUS_FAILURE;
+	} catch(RuntimeException e) {
+	    text = "Internal compiler error: "+e+"\n";
+	    status = STATUS_FAILURE;
+	    if(verbose)
+		e.printStackTrace();
+	}
+
+	out.writeInt(status);
+	byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+	for(int off = 0; off < bytes.length; off += CHUNK_SIZE) {
+	    int len = Math.min(CHUNK_SIZE, bytes.length - off);
+	    out.writeInt(len);
+	    out.write(bytes, off, len);
+	    out.flush();
+	}
+	out.writeInt(0);
+	out.flush();
+
+	if(verbose)
+	    System.err.printf("%s %s: %.3f ms%n", mode, fileName, (System.nanoTime() - start) / 1e6);
+    }
+
+    public static void main(String[] args) throws IOException {
+	Path socket = defaultSocket();
+	boolean verbose = false;
+	for(String arg : args) {
+	    if(arg.startsWith("-socket="))
+		socket = Paths.get(arg.substring(8));
+	    else if(arg.equals("-verbose"))
+		verbose = true;
+	}
+
+	CompileDaemon daemon = new CompileDaemon(socket, verbose);
+	daemon.warmUp();
+	daemon.serve();
+    }
+}
@@ -1,19 +1,19 @@
+/* offset is where in the program's SourceFile the error is, or -1. */
 public class CompileException extends RuntimeException {
-    public final int line, col;
+    public final int offset;
     public final String msg;
     
-    public CompileException(String msg, int line, int col) {
-	super(msg+" @ "+line+","+col);
+    public CompileException(String msg, int offset) {
+	super(offset < 0 ? msg : msg+" @ "+offset);
 	this.msg = msg;
-	this.line = line;
-	this.col = col;
+	this.offset = offset;
     }
 
     public CompileException(String msg, Token lastToken) {
-	this(msg, lastToken.line, lastToken.col);
+	this(msg, lastToken.offset);
     }
 
     public CompileException(String msg) {
-	this(msg, 0, 0);
+	this(msg, -1);
     }
 }
@@ -0,0 +1,198 @@
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+/*
+ * Counters and latency histograms for the compilations of a long-lived
+ * JVM, such as a CompileDaemon's, published as a platform MXBean for
+ * JConsole or any JMX client. Recording takes no locks and allocates
+ * nothing: the counters are LongAdders and each histogram is a fixed
+ * array of atomic bucket counts, so a compiler can keep it on.
+ */
+public class CompileMetrics implements CompileMetricsMXBean {
+    public static final String OBJECT_NAME = "little.compiler:type=CompileMetrics";
+
+    /* A histogram's summary, in nanoseconds. */
+    public static class Latency {
+	private final long count, mean, p50, p90, p99, max;
+
+	@ConstructorParameters({"count", "meanNanos", "p50Nanos", "p90Nanos", "p99Nanos", "maxNanos"})
+	public Latency(long count, long mean, long p50, long p90, long p99, long max) {
+	    this.count = count;
+	    this.mean = mean;
+	    this.p50 = p50;
+	    this.p90 = p90;
+	    this.p99 = p99;
+	    this.max = max;
+	}
+
+	public long getCount() { return count; }
+	public long getMeanNanos() { return mean; }
+	public long getP50Nanos() { return p50; }
+	public long getP90Nanos() { return p90; }
+	public long getP99Nanos() { return p99; }
+	public long getMaxNanos() { return max; }
+    }
+
+    /*
+     * An HDR-style histogram: values below 2^SUB_BITS each have a bucket,
+     * and every power of two above that is split into 2^SUB_BITS buckets,
+     * so any value is placed within 1/64 of itself. Values are clamped
+     * to 2^40 ns, about 18 minutes.
+     */
+    static class Histogram {
+	private static final int SUB_BITS = 6, SUB = 1 << SUB_BITS;
+	private static final int MAX_BITS = 40;
+	private static final long MAX = (1L << MAX_BITS) - 1;
+	private static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder total = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	void record(long nanos) {
+	    long v = Math.max(0, Math.min(nanos, MAX));
+	    buckets.getAndIncrement(bucket(v));
+	    count.increment();
+	    total.add(v);
+	    max.accumulate(v);
+	}
+
+	private static int bucket(long v) {
+	    if(v < SUB)
+		return (int)v;
+	    int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+	    return ((shift + 1) << SUB_BITS) + (int)((v >>> shift) & (SUB - 1));
+	}
+
+	/* The smallest value in bucket b. */
+	private static long lowest(int b) {
+	    if(b < SUB)
+		return b;
+	    int shift = (b >>> SUB_BITS) - 1;
+	    return (long)(SUB + (b & (SUB - 1))) << shift;
+	}
+
+	/* The largest value in the bucket holding the given fraction of
+	   the values recorded. */
+	long percentile(double fraction) {
+	    long[] counts = new long[BUCKETS];
+	    long n = 0;
+	    for(int b = 0; b < BUCKETS; b++)
+		n += counts[b] = buckets.get(b);
+	    long rank = Math.max(1, (long)Math.ceil(fraction * n));
+	    for(int b = 0; b < BUCKETS; b++) {
+		if((rank -= counts[b]) <= 0)
+		    return Math.min(b + 1 < BUCKETS ? lowest(b + 1) - 1 : MAX, max.get());
+	    }
+	    return 0;
+	}
+
+	Latency summary() {
+	    long n = count.sum();
+	    return new Latency(n, n == 0 ? 0 : total.sum() / n, percentile(0.5), percentile(0.9),
+			       percentile(0.99), max.get());
+	}
+
+	void reset() {
+	    for(int b = 0; b < BUCKETS; b++)
+		buckets.set(b, 0);
+	    count.reset();
+	    total.reset();
+	    max.reset();
+	}
+    }
+
+    private final LongAdder compiles = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder tokens = new LongAdder();
+    private final LongAdder nodes = new LongAdder();
+    private final LongAdder instructions = new LongAdder();
+    private final Histogram compileLatency = new Histogram();
+    private final Histogram[] phaseLatency = new Histogram[CompilePhases.Phase.values().length];
+
+    public CompileMetrics() {
+	for(int i = 0; i < phaseLatency.length; i++)
+	    phaseLatency[i] = new Histogram();
+    }
+
+    private static CompileMetrics platform;
+
+    /* The metrics registered with the platform MBean server, on first use. */
+    public static synchronized CompileMetrics platform() {
+	if(platform == null) {
+	    CompileMetrics metrics = new CompileMetrics();
+	    try {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(OBJECT_NAME));
+	    } catch(JMException e) {
+		throw new IllegalStateException("Cannot register "+OBJECT_NAME, e);
+	    }
+	    platform = metrics;
+	}
+	return platform;
+    }
+
+    void compiled(long nanos, boolean succeeded) {
+	compiles.increment();
+	if(!succeeded)
+	    errors.increment();
+	compileLatency.record(nanos);
+    }
+
+    void phase(CompilePhases.Phase phase, long nanos) {
+	phaseLatency[phase.ordinal()].record(nanos);
+    }
+
+    void tokens(long count) {
+	tokens.add(count);
+    }
+
+    void nodes(long count) {
+	nodes.add(count);
+    }
+
+    void instructions(long count) {
+	instructions.add(count);
+    }
+
+    public long getCompiles() {
+	return compiles.sum();
+    }
+
+    public long getErrors() {
+	return errors.sum();
+    }
+
+    public long getTokens() {
+	return tokens.sum();
+    }
+
+    public long getNodes() {
+	return nodes.sum();
+    }
+
+    public long getInstructions() {
+	return instructions.sum();
+    }
+
+    public Map<String, Latency> getLatency() {
+	Map<String, Latency> latency = new LinkedHashMap<String, Latency>();
+	latency.put("Compile", compileLatency.summary());
+	for(CompilePhases.Phase phase : CompilePhases.Phase.values())
+	    latency.put(phase.label, phaseLatency[phase.ordinal()].summary());
+	return latency;
+    }
+
+    public void reset() {
+	compiles.reset();
+	errors.reset();
+	tokens.reset();
+	nodes.reset();
+	instructions.reset();
+	compileLatency.reset();
+	for(Histogram h : phaseLatency)
+	    h.reset();
+    }
+}
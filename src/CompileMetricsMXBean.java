@@ -0,0 +1,15 @@
+import java.util.Map;
+
+/* The attributes and operations JMX clients see of CompileMetrics. */
+public interface CompileMetricsMXBean {
+    long getCompiles();
+    long getErrors();
+    long getTokens();
+    long getNodes();
+    long getInstructions();
+
+    /* Latency of each phase, and of whole compiles as "Compile". */
+    Map<String, CompileMetrics.Latency> getLatency();
+
+    void reset();
+}
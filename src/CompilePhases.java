@@ -0,0 +1,220 @@
+import java.util.*;
+import jdk.jfr.*;
+
+/*
+ * Times the phases of one compilation. Each phase is a JFR event, which
+ * costs next to nothing unless a recording (such as one started with
+ * jcmd <pid> JFR.start) has enabled it. A compiler made with -stats
+ * also keeps a PhaseStats row per phase, with its wall time and the
+ * bytes the compiling thread allocated, for CodeGenerator to print, and
+ * a compiler with CompileMetrics records each phase's latency there.
+ * The counts an event, row or metric carries are only worked out when
+ * one of them wants them.
+ */
+class CompilePhases {
+    enum Phase {
+	SCAN("Scan"), PARSE("Parse"), PRINT_TREE("Print Tree"), RESOLVE("Resolve"),
+	GENERATE("Generate IR"), OPTIMIZE("Optimize"), TRANSLATE("Translate");
+
+	final String label;
+
+	Phase(String label) {
+	    this.label = label;
+	}
+    }
+
+    @Category("Little Compiler")
+    @StackTrace(false)
+    static abstract class PhaseEvent extends Event {
+	@Label("File")
+	String fileName;
+
+	abstract Phase phase();
+
+	/* The phase's output, for the stats table. */
+	abstract long count();
+	abstract String unit();
+    }
+
+    @Name("little.Scan")
+    @Label("Scan")
+    static class ScanEvent extends PhaseEvent {
+	@Label("Tokens")
+	int tokens;
+
+	Phase phase() { return Phase.SCAN; }
+	long count() { return tokens; }
+	String unit() { return "tokens"; }
+    }
+
+    @Name("little.Parse")
+    @Label("Parse")
+    static class ParseEvent extends PhaseEvent {
+	@Label("Tokens")
+	int tokens;
+	@Label("AST Nodes")
+	int nodes;
+
+	Phase phase() { return Phase.PARSE; }
+	long count() { return nodes; }
+	String unit() { return "nodes"; }
+    }
+
+    @Name("little.PrintTree")
+    @Label("Print Tree")
+    static class TreeEvent extends PhaseEvent {
+	@Label("Characters")
+	@DataAmount
+	long bytes;
+
+	Phase phase() { return Phase.PRINT_TREE; }
+	long count() { return bytes; }
+	String unit() { return "bytes"; }
+    }
+
+    @Name("little.Resolve")
+    @Label("Resolve")
+    static class ResolveEvent extends PhaseEvent {
+	@Label("AST Nodes")
+	int nodes;
+
+	Phase phase() { return Phase.RESOLVE; }
+	long count() { return nodes; }
+	String unit() { return "nodes"; }
+    }
+
+    @Name("little.Generate")
+    @Label("Generate IR")
+    static class GenerateEvent extends PhaseEvent {
+	@Label("AST Nodes")
+	int nodes;
+	@Label("IR Instructions")
+	int instructions;
+
+	Phase phase() { return Phase.GENERATE; }
+	long count() { return instructions; }
+	String unit() { return "instructions"; }
+    }
+
+    @Name("little.Optimize")
+    @Label("Optimize")
+    static class OptimizeEvent extends PhaseEvent {
+	@Label("Passes")
+	int passes;
+	@Label("IR Instructions")
+	int instructions;
+
+	Phase phase() { return Phase.OPTIMIZE; }
+	long count() { return instructions; }
+	String unit() { return "instructions"; }
+    }
+
+    @Name("little.Translate")
+    @Label("Translate")
+    @Description("Rendering the IR listing and translating the IR to Tiny")
+    static class TranslateEvent extends PhaseEvent {
+	@Label("IR Instructions")
+	int instructions;
+	@Label("Bytes Emitted")
+	@DataAmount
+	long bytes;
+
+	Phase phase() { return Phase.TRANSLATE; }
+	long count() { return bytes; }
+	String unit() { return "bytes"; }
+    }
+
+    static class PhaseStats {
+	public final String name;
+	public final long nanos;
+	public final long allocated;
+	public final long count;
+	public final String unit;
+
+	PhaseStats(String name, long nanos, long allocated, long count, String unit) {
+	    this.name = name;
+	    this.nanos = nanos;
+	    this.allocated = allocated;
+	    this.count = count;
+	    this.unit = unit;
+	}
+    }
+
+    private final String fileName;
+    private final List<PhaseStats> stats;
+    private final CompileMetrics metrics;
+    private long start, startAlloc, nanos, allocated;
+
+    CompilePhases(String fileName, boolean keepStats, CompileMetrics metrics) {
+	this.fileName = fileName;
+	this.stats = keepStats ? new ArrayList<PhaseStats>() : null;
+	this.metrics = metrics;
+    }
+
+    /* The rows so far, or null without -stats. */
+    List<PhaseStats> getStats() {
+	return stats;
+    }
+
+    <E extends PhaseEvent> E begin(E event) {
+	event.begin();
+	if(stats != null)
+	    startAlloc = PassManager.allocatedBytes();
+	if(stats != null || metrics != null)
+	    start = System.nanoTime();
+	return event;
+    }
+
+    /*
+     * Ends the phase event began, returning whether its counts are
+     * wanted; if so, set them and call record.
+     */
+    boolean end(PhaseEvent event) {
+	if(stats != null || metrics != null)
+	    nanos = System.nanoTime() - start;
+	if(stats != null)
+	    allocated = PassManager.allocatedBytes() - startAlloc;
+	if(metrics != null)
+	    metrics.phase(event.phase(), nanos);
+	event.end();
+	return stats != null || metrics != null || event.shouldCommit();
+    }
+
+    void record(PhaseEvent event) {
+	if(stats != null)
+	    stats.add(new PhaseStats(event.phase().label, nanos, allocated, event.count(), event.unit()));
+	if(metrics != null) {
+	    switch(event.phase()) {
+	    case SCAN:
+		metrics.tokens(event.count());
+		break;
+	    case PARSE:
+		metrics.nodes(event.count());
+		break;
+	    case GENERATE:
+		metrics.instructions(event.count());
+		break;
+	    default:
+		break;
+	    }
+	}
+	if(event.shouldCommit()) {
+	    event.fileName = fileName;
+	    event.commit();
+	}
+    }
+
+    public static String report(List<PhaseStats> stats) {
+	StringBuffer buf = new StringBuffer();
+	buf.append(String.format("%-12s %10s %12s %12s%n", "phase", "time(ms)", "alloc(B)", "output"));
+	long totalNanos = 0, totalAlloc = 0;
+	for(PhaseStats s : stats) {
+	    buf.append(String.format("%-12s %10.3f %12d %12d %s%n",
+				     s.name, s.nanos / 1e6, s.allocated, s.count, s.unit));
+	    totalNanos += s.nanos;
+	    totalAlloc += s.allocated;
+	}
+	buf.append(String.format("%-12s %10.3f %12d%n", "total", totalNanos / 1e6, totalAlloc));
+	return buf.toString();
+    }
+}
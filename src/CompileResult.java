@@ -0,0 +1,116 @@
+import java.util.*;
+
+public class CompileResult {
+    static class Diagnostic {
+	public final String msg;
+	public final int line, col;
+	public final String text;
+
+	Diagnostic(CompileException c, SourceFile source) {
+	    this(c.msg, source.line(c.offset), source.col(c.offset), ErrorPrinter.format(source, c));
+	}
+
+	Diagnostic(String msg, int line, int col, String text) {
+	    this.msg = msg;
+	    this.line = line;
+	    this.col = col;
+	    this.text = text;
+	}
+
+	@Override
+	public String toString() {
+	    return text;
+	}
+    }
+
+    public final String fileName;
+    public final Token[] tokens;
+    public final AST ast;
+    public final List<IRNode> ir;
+    public final List<PassManager.PassStats> passStats;
+    public final List<CompilePhases.PhaseStats> phaseStats;
+    public final String irListing;
+    public final String tinyCode;
+    public final String treeXml;
+    public final List<Diagnostic> diagnostics;
+    public final boolean fromCache;
+
+    private CompileResult(Builder b) {
+	fileName = b.fileName;
+	tokens = b.tokens;
+	ast = b.ast;
+	ir = b.ir;
+	passStats = b.passStats;
+	phaseStats = b.phases != null ? b.phases.getStats() : null;
+	irListing = b.irListing;
+	tinyCode = b.tinyCode;
+	treeXml = b.treeXml;
+	diagnostics = Collections.unmodifiableList(b.diagnostics);
+	fromCache = b.fromCache;
+    }
+
+    public boolean succeeded() {
+	return diagnostics.isEmpty();
+    }
+
+    public String diagnosticText() {
+	StringBuffer buf = new StringBuffer();
+	for(Diagnostic d : diagnostics)
+	    buf.append(d.text);
+	return buf.toString();
+    }
+
+    /* What CodeGenerator prints: the IR listing and Tiny code, or the errors. */
+    public String codeOutput() {
+	if(!succeeded())
+	    return diagnosticText();
+	return irListing+"\n"+tinyCode+"\n";
+    }
+
+    /* What LittleParser prints: the tree, or the errors. */
+    public String treeOutput() {
+	if(treeXml == null)
+	    return diagnosticText();
+	return treeXml;
+    }
+
+    static class Builder {
+	final String fileName;
+	private final String source;
+	Token[] tokens;
+	AST ast;
+	List<IRNode> ir;
+	/* The functions the code was generated from, main first. */
+	List<AST.ASTNode> functions;
+	List<PassManager.PassStats> passStats;
+	CompilePhases phases;
+	String irListing, tinyCode, treeXml;
+	boolean fromCache;
+	private SourceFile sourceFile;
+	private final List<Diagnostic> diagnostics = new ArrayList<Diagnostic>();
+
+	Builder(String fileName, String source) {
+	    this.fileName = fileName;
+	    this.source = source;
+	}
+
+	/* The lines of source, as the scanner found them if it ran. */
+	SourceFile sourceFile() {
+	    if(sourceFile == null)
+		sourceFile = new SourceFile(source);
+	    return sourceFile;
+	}
+
+	void error(CompileException c) {
+	    diagnostics.add(new Diagnostic(c, sourceFile()));
+	}
+
+	void diagnostic(Diagnostic d) {
+	    diagnostics.add(d);
+	}
+
+	CompileResult build() {
+	    return new CompileResult(this);
+	}
+    }
+}
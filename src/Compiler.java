@@ -0,0 +1,348 @@
+import java.util.*;
+
+/*
+ * Runs the whole pipeline on one source text. A Compiler holds only
+ * immutable configuration, so one instance may be shared by any number
+ * of threads; all per-compilation state lives in the CompileResult.
+ */
+public class Compiler {
+    public static final String VERSION = "1.1";
+
+    private final List<String> pipeline;
+    private final boolean verify;
+    private final CompileCache cache;
+    private final boolean parallel;
+    private final boolean offHeap;
+    private final boolean predictive;
+    private final boolean stats;
+    private final CompileMetrics metrics;
+    private final CostModel costs;
+
+    public Compiler() {
+	this(PassManager.preset(0), false);
+    }
+
+    public Compiler(List<String> pipeline, boolean verify) {
+	this(pipeline, verify, null);
+    }
+
+    public Compiler(List<String> pipeline, boolean verify, CompileCache cache) {
+	this(pipeline, verify, cache, false);
+    }
+
+    public Compiler(List<String> pipeline, boolean verify, CompileCache cache, boolean parallel) {
+	this(pipeline, verify, cache, parallel, false, false, false, null, CostModel.DEFAULT);
+    }
+
+    private Compiler(List<String> pipeline, boolean verify, CompileCache cache, boolean parallel,
+		     boolean offHeap, boolean predictive, boolean stats, CompileMetrics metrics,
+		     CostModel costs) {
+	for(String pass : pipeline)
+	    PassManager.lookup(pass);
+	this.pipeline = Collections.unmodifiableList(new ArrayList<String>(pipeline));
+	this.verify = verify;
+	this.cache = cache;
+	this.parallel = parallel;
+	this.offHeap = offHeap;
+	this.predictive = predictive;
+	this.stats = stats;
+	this.metrics = metrics;
+	this.costs = costs;
+    }
+
+    public Compiler withCache(CompileCache cache) {
+	return new Compiler(pipeline, verify, cache, parallel, offHeap, predictive, stats, metrics, costs);
+    }
+
+    /*
+     * A parallel compiler scans a large program in chunks and parses and
+     * generates its functions concurrently.
+     */
+    public Compiler withParallel(boolean parallel) {
+	return new Compiler(pipeline, verify, cache, parallel, offHeap, predictive, stats, metrics, costs);
+    }
+
+    /*
+     * An off-heap compiler keeps tokens and the syntax tree in a
+     * CompileArena that is released when the compilation ends, so its
+     * results have no tokens or ast. Scanning and parsing are then
+     * sequential even in a parallel compiler.
+     */
+    public Compiler withOffHeap(boolean offHeap) {
+	return new Compiler(pipeline, verify, cache, parallel, offHeap, predictive, stats, metrics, costs);
+    }
+
+    /*
+     * A predictive compiler parses with a PredictiveParser, which builds
+     * the same tree faster, except that a parallel compiler's functions
+     * are still parsed by LittleParser.
+     */
+    public Compiler withPredictive(boolean predictive) {
+	return new Compiler(pipeline, verify, cache, parallel, offHeap, predictive, stats, metrics, costs);
+    }
+
+    /*
+     * A compiler with stats times each phase of a compilation into the
+     * result's phaseStats; the phases are JFR events either way.
+     */
+    public Compiler withStats(boolean stats) {
+	return new Compiler(pipeline, verify, cache, parallel, offHeap, predictive, stats, metrics, costs);
+    }
+
+    /* A compiler with metrics counts its compiles and times their phases there. */
+    public Compiler withMetrics(CompileMetrics metrics) {
+	return new Compiler(pipeline, verify, cache, parallel, offHeap, predictive, stats, metrics, costs);
+    }
+
+    /* The costs the passes weigh code by. */
+    public Compiler withCosts(CostModel costs) {
+	return new Compiler(pipeline, verify, cache, parallel, offHeap, predictive, stats, metrics, costs);
+    }
+
+    public static Compiler forLevel(int level) {
+	return new Compiler(PassManager.preset(level), false);
+    }
+
+    public static final long DEFAULT_CACHE_BYTES = 256L << 20;
+
+    /*
+     * Accepts the CodeGenerator flags -O<n>, -passes=a,b,c, -peval[=budget],
+     * -debug, -parallel, -offheap, -ll1, -stats, -metrics (to the platform
+     * CompileMetrics), -cache=dir, -cache-size=megabytes and
+     * -loop-registers=n, the budget of the pipeline's promote-loops, and
+     * -costs=name=cycles,... for the CostModel.
+     */
+    public static Compiler fromOptions(List<String> options) {
+	int level = 0;
+	List<String> passNames = null;
+	boolean debug = false, parallel = false, offHeap = false, predictive = false, stats = false;
+	CompileMetrics metrics = null;
+	CostModel costs = CostModel.DEFAULT;
+	String peval = null;
+	String cacheDir = null;
+	String loopRegisters = null;
+	long cacheBytes = DEFAULT_CACHE_BYTES;
+	for(String opt : options) {
+	    if(opt.startsWith("-O")) {
+		try {
+		    level = Integer.parseInt(opt.substring(2));
+		} catch(NumberFormatException e) {
+		    throw new CompileException("Bad optimization level '"+opt+"', expected -O<n>");
+		}
+	    }
+	    else if(opt.startsWith("-passes="))
+		passNames = opt.length() > 8 ? Arrays.asList(opt.substring(8).split(",")) : new ArrayList<String>();
+	    else if(opt.equals("-debug"))
+		debug = true;
+	    else if(opt.equals("-parallel"))
+		parallel = true;
+	    else if(opt.equals("-offheap"))
+		offHeap = true;
+	    else if(opt.equals("-ll1"))
+		predictive = true;
+	    else if(opt.equals("-stats"))
+		stats = true;
+	    else if(opt.equals("-metrics"))
+		metrics = CompileMetrics.platform();
+	    else if(opt.startsWith("-peval"))
+		peval = "peval"+opt.substring(6);
+	    else if(opt.startsWith("-cache="))
+		cacheDir = opt.substring(7);
+	    else if(opt.startsWith("-cache-size="))
+		cacheBytes = cacheBytes(opt);
+	    else if(opt.startsWith("-costs="))
+		costs = CostModel.parse(opt.substring(7));
+	    else if(opt.startsWith("-loop-registers="))
+		loopRegisters = "promote-loops="+opt.substring(16);
+	    else
+		throw new CompileException("Unknown compiler option '"+opt+"'");
+	}
+
+	List<String> pipeline = new ArrayList<String>(passNames != null ? passNames : PassManager.preset(level));
+	if(peval != null)
+	    pipeline.add(0, peval);
+	for(int i = 0; loopRegisters != null && i < pipeline.size(); i++) {
+	    if(pipeline.get(i).equals("promote-loops"))
+		pipeline.set(i, loopRegisters);
+	}
+	if(cacheDir == null)
+	    return new Compiler(pipeline, debug, null, parallel, offHeap, predictive, stats, metrics, costs);
+	try {
+	    return new Compiler(pipeline, debug, new CompileCache(java.nio.file.Paths.get(cacheDir), cacheBytes), parallel, offHeap, predictive, stats, metrics, costs);
+	} catch(java.io.IOException e) {
+	    throw new CompileException("Cannot open compile cache '"+cacheDir+"': "+e.getMessage());
+	}
+    }
+
+    /* The bytes in a -cache-size=megabytes option. */
+    private static long cacheBytes(String opt) {
+	long megabytes;
+	try {
+	    megabytes = Long.parseLong(opt.substring(12));
+	} catch(NumberFormatException e) {
+	    throw new CompileException("Bad cache size '"+opt+"', expected -cache-size=megabytes");
+	}
+	if(megabytes < 0 || megabytes > Long.MAX_VALUE >> 20)
+	    throw new CompileException("Bad cache size '"+opt+"', megabytes must be between 0 and "+(Long.MAX_VALUE >> 20));
+	return megabytes << 20;
+    }
+
+    public List<String> getPipeline() {
+	return pipeline;
+    }
+
+    public CostModel getCostModel() {
+	return costs;
+    }
+
+    public CompileResult compile(String fileName, String source) {
+	if(metrics == null)
+	    return compileCached(fileName, source);
+	long start = System.nanoTime();
+	CompileResult result = compileCached(fileName, source);
+	metrics.compiled(System.nanoTime() - start, result.succeeded());
+	return result;
+    }
+
+    private CompileResult compileCached(String fileName, String source) {
+	if(cache == null)
+	    return compileUncached(fileName, source);
+
+	String key = CompileCache.key(source, (verify ? "verify;" : "")+(costs != CostModel.DEFAULT ? "costs="+costs+";" : "")+
+				      String.join(",", pipeline));
+	CompileResult cached = cache.get(key, fileName);
+	if(cached != null)
+	    return cached;
+	CompileResult result = compileUncached(fileName, source);
+	try {
+	    cache.put(key, result);
+	} catch(java.io.IOException ignored) {
+	}
+	return result;
+    }
+
+    private CompileResult compileUncached(String fileName, String source) {
+	CompileResult.Builder result = new CompileResult.Builder(fileName, source);
+	CompilePhases phases = result.phases = new CompilePhases(fileName, stats, metrics);
+	try {
+	    if(offHeap) {
+		compileOffHeap(result);
+		return result.build();
+	    }
+	    CompilePhases.ScanEvent scan = phases.begin(new CompilePhases.ScanEvent());
+	    SourceFile lines = result.sourceFile();
+	    result.tokens = parallel ? LittleScanner.scanParallel(lines) : new LittleScanner(lines).getTokens();
+	    if(phases.end(scan)) {
+		scan.tokens = result.tokens.length;
+		phases.record(scan);
+	    }
+
+	    CompilePhases.ParseEvent parse = phases.begin(new CompilePhases.ParseEvent());
+	    if(parallel)
+		result.ast = LittleParser.parseParallel(result.tokens);
+	    else if(predictive)
+		result.ast = PredictiveParser.parse(result.tokens);
+	    else
+		result.ast = new LittleParser(result.tokens).getAST();
+	    if(phases.end(parse)) {
+		parse.tokens = result.tokens.length;
+		parse.nodes = AST.NODES.count(result.ast.getRoot());
+		phases.record(parse);
+	    }
+
+	    CompilePhases.TreeEvent tree = phases.begin(new CompilePhases.TreeEvent());
+	    result.treeXml = result.ast.toXml();
+	    if(phases.end(tree)) {
+		tree.bytes = result.treeXml.length();
+		phases.record(tree);
+	    }
+	    generate(result);
+	} catch(CompileException c) {
+	    result.error(c);
+	}
+	return result.build();
+    }
+
+    private void compileOffHeap(CompileResult.Builder result) {
+	CompilePhases phases = result.phases;
+	try(CompileArena arena = new CompileArena()) {
+	    CompilePhases.ScanEvent scan = phases.begin(new CompilePhases.ScanEvent());
+	    TokenTable tokens = new TokenTable(arena);
+	    new LittleScanner(result.sourceFile(), tokens);
+	    if(phases.end(scan)) {
+		scan.tokens = tokens.size();
+		phases.record(scan);
+	    }
+
+	    CompilePhases.ParseEvent parse = phases.begin(new CompilePhases.ParseEvent());
+	    NodeTable tree = new NodeTable(arena);
+	    if(!predictive || !PredictiveParser.tryParse(tokens, tree)) {
+		tree = new NodeTable(arena);
+		new LittleParser(tokens, tree);
+	    }
+	    if(phases.end(parse)) {
+		parse.tokens = tokens.size();
+		parse.nodes = tree.count(tree.getRoot());
+		phases.record(parse);
+	    }
+
+	    CompilePhases.TreeEvent print = phases.begin(new CompilePhases.TreeEvent());
+	    result.treeXml = tree.toXml();
+	    if(phases.end(print)) {
+		print.bytes = result.treeXml.length();
+		phases.record(print);
+	    }
+	    generate(result, tree, tree.getRoot());
+	}
+    }
+
+    /* Resolves, generates, optimizes and renders the code for result.ast. */
+    void generate(CompileResult.Builder result) {
+	if(result.phases == null)
+	    result.phases = new CompilePhases(result.fileName, stats, metrics);
+	result.functions = generate(result, AST.NODES, result.ast.getRoot());
+    }
+
+    /* Returns the functions whose code was generated. */
+    private <N> List<N> generate(CompileResult.Builder result, SyntaxTree<N> tree, N root) {
+	CompilePhases phases = result.phases;
+	int nodes = -1;
+	CompilePhases.ResolveEvent resolve = phases.begin(new CompilePhases.ResolveEvent());
+	List<N> functions = Resolver.resolve(tree, root);
+	if(phases.end(resolve)) {
+	    resolve.nodes = nodes = tree.count(root);
+	    phases.record(resolve);
+	}
+
+	CompilePhases.GenerateEvent generate = phases.begin(new CompilePhases.GenerateEvent());
+	List<IRNode> ir = new CodeGenerator<N>(tree, root, functions, parallel).getIRCode();
+	if(phases.end(generate)) {
+	    generate.nodes = nodes >= 0 ? nodes : tree.count(root);
+	    generate.instructions = PassManager.countInstructions(ir);
+	    phases.record(generate);
+	}
+
+	CompilePhases.OptimizeEvent optimize = phases.begin(new CompilePhases.OptimizeEvent());
+	PassManager passes = new PassManager(pipeline, verify, costs);
+	List<IRNode> optimized = passes.run(ir);
+	result.ir = CallPasses.saveRegisters(optimized);
+	if(verify && result.ir != optimized)
+	    IRVerifier.verify(result.ir, "register saves");
+	result.passStats = passes.getStats();
+	if(phases.end(optimize)) {
+	    optimize.passes = pipeline.size();
+	    optimize.instructions = PassManager.countInstructions(result.ir);
+	    phases.record(optimize);
+	}
+
+	CompilePhases.TranslateEvent translate = phases.begin(new CompilePhases.TranslateEvent());
+	result.irListing = CodeGenerator.renderIR(result.ir);
+	result.tinyCode = CodeGenerator.renderTiny(result.ir);
+	if(phases.end(translate)) {
+	    translate.instructions = PassManager.countInstructions(result.ir);
+	    translate.bytes = result.irListing.length() + result.tinyCode.length();
+	    phases.record(translate);
+	}
+	return functions;
+    }
+}
@@ -0,0 +1,214 @@
+import java.util.*;
+
+/*
+ * Estimates what IR costs as Tiny code without running it. Each Tiny
+ * instruction an IRNode translates to costs its mnemonic's cycles, plus
+ * the memory cycles for each operand in memory or on the stack and the
+ * register cycles for each in a register; by default these are the cycles
+ * TinySimulator counts. An estimate counts an instruction loop times for
+ * each loop around it, a loop being the code from a label to the last
+ * branch back to it, up to MAX_DEPTH loops deep. Weights and estimates
+ * saturate at Long.MAX_VALUE rather than wrap.
+ */
+public class CostModel {
+    public static final int DEFAULT_LOOP_WEIGHT = 10;
+    private static final int MAX_DEPTH = 8;
+
+    public static final CostModel DEFAULT =
+	new CostModel("", TinySimulator.baseCycles(), TinySimulator.MEMORY_CYCLES, 0, DEFAULT_LOOP_WEIGHT);
+
+    private final String spec;
+    private final Map<String, Integer> cycles;
+    private final int memory, register, loop;
+
+    private CostModel(String spec, Map<String, Integer> cycles, int memory, int register, int loop) {
+	this.spec = spec;
+	this.cycles = cycles;
+	this.memory = memory;
+	this.register = register;
+	this.loop = loop;
+    }
+
+    /*
+     * The default model with some costs replaced, as in
+     * "mulr=4,writei=20,memory=3,loop=100": entries are mnemonic=cycles,
+     * a sys call's without the "sys", or memory=, register= or loop=.
+     */
+    public static CostModel parse(String spec) {
+	Map<String, Integer> cycles = new HashMap<String, Integer>(DEFAULT.cycles);
+	int memory = DEFAULT.memory, register = DEFAULT.register, loop = DEFAULT.loop;
+	for(String entry : spec.split(",")) {
+	    int eq = entry.indexOf('=');
+	    String name = eq < 0 ? entry : entry.substring(0, eq).trim();
+	    int value;
+	    try {
+		value = Integer.parseInt(entry.substring(eq + 1).trim());
+	    } catch(NumberFormatException e) {
+		throw new CompileException("Bad cost '"+entry+"', expected name=cycles");
+	    }
+	    if(value < 0)
+		throw new CompileException("Bad cost '"+entry+"', cycles cannot be negative");
+	    if(name.equals("memory"))
+		memory = value;
+	    else if(name.equals("register"))
+		register = value;
+	    else if(name.equals("loop"))
+		loop = value;
+	    else if(cycles.containsKey(name))
+		cycles.put(name, value);
+	    else if(cycles.containsKey("sys "+name))
+		cycles.put("sys "+name, value);
+	    else
+		throw new CompileException("Unknown Tiny instruction '"+name+"' in costs, expected one of "+
+					   new TreeSet<String>(cycles.keySet()));
+	}
+	return new CostModel(spec, cycles, memory, register, loop);
+    }
+
+    /* The spec the model was parsed from. */
+    @Override
+    public String toString() {
+	return spec;
+    }
+
+    /* The cycles a memory or stack operand adds. */
+    public int memory() {
+	return memory;
+    }
+
+    /* The cycles a register operand adds. */
+    public int register() {
+	return register;
+    }
+
+    /* How many times a loop is taken to run. */
+    public int loop() {
+	return loop;
+    }
+
+    /* The cycles of the Tiny instructions node translates to. */
+    public long cost(IRNode node) {
+	if(node.isDeclaration())
+	    return 0;
+	long cost = 0;
+	for(String line : node.translate().split("\n")) {
+	    String[] parts = line.trim().split("\\s+");
+	    int operands = 1;
+	    String mnemonic = parts[0];
+	    if(mnemonic.equals("label"))
+		continue;
+	    if(mnemonic.equals("sys")) {
+		mnemonic = "sys "+parts[1];
+		operands = 2;
+	    }
+	    Integer base = cycles.get(mnemonic);
+	    cost += base == null ? 0 : base;
+	    if(mnemonic.startsWith("j") || mnemonic.equals("link") || mnemonic.equals("sys writes"))
+		continue;
+	    for(int i = operands; i < parts.length; i++) {
+		String operand = parts[i];
+		if(operand.matches("r\\d+"))
+		    cost += register;
+		else if(!IRNode.isLiteral(operand))
+		    cost += memory;
+	    }
+	}
+	return cost;
+    }
+
+    /* How many times an instruction loops deep is taken to run. */
+    public long weight(int depth) {
+	long weight = 1;
+	for(int d = 0; d < Math.min(depth, MAX_DEPTH); d++)
+	    weight = times(weight, loop);
+	return weight;
+    }
+
+    /* a * b, or the long nearest it if that overflows. */
+    static long times(long a, long b) {
+	try {
+	    return Math.multiplyExact(a, b);
+	} catch(ArithmeticException e) {
+	    return (a < 0) == (b < 0) ? Long.MAX_VALUE : Long.MIN_VALUE;
+	}
+    }
+
+    /* a + b, or the long nearest it if that overflows. */
+    static long plus(long a, long b) {
+	try {
+	    return Math.addExact(a, b);
+	} catch(ArithmeticException e) {
+	    return a < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+	}
+    }
+
+    /* The loop depth of each instruction of code. */
+    public static int[] loopDepths(List<IRNode> code) {
+	int n = code.size();
+	Map<String, Integer> labels = new HashMap<String, Integer>();
+	for(int i = 0; i < n; i++) {
+	    IRNode node = code.get(i);
+	    if(!node.isDeclaration() && node.getType() == IRNode.Type.LABEL)
+		labels.put(node.getRes(), i);
+	}
+	int[] back = new int[n];
+	Arrays.fill(back, -1);
+	for(int i = 0; i < n; i++) {
+	    Integer to = code.get(i).getTarget() == null ? null : labels.get(code.get(i).getTarget());
+	    if(to != null && to <= i)
+		back[to] = i;
+	}
+
+	int[] depths = new int[n];
+	int[] closing = new int[n + 1];
+	int depth = 0;
+	for(int i = 0; i < n; i++) {
+	    if(back[i] >= 0) {
+		depth++;
+		closing[back[i] + 1]++;
+	    }
+	    depths[i] = depth;
+	    depth -= closing[i + 1];
+	}
+	return depths;
+    }
+
+    /* The estimated cycles of code[start, end), given its loop depths. */
+    public long estimate(List<IRNode> code, int[] depths, int start, int end) {
+	long total = 0;
+	for(int i = start; i < end; i++)
+	    total = plus(total, times(cost(code.get(i)), weight(depths[i])));
+	return total;
+    }
+
+    public long estimate(List<IRNode> code) {
+	return estimate(code, loopDepths(code), 0, code.size());
+    }
+
+    /*
+     * A table of each function's Tiny instructions, the cycles they take
+     * run once each, and their estimate, as Tiny comments.
+     */
+    public String report(List<IRNode> code) {
+	int[] depths = loopDepths(code);
+	StringBuffer buf = new StringBuffer();
+	buf.append(String.format(";%-16s %8s %10s %12s%n", "function", "instrs", "cycles", "estimate"));
+	long totalInstrs = 0, totalCycles = 0, totalEstimate = 0;
+	for(CallPasses.Function f : CallPasses.functions(code)) {
+	    long instrs = 0, once = 0;
+	    for(int i = f.start; i < f.end; i++) {
+		IRNode node = code.get(i);
+		if(!node.isDeclaration() && node.getType() != IRNode.Type.LABEL)
+		    instrs += node.translate().split("\n").length;
+		once += cost(node);
+	    }
+	    long estimate = estimate(code, depths, f.start, f.end);
+	    buf.append(String.format(";%-16s %8d %10d %12d%n", f.name, instrs, once, estimate));
+	    totalInstrs += instrs;
+	    totalCycles += once;
+	    totalEstimate = plus(totalEstimate, estimate);
+	}
+	buf.append(String.format(";%-16s %8d %10d %12d%n", "total", totalInstrs, totalCycles, totalEstimate));
+	return buf.toString();
+    }
+}
@@ -1,21 +1,30 @@
-import java.io.IOException;
-import java.util.List;
-
+/*
+ * Formats an error with the line it is on and a pointer to its column.
+ * The line is found in the program's SourceFile by binary search.
+ */
 public class ErrorPrinter {
-    public static void printError(String fileName, CompileException c) {
-	try {
-	    List<String> lines = java.nio.file.Files.readAllLines(new java.io.File(fileName).toPath(),
-								  java.nio.charset.Charset.forName("UTF-8"));
+    public static void printError(SourceFile source, CompileException c) {
+	System.out.print(format(source, c));
+    }
 
-	    String line = lines.get(c.line-1).trim();
-	    int col = c.col;
+    public static String format(String source, CompileException c) {
+	return format(new SourceFile(source), c);
+    }
 
-	    System.out.println("Line "+c.line+": "+c.msg);
-	    System.out.println(line);
-	    System.out.println(pointerStr(col));
-	} catch(IOException i) {
-	    throw new RuntimeException(i.getMessage());
-	}
+    /* An error with no offset, as from IR verification, has no line. */
+    public static String format(SourceFile source, CompileException c) {
+	if(c.offset < 0)
+	    return c.msg+"\n";
+	int line = source.line(c.offset);
+	CharSequence text = source.lineText(line);
+	if(text == null)
+	    return "Line "+line+": "+c.msg+"\n";
+
+	StringBuffer buf = new StringBuffer();
+	buf.append("Line ").append(line).append(": ").append(c.msg).append("\n");
+	buf.append(text).append("\n");
+	buf.append(pointerStr(source.col(c.offset))).append("\n");
+	return buf.toString();
     }
     
     private static final char POINTER = '^';
@@ -1,3 +1,5 @@
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 public class IRNode {
@@ -30,7 +32,14 @@ public class IRNode {
 	READF((n) -> op("sys readr", n.res)),
 	WRITEI((n) -> op("sys writei", n.res)),
 	WRITEF((n) -> op("sys writer", n.res)),
-	WRITES((n) -> op("sys writes", n.res));
+	WRITES((n) -> op("sys writes", n.res)),
+	PUSH((n) -> n.res == null ? "push\n" : op("push", n.res)),
+	POP((n) -> n.res == null ? "pop\n" : op("pop", n.res)),
+	JSR((n) -> op("jsr", n.res)),
+	RET((n) -> "ret\n"),
+	LINK((n) -> op("link", n.res)),
+	UNLINK((n) -> "unlnk\n"),
+	HALT((n) -> "sys halt\n");
 
 	public final Transformer transformer;
 	private Type(Transformer t) {
@@ -63,6 +72,59 @@ public class IRNode {
 	private static String arith(String op, IRNode n) {
 	    return move(n.op1,n.res)+op(op,n.op2,n.res);
 	}
+
+	public boolean isArithmetic() {
+	    switch(this) {
+	    case ADDI: case ADDF: case SUBI: case SUBF:
+	    case MULTI: case MULTF: case DIVI: case DIVF:
+		return true;
+	    default:
+		return false;
+	    }
+	}
+
+	public boolean isStore() {
+	    return this == STOREI || this == STOREF;
+	}
+
+	public boolean isCompare() {
+	    switch(this) {
+	    case GTI: case GEI: case LTI: case LEI: case NEI: case EQI:
+	    case GTF: case GEF: case LTF: case LEF: case NEF: case EQF:
+		return true;
+	    default:
+		return false;
+	    }
+	}
+
+	public boolean isRead() {
+	    return this == READI || this == READF;
+	}
+
+	public boolean isWrite() {
+	    return this == WRITEI || this == WRITEF || this == WRITES;
+	}
+
+	/* The instructions that may go without an operand. */
+	public boolean mayOmitOperand() {
+	    switch(this) {
+	    case PUSH: case POP: case RET: case UNLINK: case HALT:
+		return true;
+	    default:
+		return false;
+	    }
+	}
+
+	public boolean isFloat() {
+	    switch(this) {
+	    case ADDF: case SUBF: case MULTF: case DIVF: case STOREF:
+	    case GTF: case GEF: case LTF: case LEF: case NEF: case EQF:
+	    case READF: case WRITEF:
+		return true;
+	    default:
+		return false;
+	    }
+	}
     }
 
     static interface Transformer {
@@ -94,6 +156,78 @@ public class IRNode {
 	this.scope = scope;
     }
 
+    public Type getType() {
+	return type;
+    }
+
+    public String getOp1() {
+	return op1;
+    }
+
+    public String getOp2() {
+	return op2;
+    }
+
+    public String getRes() {
+	return res;
+    }
+
+    public Scope getScope() {
+	return scope;
+    }
+
+    public boolean isDeclaration() {
+	return scope != null;
+    }
+
+    public String getDef() {
+	if(scope != null)
+	    return null;
+	if(type.isArithmetic() || type.isStore() || type.isRead() || type == Type.POP)
+	    return res;
+	return null;
+    }
+
+    public List<String> getUses() {
+	List<String> uses = new ArrayList<String>(2);
+	if(scope != null)
+	    return uses;
+	if(type.isArithmetic() || type.isCompare()) {
+	    uses.add(op1);
+	    uses.add(op2);
+	} else if(type.isStore()) {
+	    uses.add(op1);
+	} else if(type.isWrite()) {
+	    uses.add(res);
+	} else if(type == Type.PUSH && res != null) {
+	    uses.add(res);
+	}
+	return uses;
+    }
+
+    public String getTarget() {
+	if(scope != null)
+	    return null;
+	if(type == Type.JUMP || type.isCompare())
+	    return res;
+	return null;
+    }
+
+    public static boolean isRegister(String operand) {
+	return operand != null && operand.startsWith("$T");
+    }
+
+    public static boolean isLiteral(String operand) {
+	if(operand == null || operand.isEmpty())
+	    return false;
+	char c = operand.charAt(0);
+	return Character.isDigit(c) || c == '.' || (c == '-' && operand.length() > 1);
+    }
+
+    public static boolean isMemory(String operand) {
+	return operand != null && !isRegister(operand) && !isLiteral(operand);
+    }
+
     @Override
     public String toString() {
 	if(scope != null)
@@ -108,8 +242,10 @@ public class IRNode {
 		ret.append(op2);
 	    }
 	}
-	ret.append(" ");
-	ret.append(res);
+	if(res != null) {
+	    ret.append(" ");
+	    ret.append(res);
+	}
 	return ret.toString();
     }
 
@@ -133,11 +269,7 @@ public class IRNode {
 	    }
 	    return decls.toString();
 	} else {
-	    op1 = tinyify(op1);
-	    op2 = tinyify(op2);
-	    res = tinyify(res);
-	
-	    return type.transformer.transform(this);
+	    return type.transformer.transform(new IRNode(type, tinyify(op1), tinyify(op2), tinyify(res)));
 	}
     }
 
@@ -0,0 +1,294 @@
+import java.math.BigDecimal;
+import java.util.*;
+
+public class IRPasses {
+    static class CopyPropagation implements PassManager.Pass {
+	public String name() {
+	    return "fold-copies";
+	}
+
+	public List<IRNode> run(List<IRNode> code) {
+	    Map<String, Integer> defs = countDefs(code);
+	    List<IRNode> out = new ArrayList<IRNode>(code);
+
+	    for(int i = 0; i < out.size(); i++) {
+		IRNode def = out.get(i);
+		if(def.isDeclaration() || !def.getType().isStore())
+		    continue;
+		String reg = def.getRes();
+		String src = def.getOp1();
+		if(!IRNode.isRegister(reg) || defs.get(reg) != 1 || reg.equals(src))
+		    continue;
+
+		for(int j = i+1; j < out.size(); j++) {
+		    IRNode use = out.get(j);
+		    if(use.isDeclaration())
+			continue;
+		    if(use.getUses().contains(reg)) {
+			IRNode replaced = substitute(use, reg, src);
+			if(replaced != null)
+			    out.set(j, replaced);
+		    }
+		    if(endsBlock(use) || src.equals(use.getDef()))
+			break;
+		}
+	    }
+	    return out;
+	}
+
+	private static IRNode substitute(IRNode node, String reg, String src) {
+	    IRNode.Type type = node.getType();
+	    String op1 = reg.equals(node.getOp1()) ? src : node.getOp1();
+	    String op2 = reg.equals(node.getOp2()) ? src : node.getOp2();
+	    String res = (type.isWrite() || type == IRNode.Type.PUSH) && reg.equals(node.getRes()) ?
+		src : node.getRes();
+
+	    IRNode replaced = new IRNode(type, op1, op2, res);
+	    return IRVerifier.isLegal(replaced) ? replaced : null;
+	}
+    }
+
+    static class DeadCodeElimination implements PassManager.Pass {
+	public String name() {
+	    return "dce";
+	}
+
+	public List<IRNode> run(List<IRNode> code) {
+	    List<IRNode> out = new ArrayList<IRNode>(code);
+	    boolean changed = true;
+	    while(changed) {
+		changed = false;
+		Map<String, Integer> uses = countUses(out);
+		Iterator<IRNode> it = out.iterator();
+		while(it.hasNext()) {
+		    IRNode node = it.next();
+		    if(node.isDeclaration() || node.getType().isRead() || node.getType() == IRNode.Type.POP)
+			continue;
+		    String def = node.getDef();
+		    if(IRNode.isRegister(def) && !uses.containsKey(def)) {
+			it.remove();
+			changed = true;
+		    }
+		}
+	    }
+	    return out;
+	}
+    }
+
+    static class JumpCleanup implements PassManager.Pass {
+	public String name() {
+	    return "jump-cleanup";
+	}
+
+	public List<IRNode> run(List<IRNode> code) {
+	    boolean[] live = reachable(code);
+	    List<IRNode> reachable = new ArrayList<IRNode>(code.size());
+	    for(int i = 0; i < code.size(); i++) {
+		if(live[i] || code.get(i).isDeclaration())
+		    reachable.add(code.get(i));
+	    }
+
+	    List<IRNode> noJumps = new ArrayList<IRNode>(reachable.size());
+	    for(int i = 0; i < reachable.size(); i++) {
+		IRNode node = reachable.get(i);
+		if(!node.isDeclaration() && node.getType() == IRNode.Type.JUMP) {
+		    IRNode next = nextInstruction(reachable, i+1);
+		    if(next != null && next.getType() == IRNode.Type.LABEL &&
+		       next.getRes().equals(node.getRes()))
+			continue;
+		}
+		noJumps.add(node);
+	    }
+
+	    Set<String> targets = new HashSet<String>();
+	    for(IRNode node : noJumps) {
+		if(node.getTarget() != null)
+		    targets.add(node.getTarget());
+		else if(!node.isDeclaration() && node.getType() == IRNode.Type.JSR)
+		    targets.add(node.getRes());
+	    }
+
+	    List<IRNode> out = new ArrayList<IRNode>(noJumps.size());
+	    for(IRNode node : noJumps) {
+		if(!node.isDeclaration() && node.getType() == IRNode.Type.LABEL &&
+		   !targets.contains(node.getRes()))
+		    continue;
+		out.add(node);
+	    }
+	    return out;
+	}
+
+	private static IRNode nextInstruction(List<IRNode> code, int from) {
+	    for(int i = from; i < code.size(); i++) {
+		if(!code.get(i).isDeclaration())
+		    return code.get(i);
+	    }
+	    return null;
+	}
+    }
+
+    static class ConstantFolding implements PassManager.Pass {
+	public String name() {
+	    return "const-fold";
+	}
+
+	public List<IRNode> run(List<IRNode> code) {
+	    Map<String, Integer> defs = countDefs(code);
+	    Map<String, String> constants = new HashMap<String, String>();
+	    List<IRNode> out = new ArrayList<IRNode>(code.size());
+
+	    for(IRNode node : code) {
+		if(node.isDeclaration()) {
+		    out.add(node);
+		    continue;
+		}
+		IRNode.Type type = node.getType();
+		IRNode folded = node;
+		if(type.isArithmetic()) {
+		    String value = foldArith(type, constant(node.getOp1(), constants),
+					     constant(node.getOp2(), constants));
+		    if(value != null)
+			folded = new IRNode(type.isFloat() ? IRNode.Type.STOREF : IRNode.Type.STOREI,
+					    value, node.getRes());
+		} else if(type.isCompare()) {
+		    String left = constant(node.getOp1(), constants);
+		    String right = constant(node.getOp2(), constants);
+		    if(left != null && right != null) {
+			if(!compare(type, left, right))
+			    continue;
+			folded = new IRNode(IRNode.Type.JUMP, node.getRes());
+		    }
+		}
+
+		if(folded.getType().isStore() && IRNode.isLiteral(folded.getOp1()) &&
+		   IRNode.isRegister(folded.getRes()) && defs.get(folded.getRes()) == 1)
+		    constants.put(folded.getRes(), folded.getOp1());
+		out.add(folded);
+	    }
+	    return out;
+	}
+
+	private static String constant(String operand, Map<String, String> constants) {
+	    if(IRNode.isLiteral(operand))
+		return operand;
+	    return constants.get(operand);
+	}
+
+	private static String foldArith(IRNode.Type type, String left, String right) {
+	    if(left == null || right == null)
+		return null;
+	    if(type.isFloat()) {
+		double a = Double.parseDouble(left);
+		double b = Double.parseDouble(right);
+		double r;
+		switch(type) {
+		case ADDF: r = a + b; break;
+		case SUBF: r = a - b; break;
+		case MULTF: r = a * b; break;
+		default: r = a / b; break;
+		}
+		return formatFloat(r);
+	    }
+
+	    int a, b;
+	    try {
+		a = Integer.parseInt(left);
+		b = Integer.parseInt(right);
+	    } catch(NumberFormatException e) {
+		return null;
+	    }
+	    switch(type) {
+	    case ADDI: return Integer.toString(a + b);
+	    case SUBI: return Integer.toString(a - b);
+	    case MULTI: return Integer.toString(a * b);
+	    default: return b == 0 ? null : Integer.toString(a / b);
+	    }
+	}
+
+	private static boolean compare(IRNode.Type type, String left, String right) {
+	    int cmp = Double.compare(Double.parseDouble(left), Double.parseDouble(right));
+	    switch(type) {
+	    case GTI: case GTF: return cmp > 0;
+	    case GEI: case GEF: return cmp >= 0;
+	    case LTI: case LTF: return cmp < 0;
+	    case LEI: case LEF: return cmp <= 0;
+	    case NEI: case NEF: return cmp != 0;
+	    default: return cmp == 0;
+	    }
+	}
+    }
+
+    public static String formatFloat(double value) {
+	if(Double.isNaN(value) || Double.isInfinite(value))
+	    return null;
+	String plain = BigDecimal.valueOf(value).toPlainString();
+	return plain.indexOf('.') < 0 ? plain+".0" : plain;
+    }
+
+    /*
+     * Which instructions of code can run: those reached from the first, or
+     * from a function's entry if anything calls it, by falling through or
+     * by branching. Declarations are never reached.
+     */
+    static boolean[] reachable(List<IRNode> code) {
+	int n = code.size();
+	Map<String, Integer> labels = new HashMap<String, Integer>();
+	for(int i = 0; i < n; i++) {
+	    IRNode node = code.get(i);
+	    if(!node.isDeclaration() && node.getType() == IRNode.Type.LABEL)
+		labels.put(node.getRes(), i);
+	}
+
+	boolean[] reached = new boolean[n];
+	Deque<Integer> work = new ArrayDeque<Integer>();
+	work.push(0);
+	for(IRNode node : code) {
+	    Integer entry = node.isDeclaration() || node.getType() != IRNode.Type.JSR ? null : labels.get(node.getRes());
+	    if(entry != null)
+		work.push(entry);
+	}
+	while(!work.isEmpty()) {
+	    int i = work.pop();
+	    for(; i < n && !reached[i]; i++) {
+		reached[i] = true;
+		IRNode node = code.get(i);
+		if(node.isDeclaration())
+		    continue;
+		Integer to = node.getTarget() == null ? null : labels.get(node.getTarget());
+		if(to != null)
+		    work.push(to);
+		IRNode.Type type = node.getType();
+		if(type == IRNode.Type.JUMP || type == IRNode.Type.RET || type == IRNode.Type.HALT)
+		    break;
+	    }
+	}
+	for(int i = 0; i < n; i++)
+	    reached[i] &= !code.get(i).isDeclaration();
+	return reached;
+    }
+
+    static boolean endsBlock(IRNode node) {
+	IRNode.Type type = node.getType();
+	return !(type.isArithmetic() || type.isStore() || type.isRead() || type.isWrite() ||
+		 type == IRNode.Type.PUSH);
+    }
+
+    static Map<String, Integer> countDefs(List<IRNode> code) {
+	Map<String, Integer> defs = new HashMap<String, Integer>();
+	for(IRNode node : code) {
+	    String def = node.getDef();
+	    if(def != null)
+		defs.merge(def, 1, Integer::sum);
+	}
+	return defs;
+    }
+
+    static Map<String, Integer> countUses(List<IRNode> code) {
+	Map<String, Integer> uses = new HashMap<String, Integer>();
+	for(IRNode node : code) {
+	    for(String use : node.getUses())
+		uses.merge(use, 1, Integer::sum);
+	}
+	return uses;
+    }
+}
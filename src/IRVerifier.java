@@ -0,0 +1,79 @@
+import java.util.*;
+
+public class IRVerifier {
+    public static void verify(List<IRNode> code, String stage) {
+	Set<String> labels = new HashSet<String>();
+	for(IRNode node : code) {
+	    if(!node.isDeclaration() && node.getType() == IRNode.Type.LABEL) {
+		if(!labels.add(node.getRes()))
+		    fail(stage, node, "duplicate label");
+	    }
+	}
+
+	/* Registers are checked in order over the code that can run, since
+	   what cannot may use registers whose definitions a pass removed. */
+	boolean[] reachable = IRPasses.reachable(code);
+	Set<String> defined = new HashSet<String>();
+	for(int i = 0; i < code.size(); i++) {
+	    IRNode node = code.get(i);
+	    if(node.isDeclaration())
+		continue;
+	    if(node.getType() == null || node.getRes() == null && !node.getType().mayOmitOperand())
+		fail(stage, node, "malformed instruction");
+
+	    String target = node.getTarget();
+	    if(target != null && !labels.contains(target))
+		fail(stage, node, "jump to undefined label");
+	    if(node.getType() == IRNode.Type.JSR && !labels.contains(node.getRes()))
+		fail(stage, node, "call to undefined label");
+
+	    for(String use : node.getUses()) {
+		if(use == null)
+		    fail(stage, node, "missing operand");
+		if(IRNode.isRegister(use) && reachable[i] && !defined.contains(use))
+		    fail(stage, node, "register "+use+" used before definition");
+	    }
+
+	    String error = checkOperands(node);
+	    if(error != null)
+		fail(stage, node, error);
+
+	    String def = node.getDef();
+	    if(def != null && reachable[i])
+		defined.add(def);
+	}
+    }
+
+    public static boolean isLegal(IRNode node) {
+	return checkOperands(node) == null;
+    }
+
+    private static String checkOperands(IRNode node) {
+	IRNode.Type type = node.getType();
+	if(type.isStore()) {
+	    if(IRNode.isLiteral(node.getRes()))
+		return "store into literal";
+	    if(IRNode.isMemory(node.getOp1()) && IRNode.isMemory(node.getRes()))
+		return "memory to memory move";
+	} else if(type.isArithmetic()) {
+	    if(!IRNode.isRegister(node.getRes()))
+		return "arithmetic result must be a register";
+	    if(node.getRes().equals(node.getOp2()) && !node.getRes().equals(node.getOp1()))
+		return "second operand clobbered by result";
+	} else if(type.isCompare()) {
+	    if(!IRNode.isRegister(node.getOp2()))
+		return "second compare operand must be a register";
+	} else if(type.isRead() || type.isWrite()) {
+	    if(IRNode.isLiteral(node.getRes()))
+		return "I/O operand must not be a literal";
+	} else if(type == IRNode.Type.POP) {
+	    if(IRNode.isLiteral(node.getRes()))
+		return "pop into literal";
+	}
+	return null;
+    }
+
+    private static void fail(String stage, IRNode node, String msg) {
+	throw new CompileException("IR verification failed after "+stage+": "+msg+" in '"+node+"'");
+    }
+}
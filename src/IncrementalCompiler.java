@@ -0,0 +1,352 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/*
+ * Recompiles a program after an edit by scanning and parsing again only
+ * the functions the edit touched. The source is split at the lines that
+ * begin with FUNCTION into a heading (PROGRAM, name and globals) and one
+ * region per function. Each new source is diffed against the last one
+ * that compiled: regions outside the changed span keep their trees, moved
+ * by the change in length and line count, and the code is generated
+ * again only when a function it was generated from changed. Whatever the split cannot
+ * express exactly -- an edit to the heading, FUNCTION in the middle of a
+ * line, tokens after a function's END -- goes to a full compile, as does
+ * any source with errors, so that they are reported as a full compile
+ * reports them.
+ *
+ * Results from the incremental path carry no token array, and no tree
+ * unless the compiler was asked to keep trees.
+ */
+public class IncrementalCompiler {
+    private static final String FUNCTION = "FUNCTION";
+
+    static class Region {
+	final int start, line;
+	final List<AST.ASTNode> nodes;
+
+	Region(int start, int line, List<AST.ASTNode> nodes) {
+	    this.start = start;
+	    this.line = line;
+	    this.nodes = nodes;
+	}
+    }
+
+    private static class Snapshot {
+	final String source;
+	final List<AST.ASTNode> heading;
+	final Scope globals;
+	final List<Region> functions;
+	CompileResult result;
+	List<AST.ASTNode> nodes, emitted;
+
+	Snapshot(String source, List<AST.ASTNode> heading, Scope globals, List<Region> functions) {
+	    this.source = source;
+	    this.heading = heading;
+	    this.globals = globals;
+	    this.functions = functions;
+	}
+    }
+
+    private final Compiler compiler;
+    private final boolean keepTree;
+    private Snapshot last;
+    private int reparsed;
+
+    public IncrementalCompiler(Compiler compiler, boolean keepTree) {
+	this.compiler = compiler;
+	this.keepTree = keepTree;
+    }
+
+    /* Functions scanned and parsed by the last compile, -1 after a full compile. */
+    public synchronized int getReparsed() {
+	return reparsed;
+    }
+
+    public synchronized CompileResult compile(String fileName, String source) {
+	CompileResult.Builder result = new CompileResult.Builder(fileName, source);
+	Snapshot next;
+	try {
+	    reparsed = 0;
+	    next = last == null ? parseAll(source) : update(last, source);
+	    if(next == null) {
+		last = null;
+		reparsed = -1;
+		return compiler.compile(fileName, source);
+	    }
+	    if(next == last && next.result.fileName.equals(fileName))
+		return next.result;
+
+	    next.nodes = new ArrayList<AST.ASTNode>();
+	    for(Region r : next.functions)
+		next.nodes.addAll(r.nodes);
+
+	    result.ast = LittleParser.assemble(next.heading, next.nodes);
+	    if(keepTree)
+		result.treeXml = result.ast.toXml();
+	} catch(CompileException c) {
+	    result.error(c);
+	    return result.build();
+	}
+
+	if(last != null && sameFunctions(last, next)) {
+	    next.emitted = last.emitted;
+	    result.ir = last.result.ir;
+	    result.passStats = last.result.passStats;
+	    result.irListing = last.result.irListing;
+	    result.tinyCode = last.result.tinyCode;
+	} else {
+	    try {
+		compiler.generate(result);
+	    } catch(CompileException c) {
+		/* Kept functions' nodes have the offsets they had when they
+		   were parsed, so let a full compile place the error. */
+		last = null;
+		reparsed = -1;
+		return compiler.compile(fileName, source);
+	    }
+	    next.emitted = result.functions;
+	}
+	next.result = result.build();
+	last = next;
+	return next.result;
+    }
+
+    /* Whether every function last's code was generated from is still
+       the one its name finds in next. */
+    private static boolean sameFunctions(Snapshot last, Snapshot next) {
+	for(AST.ASTNode f : last.emitted) {
+	    if(find(next.nodes, f.children.get(1).value) != f)
+		return false;
+	}
+	return true;
+    }
+
+    private static AST.ASTNode find(List<AST.ASTNode> functions, String name) {
+	for(AST.ASTNode f : functions) {
+	    if(f.type == AST.Type.Function && f.children.get(1).value.equals(name))
+		return f;
+	}
+	return null;
+    }
+
+    private Snapshot parseAll(String source) {
+	List<Integer> starts = findFunctions(source, 0, source.length());
+	if(starts == null || starts.isEmpty())
+	    return null;
+
+	LittleScanner scanner;
+	LittleParser heading;
+	try {
+	    scanner = new LittleScanner(source, 0, starts.get(0), 1);
+	    heading = LittleParser.parseHeading(scanner.getTokens());
+	} catch(CompileException c) {
+	    return null;
+	}
+	if(heading == null)
+	    return null;
+
+	Scope globals = heading.getGlobalScope();
+	List<Region> functions = new ArrayList<Region>();
+	if(parseRegions(source, starts, source.length(), scanner.getLine(), globals, true, functions) < 0)
+	    return null;
+	return new Snapshot(source, heading.getAST().getNodes(), globals, functions);
+    }
+
+    private Snapshot update(Snapshot old, String source) {
+	String prev = old.source;
+	int prevLen = prev.length(), len = source.length();
+	int limit = Math.min(prevLen, len);
+	int prefix = 0;
+	while(prefix < limit && prev.charAt(prefix) == source.charAt(prefix))
+	    prefix++;
+	if(prefix == prevLen && prefix == len)
+	    return old;
+	int suffix = 0;
+	while(suffix < limit - prefix && prev.charAt(prevLen-1-suffix) == source.charAt(len-1-suffix))
+	    suffix++;
+
+	List<Region> regions = old.functions;
+	if(prefix <= regions.get(0).start)
+	    return parseAll(source);
+
+	/* The edit replaced prev[prefix, changeEnd). Reparse from the region
+	   before it through the region holding the first unchanged character,
+	   whose start may have been the edit's neighbour. */
+	int changeEnd = prevLen - suffix;
+	int first = regionAt(regions, prefix - 1);
+	int lastTouched = regionAt(regions, Math.min(changeEnd, prevLen - 1));
+	int delta = len - prevLen;
+	int windowStart = regions.get(first).start;
+	int windowEnd = (lastTouched + 1 < regions.size() ? regions.get(lastTouched + 1).start : prevLen) + delta;
+
+	List<Integer> starts = findFunctions(source, windowStart, windowEnd);
+	if(starts == null || starts.isEmpty() || starts.get(0) != windowStart)
+	    return parseAll(source);
+
+	List<Region> functions = new ArrayList<Region>(regions.subList(0, first));
+	boolean programEnd = lastTouched + 1 == regions.size();
+	int line = parseRegions(source, starts, windowEnd, regions.get(first).line,
+				old.globals, programEnd, functions);
+	if(line < 0)
+	    return null;
+	if(!programEnd) {
+	    int lineDelta = line - regions.get(lastTouched + 1).line;
+	    for(Region r : regions.subList(lastTouched + 1, regions.size()))
+		functions.add(delta == 0 && lineDelta == 0 ? r :
+			      new Region(r.start + delta, r.line + lineDelta, r.nodes));
+	}
+	return new Snapshot(source, old.heading, old.globals, functions);
+    }
+
+    private static int regionAt(List<Region> regions, int pos) {
+	int lo = 0, hi = regions.size() - 1;
+	while(lo < hi) {
+	    int mid = (lo + hi + 1) >>> 1;
+	    if(regions.get(mid).start <= pos)
+		lo = mid;
+	    else
+		hi = mid - 1;
+	}
+	return lo;
+    }
+
+    /*
+     * Scans and parses the regions starting at each of starts, the last
+     * one ending at end, and adds them to out. Returns the line reached
+     * at end, or -1 if a region is not exactly one function or has an
+     * error.
+     */
+    private int parseRegions(String source, List<Integer> starts, int end, int line,
+			     Scope globals, boolean programEnd, List<Region> out) {
+	try {
+	    Token[][] tokens = new Token[starts.size()][];
+	    int[] lines = new int[starts.size() + 1];
+	    lines[0] = line;
+	    for(int i = 0; i < starts.size(); i++) {
+		int to = i + 1 < starts.size() ? starts.get(i + 1) : end;
+		LittleScanner scanner = new LittleScanner(source, starts.get(i), to, lines[i]);
+		tokens[i] = scanner.getTokens();
+		lines[i + 1] = scanner.getLine();
+	    }
+	    for(int i = 0; i < starts.size(); i++) {
+		List<AST.ASTNode> nodes = LittleParser.parseFunction(tokens[i], globals,
+								     programEnd && i + 1 == starts.size());
+		if(nodes == null)
+		    return -1;
+		out.add(new Region(starts.get(i), lines[i], nodes));
+		reparsed++;
+	    }
+	    return lines[starts.size()];
+	} catch(CompileException c) {
+	    return -1;
+	}
+    }
+
+    /*
+     * Offsets of the lines in source[from, to) whose first token is
+     * FUNCTION; from must start a line. Returns null if FUNCTION appears
+     * anywhere else or a string literal runs past to, since then the
+     * lines do not split the program into functions.
+     */
+    static List<Integer> findFunctions(String source, int from, int to) {
+	List<Integer> starts = new ArrayList<Integer>();
+	int lineStart = from;
+	boolean lineBegins = true;
+	int i = from;
+	while(i < to) {
+	    char c = source.charAt(i);
+	    if(c == '\n' || c == '\r') {
+		i++;
+		if(c == '\r' && i < to && source.charAt(i) == '\n')
+		    i++;
+		lineStart = i;
+		lineBegins = true;
+	    } else if(Character.isWhitespace(c)) {
+		i++;
+	    } else if(c == LittleScanner.COMMENT_CHAR && i+1 < to && source.charAt(i+1) == LittleScanner.COMMENT_CHAR) {
+		while(i < to && source.charAt(i) != '\n' && source.charAt(i) != '\r')
+		    i++;
+	    } else if(c == '"') {
+		int close = source.indexOf('"', i+1);
+		if(close < 0 || close >= to)
+		    return null;
+		i = close+1;
+		lineBegins = false;
+	    } else if(Character.isLetter(c)) {
+		int start = i;
+		while(i < to && Character.isLetterOrDigit(source.charAt(i)))
+		    i++;
+		if(i - start == FUNCTION.length() && source.startsWith(FUNCTION, start)) {
+		    if(!lineBegins)
+			return null;
+		    starts.add(lineStart);
+		}
+		lineBegins = false;
+	    } else {
+		i++;
+		lineBegins = false;
+	    }
+	}
+	return starts;
+    }
+
+    /*
+     * IncrementalCompiler [compiler flags] [-tree] [-watch] file
+     * With -watch, recompiles whenever the file changes and reports
+     * how much was reparsed on stderr.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+	List<String> options = new ArrayList<String>();
+	boolean tree = false, watch = false;
+	String file = null;
+	for(String arg : args) {
+	    if(arg.equals("-tree"))
+		tree = true;
+	    else if(arg.equals("-watch"))
+		watch = true;
+	    else if(arg.startsWith("-"))
+		options.add(arg);
+	    else
+		file = arg;
+	}
+	if(file == null) {
+	    System.err.println("usage: IncrementalCompiler [compiler flags] [-tree] [-watch] file");
+	    System.exit(2);
+	}
+
+	IncrementalCompiler compiler;
+	try {
+	    compiler = new IncrementalCompiler(Compiler.fromOptions(options), tree);
+	} catch(CompileException c) {
+	    System.err.println(c.msg);
+	    System.exit(2);
+	    return;
+	}
+
+	Path path = Paths.get(file);
+	long modified = -1;
+	do {
+	    long now = Files.getLastModifiedTime(path).toMillis();
+	    if(now != modified) {
+		modified = now;
+		String source = new String(Files.readAllBytes(path));
+		long start = System.nanoTime();
+		CompileResult result = compiler.compile(file, source);
+		long nanos = System.nanoTime() - start;
+		System.out.print(tree ? result.treeOutput() : result.codeOutput());
+		System.out.flush();
+		if(watch) {
+		    int count = compiler.getReparsed();
+		    System.err.println(String.format("%s: %s in %.2f ms", file,
+						     count < 0 ? "full compile" : "reparsed "+count+" functions",
+						     nanos / 1e6));
+		} else if(!result.succeeded()) {
+		    System.exit(1);
+		}
+	    }
+	    if(watch)
+		Thread.sleep(100);
+	} while(watch);
+    }
+}
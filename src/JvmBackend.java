@@ -0,0 +1,333 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.*;
+
+public class JvmBackend {
+    private static final String CLASS_NAME = "CompiledMicroProgram";
+    private static final String IO = "MicroIO";
+    private static final String IO_DESC = "L"+IO+";";
+
+    private static final int ICONST_0 = 0x03, DCONST_0 = 0x0e, BIPUSH = 0x10, SIPUSH = 0x11,
+	LDC = 0x12, LDC_W = 0x13, LDC2_W = 0x14, ILOAD = 0x15, DLOAD = 0x18, ALOAD = 0x19,
+	ISTORE = 0x36, DSTORE = 0x39, IADD = 0x60, DADD = 0x63, ISUB = 0x64, DSUB = 0x67,
+	IMUL = 0x68, DMUL = 0x6b, IDIV = 0x6c, DDIV = 0x6f, I2D = 0x87, D2I = 0x8e,
+	DCMPL = 0x97, DCMPG = 0x98, IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c,
+	IFGT = 0x9d, IFLE = 0x9e, IF_ICMPEQ = 0x9f, IF_ICMPNE = 0xa0, IF_ICMPLT = 0xa1,
+	IF_ICMPGE = 0xa2, IF_ICMPGT = 0xa3, IF_ICMPLE = 0xa4, GOTO = 0xa7, RETURN = 0xb1,
+	GETSTATIC = 0xb2, PUTSTATIC = 0xb3, INVOKESPECIAL = 0xb7, INVOKEINTERFACE = 0xb9;
+
+    private static final int IO_SLOT = 1;
+
+    private final ClassFileWriter cw = new ClassFileWriter(CLASS_NAME, "java/lang/Object", "MicroProgram");
+    private ClassFileWriter.Code code;
+
+    private final Map<String, Boolean> isFloat = new HashMap<String, Boolean>();
+    private final Map<String, Integer> localSlots = new HashMap<String, Integer>();
+    private final Set<String> globals = new HashSet<String>();
+    private final Map<String, String> strings = new HashMap<String, String>();
+    private final Map<String, ClassFileWriter.Label> labels = new HashMap<String, ClassFileWriter.Label>();
+
+    private JvmBackend() {
+    }
+
+    public static byte[] generate(List<IRNode> ir) {
+	return new JvmBackend().translate(ir);
+    }
+
+    public static MicroProgram load(List<IRNode> ir) {
+	byte[] bytes = generate(ir);
+	try {
+	    MethodHandles.Lookup hidden = MethodHandles.lookup().defineHiddenClass(bytes, true);
+	    return (MicroProgram) hidden.findConstructor(hidden.lookupClass(), MethodType.methodType(void.class))
+		.invoke();
+	} catch(Throwable t) {
+	    throw new CompileException("Could not load generated class: "+t);
+	}
+    }
+
+    private byte[] translate(List<IRNode> ir) {
+	collectVariables(ir);
+
+	List<String> locals = new ArrayList<String>(localSlots.keySet());
+	Collections.sort(locals);
+	int nextSlot = IO_SLOT + 1;
+	java.io.ByteArrayOutputStream frame = new java.io.ByteArrayOutputStream();
+	frameObject(frame, cw.classRef(CLASS_NAME));
+	frameObject(frame, cw.classRef(IO));
+	for(String name : locals) {
+	    localSlots.put(name, nextSlot);
+	    boolean f = isFloat.get(name);
+	    nextSlot += f ? 2 : 1;
+	    frame.write(f ? 3 : 1);
+	}
+	for(String name : globals)
+	    cw.addField(ClassFileWriter.ACC_PRIVATE | ClassFileWriter.ACC_STATIC, name, isFloat.get(name) ? "D" : "I");
+
+	ClassFileWriter.Code init = cw.newCode(1, 1);
+	init.local(ALOAD, 0x2a, 0);
+	init.op(INVOKESPECIAL, cw.methodRef("java/lang/Object", "<init>", "()V"));
+	init.op(RETURN);
+	cw.addMethod(ClassFileWriter.ACC_PUBLIC, "<init>", "()V", init);
+
+	code = cw.newCode(6, nextSlot);
+	code.setFrameLocals(frame.toByteArray(), locals.size() + 2);
+	for(String name : locals) {
+	    if(isFloat.get(name)) {
+		code.op(DCONST_0);
+		code.local(DSTORE, 0x47, localSlots.get(name));
+	    } else {
+		code.op(ICONST_0);
+		code.local(ISTORE, 0x3b, localSlots.get(name));
+	    }
+	}
+
+	for(IRNode node : ir) {
+	    if(!node.isDeclaration() && node.getType() == IRNode.Type.LABEL)
+		labels.put(node.getRes(), code.newLabel());
+	}
+	for(IRNode node : ir) {
+	    if(!node.isDeclaration())
+		translate(node);
+	}
+	code.op(RETURN);
+	cw.addMethod(ClassFileWriter.ACC_PUBLIC, "run", "("+IO_DESC+")V", code);
+	return cw.toByteArray();
+    }
+
+    private static void frameObject(java.io.ByteArrayOutputStream frame, int classIndex) {
+	frame.write(7);
+	frame.write(classIndex >> 8);
+	frame.write(classIndex);
+    }
+
+    private void collectVariables(List<IRNode> ir) {
+	for(IRNode node : ir) {
+	    if(!node.isDeclaration())
+		continue;
+	    Scope scope = node.getScope();
+	    for(String varName : scope.getDeclared()) {
+		Variable var = scope.getVariable(varName);
+		String name = var.makeName();
+		if(var.type.equals("STRING")) {
+		    strings.put(name, TinySimulator.unescape(var.value));
+		    continue;
+		}
+		isFloat.put(name, var.type.equals("FLOAT"));
+		if(var.scopeNum == 0)
+		    globals.add(name);
+		else
+		    localSlots.put(name, -1);
+	    }
+	}
+	for(IRNode node : ir) {
+	    String def = node.getDef();
+	    if(IRNode.isRegister(def)) {
+		isFloat.merge(def, node.getType().isFloat(), Boolean::logicalOr);
+		localSlots.put(def, -1);
+	    }
+	}
+    }
+
+    private void translate(IRNode node) {
+	IRNode.Type type = node.getType();
+	boolean f = type.isFloat();
+	switch(type) {
+	case STOREI: case STOREF: {
+	    boolean destFloat = typeOf(node.getRes());
+	    load(node.getOp1(), destFloat);
+	    store(node.getRes(), destFloat);
+	    break;
+	}
+	case ADDI: case ADDF: case SUBI: case SUBF: case MULTI: case MULTF: case DIVI: case DIVF:
+	    load(node.getOp1(), f);
+	    load(node.getOp2(), f);
+	    code.op(arithOpcode(type));
+	    store(node.getRes(), f);
+	    break;
+	case GTI: case GEI: case LTI: case LEI: case NEI: case EQI:
+	    load(node.getOp1(), false);
+	    load(node.getOp2(), false);
+	    code.jump(IF_ICMPEQ + conditionIndex(type), label(node.getRes()));
+	    break;
+	case GTF: case GEF: case LTF: case LEF: case NEF: case EQF:
+	    load(node.getOp1(), true);
+	    load(node.getOp2(), true);
+	    code.op(type == IRNode.Type.LTF || type == IRNode.Type.LEF ? DCMPG : DCMPL);
+	    code.jump(IFEQ + conditionIndex(type), label(node.getRes()));
+	    break;
+	case JUMP:
+	    code.jump(GOTO, label(node.getRes()));
+	    code.frameHere();
+	    break;
+	case HALT:
+	    code.op(RETURN);
+	    code.frameHere();
+	    break;
+	case LABEL:
+	    code.bind(label(node.getRes()));
+	    break;
+	case READI: case READF:
+	    code.local(ALOAD, 0x2a, IO_SLOT);
+	    code.op(INVOKEINTERFACE, cw.interfaceMethodRef(IO, f ? "readFloat" : "readInt", f ? "()D" : "()I"));
+	    code.u1(1);
+	    code.u1(0);
+	    store(node.getRes(), f);
+	    break;
+	case WRITEI: case WRITEF:
+	    code.local(ALOAD, 0x2a, IO_SLOT);
+	    load(node.getRes(), f);
+	    code.op(INVOKEINTERFACE, cw.interfaceMethodRef(IO, f ? "writeFloat" : "writeInt", f ? "(D)V" : "(I)V"));
+	    code.u1(f ? 3 : 2);
+	    code.u1(0);
+	    break;
+	case WRITES: {
+	    String value = strings.get(node.getRes());
+	    if(value == null)
+		throw new CompileException("Undeclared string '"+node.getRes()+"' in JVM backend");
+	    code.local(ALOAD, 0x2a, IO_SLOT);
+	    ldc(cw.string(value));
+	    code.op(INVOKEINTERFACE, cw.interfaceMethodRef(IO, "writeString", "(Ljava/lang/String;)V"));
+	    code.u1(2);
+	    code.u1(0);
+	    break;
+	}
+	default:
+	    throw new CompileException("JVM backend does not support "+type);
+	}
+    }
+
+    private static int arithOpcode(IRNode.Type type) {
+	switch(type) {
+	case ADDI: return IADD;
+	case ADDF: return DADD;
+	case SUBI: return ISUB;
+	case SUBF: return DSUB;
+	case MULTI: return IMUL;
+	case MULTF: return DMUL;
+	case DIVI: return IDIV;
+	default: return DDIV;
+	}
+    }
+
+    private static int conditionIndex(IRNode.Type type) {
+	switch(type) {
+	case EQI: case EQF: return 0;
+	case NEI: case NEF: return 1;
+	case LTI: case LTF: return 2;
+	case GEI: case GEF: return 3;
+	case GTI: case GTF: return 4;
+	default: return 5;
+	}
+    }
+
+    private ClassFileWriter.Label label(String name) {
+	ClassFileWriter.Label label = labels.get(name);
+	if(label == null)
+	    throw new CompileException("Undefined label '"+name+"' in JVM backend");
+	return label;
+    }
+
+    private boolean typeOf(String operand) {
+	if(IRNode.isLiteral(operand))
+	    return operand.indexOf('.') >= 0 || operand.indexOf('e') >= 0 || operand.indexOf('E') >= 0;
+	Boolean f = isFloat.get(operand);
+	if(f == null)
+	    throw new CompileException("Undeclared operand '"+operand+"' in JVM backend");
+	return f;
+    }
+
+    private void load(String operand, boolean asFloat) {
+	boolean f = typeOf(operand);
+	if(IRNode.isLiteral(operand)) {
+	    if(asFloat)
+		code.op(LDC2_W, cw.doubleConst(Double.parseDouble(operand)));
+	    else
+		pushInt(f ? (int) Double.parseDouble(operand) : Integer.parseInt(operand));
+	    return;
+	}
+	if(globals.contains(operand))
+	    code.op(GETSTATIC, cw.fieldRef(CLASS_NAME, operand, f ? "D" : "I"));
+	else if(f)
+	    code.local(DLOAD, 0x26, localSlots.get(operand));
+	else
+	    code.local(ILOAD, 0x1a, localSlots.get(operand));
+	convert(f, asFloat);
+    }
+
+    private void store(String operand, boolean fromFloat) {
+	boolean f = typeOf(operand);
+	convert(fromFloat, f);
+	if(globals.contains(operand))
+	    code.op(PUTSTATIC, cw.fieldRef(CLASS_NAME, operand, f ? "D" : "I"));
+	else if(f)
+	    code.local(DSTORE, 0x47, localSlots.get(operand));
+	else
+	    code.local(ISTORE, 0x3b, localSlots.get(operand));
+    }
+
+    private void convert(boolean from, boolean to) {
+	if(from && !to)
+	    code.op(D2I);
+	else if(!from && to)
+	    code.op(I2D);
+    }
+
+    private void pushInt(int value) {
+	if(value >= -1 && value <= 5) {
+	    code.op(ICONST_0 + value);
+	} else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+	    code.op(BIPUSH);
+	    code.u1(value);
+	} else if(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+	    code.op(SIPUSH, value);
+	} else {
+	    ldc(cw.integer(value));
+	}
+    }
+
+    private void ldc(int index) {
+	if(index <= 0xFF) {
+	    code.op(LDC);
+	    code.u1(index);
+	} else {
+	    code.op(LDC_W, index);
+	}
+    }
+
+    public static void main(String[] args) throws java.io.IOException {
+	String fileName = null;
+	int level = 0;
+	boolean time = false;
+	for(String arg : args) {
+	    if(arg.startsWith("-O"))
+		level = Integer.parseInt(arg.substring(2));
+	    else if(arg.equals("-time"))
+		time = true;
+	    else
+		fileName = arg;
+	}
+
+	String input = new String(java.nio.file.Files.readAllBytes(new java.io.File(fileName).toPath()));
+	CompileResult result = Compiler.forLevel(level).compile(fileName, input);
+	if(!result.succeeded()) {
+	    System.out.print(result.diagnosticText());
+	    return;
+	}
+	try {
+	    MicroProgram program = load(result.ir);
+	    long start = System.nanoTime();
+	    program.run(new MicroIO.Console(System.in, System.out));
+	    System.out.flush();
+	    if(time)
+		System.err.printf("%nRun time: %.3f ms%n", (System.nanoTime() - start) / 1e6);
+	} catch(MicroIO.TrapException t) {
+	    System.out.println();
+	    System.out.println("Runtime error: "+t.getMessage());
+	} catch(ArithmeticException e) {
+	    System.out.println();
+	    System.out.println("Runtime error: Integer division by zero");
+	} catch(CompileException c) {
+	    System.out.print(ErrorPrinter.format(input, c));
+	}
+    }
+}
@@ -1,11 +1,12 @@
 import java.util.*;
+import java.util.stream.IntStream;
 
 public class LittleParser {
     private int pos = 0;
-    private Token[] tokens;
+    private final Tokens tokens;
 
     private Stack<Scope> scopeStack = new Stack<Scope>();
-    private AST ast = new AST();
+    private final TreeBuilder ast;
 	
     private static final Token PROGRAM = keyword("PROGRAM");
     private static final Token BEGIN = keyword("BEGIN");
@@ -48,7 +49,13 @@ public class LittleParser {
     private static final Token DIVIDE_OPERATOR = operator("/");
     
     public LittleParser(Token[] tokens) {
+	this(Tokens.of(tokens), new AST());
+    }
+
+    /* Parses into any tree builder, such as an off-heap NodeTable. */
+    public LittleParser(Tokens tokens, TreeBuilder tree) {
 	this.tokens = tokens;
+	this.ast = tree;
 	parseProgram();
     }
 
@@ -68,23 +75,127 @@ public class LittleParser {
 	scopeStack.pop();
     }
 
+    private LittleParser(Token[] tokens, Scope globals) {
+	this.tokens = Tokens.of(tokens);
+	this.ast = new AST();
+	if(globals != null)
+	    scopeStack.push(globals);
+    }
+
+    /*
+     * Parses a program heading, "PROGRAM name BEGIN" and the globals,
+     * for IncrementalCompiler. Returns null unless it uses every token.
+     */
+    public static LittleParser parseHeading(Token[] tokens) {
+	if(tokens.length == 0)
+	    return null;
+	LittleParser parser = new LittleParser(tokens, null);
+	parser.addNewScope();
+	parser.parseHeading();
+	return parser.pos == tokens.length ? parser : null;
+    }
+
+    /*
+     * Parses one FUNCTION ... END against the given globals, followed by
+     * the program's END if programEnd is set. Returns the nodes built, or
+     * null if the function does not use every token.
+     */
+    public static List<AST.ASTNode> parseFunction(Token[] tokens, Scope globals, boolean programEnd) {
+	if(tokens.length == 0)
+	    return null;
+	LittleParser parser = new LittleParser(tokens, globals);
+	try {
+	    parser.parseFuncDecl();
+	    if(programEnd)
+		parser.requireToken(END);
+	} catch(ArrayIndexOutOfBoundsException e) {
+	    /* Ran off the end of the tokens, which in a whole program
+	       would have gone on into the next function. */
+	    return null;
+	}
+	if(!programEnd && parser.pos != tokens.length)
+	    return null;
+	return parser.getAST().getNodes();
+    }
+
+    /*
+     * Parses the functions of a program concurrently: the heading is
+     * parsed first, then each FUNCTION through to the next against the
+     * same globals, and the results are joined in source order. Whenever
+     * that split is not exactly the program -- including when there are
+     * errors, so they are reported in order -- the tokens are parsed
+     * again one after another.
+     */
+    public static AST parseParallel(Token[] tokens) {
+	List<Integer> starts = new ArrayList<Integer>();
+	for(int i = 0; i < tokens.length; i++) {
+	    if(tokens[i].type == FUNCTION.type && tokens[i].value.equals(FUNCTION.value))
+		starts.add(i);
+	}
+	if(starts.isEmpty())
+	    return new LittleParser(tokens).getAST();
+	starts.add(tokens.length);
+
+	try {
+	    LittleParser heading = parseHeading(Arrays.copyOfRange(tokens, 0, starts.get(0)));
+	    if(heading != null) {
+		int count = starts.size() - 1;
+		List<List<AST.ASTNode>> functions =
+		    new ArrayList<List<AST.ASTNode>>(Collections.nCopies(count, null));
+		boolean[] failed = new boolean[1];
+		IntStream.range(0, count).parallel().forEach((int i) -> {
+		    try {
+			Token[] slice = Arrays.copyOfRange(tokens, starts.get(i), starts.get(i + 1));
+			functions.set(i, parseFunction(slice, heading.getGlobalScope(), i + 1 == count));
+		    } catch(CompileException c) {
+			functions.set(i, null);
+		    }
+		    if(functions.get(i) == null)
+			failed[0] = true;
+		});
+		if(!failed[0]) {
+		    List<AST.ASTNode> nodes = new ArrayList<AST.ASTNode>();
+		    for(List<AST.ASTNode> f : functions)
+			nodes.addAll(f);
+		    return assemble(heading.getAST().getNodes(), nodes);
+		}
+	    }
+	} catch(CompileException ignored) {
+	}
+	return new LittleParser(tokens).getAST();
+    }
+
+    /* Builds the Program node from a parsed heading and its functions. */
+    public static AST assemble(List<AST.ASTNode> heading, List<AST.ASTNode> functions) {
+	AST.ASTNode funcList = new AST.ASTNode(AST.Type.FunctionList);
+	funcList.children.addAll(functions);
+	AST.ASTNode program = new AST.ASTNode(AST.Type.Program);
+	program.children.addAll(heading);
+	program.children.add(funcList);
+	return new AST(program);
+    }
+
+    public Scope getGlobalScope() {
+	return scopeStack.firstElement();
+    }
+
     private void parseProgram() {
 	addNewScope();
 
-	requireToken(PROGRAM);
-	requireTypeBuild(Token.Type.IDENTIFIER, (Token t) -> ast.buildNode(AST.Type.Identifier, t.value));
-	requireToken(BEGIN);
-	parsePgmBody();
+	parseHeading();
+	parseFuncDecls();
 	requireToken(END);
 
 	closeScope();
 	ast.buildNode(AST.Type.Program, 3);
     }
 
-    private void parsePgmBody() {
+    private void parseHeading() {
+	requireToken(PROGRAM);
+	requireTypeBuild(Token.Type.IDENTIFIER, (int t) -> buildLeaf(AST.Type.Identifier, t));
+	requireToken(BEGIN);
 	parseDecls();
 	ast.setTopScope(currentScope());
-	parseFuncDecls();
     }
 
     private boolean matchDecl() {
@@ -116,12 +227,12 @@ public class LittleParser {
     
     private void parseStringDecl() {
 	requireToken(STRING);
-	requireTypeBuild(Token.Type.IDENTIFIER, (Token t) -> ast.buildNode(AST.Type.Identifier, t.value));
+	requireTypeBuild(Token.Type.IDENTIFIER, (int t) -> buildLeaf(AST.Type.Identifier, t));
 	requireToken(ASSIGN_OPERATOR);
-	requireTypeBuild(Token.Type.STRINGLITERAL, (Token t) -> ast.buildNode(AST.Type.StringLiteral, t.value));
+	requireTypeBuild(Token.Type.STRINGLITERAL, (int t) -> buildLeaf(AST.Type.StringLiteral, t));
 	requireToken(STMT_END);
 
-	currentScope().addVariable(new Variable(tokens[pos-4], tokens[pos-5].value, tokens[pos-2].value));
+	currentScope().addVariable(new Variable(tokens.get(pos-4), tokens.value(pos-5), tokens.value(pos-2)));
 
 	ast.buildNode(AST.Type.StringDeclaration, 2);
     }
@@ -143,7 +254,7 @@ public class LittleParser {
 	ast.buildNode(varType);
 	for(Token varName : varNames) {
 	    currentScope().addVariable(new Variable(varName, (varType == AST.Type.IntType ? "INT" : "FLOAT")));
-	    ast.buildNode(AST.Type.Identifier, varName.value);
+	    ast.buildNode(AST.Type.Identifier, varName.value, varName.offset);
 	}
 	ast.buildNode(AST.Type.VariableDeclaration, ast.endMark());
     }
@@ -155,9 +266,9 @@ public class LittleParser {
 
     
     private void parseVarType() {
-	if(!(matchTokenBuild(FLOAT, (Token t) -> ast.buildNode(AST.Type.FloatType)) ||
-	     matchTokenBuild(INT, (Token t) -> ast.buildNode(AST.Type.IntType))))
-	    throw new CompileException("Expected Variable Type", tokens[pos]);
+	if(!(matchTokenBuild(FLOAT, (int t) -> ast.buildNode(AST.Type.FloatType)) ||
+	     matchTokenBuild(INT, (int t) -> ast.buildNode(AST.Type.IntType))))
+	    throw new CompileException("Expected Variable Type", tokens.get(pos));
     }
 
     private AST.Type parseVarTypeAsType() {
@@ -165,7 +276,7 @@ public class LittleParser {
 	    return AST.Type.FloatType;
 	if(matchToken(INT))
 	    return AST.Type.IntType;
-	throw new CompileException("Expected variable type", tokens[pos]);
+	throw new CompileException("Expected variable type", tokens.get(pos));
     }
 
     private void parseIdList() {
@@ -179,7 +290,7 @@ public class LittleParser {
 
 	do {
 	    requireType(Token.Type.IDENTIFIER);
-	    ids.add(tokens[pos-1]);
+	    ids.add(tokens.get(pos-1));
 	} while(matchToken(COMMA_SEPARATOR));
 	
 	return ids;
@@ -200,7 +311,7 @@ public class LittleParser {
     private void parseFuncDecl() {
 	requireToken(FUNCTION);
 	parseAnyType();
-	requireTypeBuild(Token.Type.IDENTIFIER, (Token t) -> ast.buildNode(AST.Type.Identifier, t.value));
+	requireTypeBuild(Token.Type.IDENTIFIER, (int t) -> buildLeaf(AST.Type.Identifier, t));
 
 	addNewScope();
 
@@ -217,10 +328,10 @@ public class LittleParser {
     }
     
     private void parseAnyType() {
-	if(!(matchTokenBuild(FLOAT, (Token t) -> ast.buildNode(AST.Type.FloatType)) ||
-	     matchTokenBuild(INT, (Token t) -> ast.buildNode(AST.Type.IntType)) ||
-	     matchTokenBuild(VOID, (Token t) -> ast.buildNode(AST.Type.VoidType))))
-	    throw new CompileException("Expected return type", tokens[pos]);
+	if(!(matchTokenBuild(FLOAT, (int t) -> ast.buildNode(AST.Type.FloatType)) ||
+	     matchTokenBuild(INT, (int t) -> ast.buildNode(AST.Type.IntType)) ||
+	     matchTokenBuild(VOID, (int t) -> ast.buildNode(AST.Type.VoidType))))
+	    throw new CompileException("Expected return type", tokens.get(pos));
     }
 
     private void parseParamList() {
@@ -239,10 +350,10 @@ public class LittleParser {
 
     private void parseParamDecl() {
 	parseVarType();
-	requireTypeBuild(Token.Type.IDENTIFIER, (Token t) -> ast.buildNode(AST.Type.Identifier, t.value));
+	requireTypeBuild(Token.Type.IDENTIFIER, (int t) -> buildLeaf(AST.Type.Identifier, t));
 
 	ast.buildNode(AST.Type.Parameter, 2);
-	currentScope().addVariable(new Variable(tokens[pos-1], tokens[pos-2].value));
+	currentScope().addVariable(new Variable(tokens.get(pos-1), tokens.value(pos-2)));
     }
 
     private void parseFuncBody() {
@@ -250,13 +361,42 @@ public class LittleParser {
 	parseStmtList();
     }
 
+    /*
+     * IF and WHILE statements whose blocks are being parsed, innermost
+     * on top. parseStmtList goes into and out of nested blocks with this
+     * stack rather than by recursion, so they can nest to any depth.
+     */
+    private static final int THEN_BLOCK = 0, ELSE_BLOCK = 1, WHILE_BLOCK = 2;
+    private final Stack<Integer> openBlocks = new Stack<Integer>();
+
     private void parseStmtList() {
+	int depth = openBlocks.size();
 	ast.startMark();
-	while(matchStmt()) {
-	    parseStmt();
+	while(true) {
+	    if(matchIfStmt()) {
+		beginIfStmt();
+		ast.startMark();
+	    } else if(matchWhileStmt()) {
+		beginWhileStmt();
+		ast.startMark();
+	    } else if(matchStmt()) {
+		parseStmt();
+	    } else {
+		ast.buildNode(AST.Type.StatementList, ast.endMark());
+		ast.setTopScope(currentScope());
+		if(openBlocks.size() == depth)
+		    return;
+		int block = openBlocks.pop();
+		if(block == THEN_BLOCK && beginElse()) {
+		    openBlocks.push(ELSE_BLOCK);
+		    ast.startMark();
+		} else if(block == WHILE_BLOCK) {
+		    endWhileStmt();
+		} else {
+		    endIfStmt(block);
+		}
+	    }
 	}
-	ast.buildNode(AST.Type.StatementList, ast.endMark());
-	ast.setTopScope(currentScope());
     }
 
     private boolean matchStmt() {
@@ -268,12 +408,9 @@ public class LittleParser {
 	    matchReturnStmt();
     }
 
+    /* A statement other than IF or WHILE, which parseStmtList opens. */
     private void parseStmt() {
-	if(matchIfStmt())
-	    parseIfStmt();
-	else if(matchWhileStmt())
-	    parseWhileStmt();
-	else if(matchAssignStmt())
+	if(matchAssignStmt())
 	    parseAssignStmt();
 	else if(matchReadStmt())
 	    parseReadStmt();
@@ -282,7 +419,7 @@ public class LittleParser {
 	else if(matchReturnStmt())
 	    parseReturnStmt();
 	else
-	    throw new CompileException("THIS SHOULDN'T HAPPEN", tokens[pos]);
+	    throw new CompileException("THIS SHOULDN'T HAPPEN", tokens.get(pos));
     }
 
     private boolean matchIfStmt() {
@@ -309,7 +446,7 @@ public class LittleParser {
 	return seeToken(RETURN);
     }
     
-    private void parseIfStmt() {
+    private void beginIfStmt() {
 	ast.startMark();
 	addNewScope();
 	requireToken(IF);
@@ -317,14 +454,18 @@ public class LittleParser {
 	parseCondition();
 	requireToken(RIGHT_PAREN);
 	parseDecls();
-	parseStmtList();
-	parseElse();
+	openBlocks.push(THEN_BLOCK);
+    }
+
+    private void endIfStmt(int block) {
+	if(block == ELSE_BLOCK)
+	    closeScope();
 	requireToken(ENDIF);
 
 	ast.buildNode(AST.Type.If, ast.endMark());
     }
 
-    private void parseWhileStmt() {
+    private void beginWhileStmt() {
 	addNewScope();
 
 	requireToken(WHILE);
@@ -332,7 +473,10 @@ public class LittleParser {
 	parseCondition();
 	requireToken(RIGHT_PAREN);
 	parseDecls();
-	parseStmtList();
+	openBlocks.push(WHILE_BLOCK);
+    }
+
+    private void endWhileStmt() {
 	requireToken(ENDWHILE);
 
 	ast.buildNode(AST.Type.While, 3);
@@ -348,7 +492,7 @@ public class LittleParser {
 	requireToken(STMT_END);
 
 	for(Token t : tokens ) {
-	    ast.buildNode(AST.Type.Identifier, t.value);
+	    ast.buildNode(AST.Type.Identifier, t.value, t.offset);
 	}
 	ast.buildNode(AST.Type.Read, tokens.size());
     }
@@ -361,7 +505,7 @@ public class LittleParser {
 	requireToken(STMT_END);
 
 	for(Token t : tokens ) {
-	    ast.buildNode(AST.Type.Identifier, t.value);
+	    ast.buildNode(AST.Type.Identifier, t.value, t.offset);
 	}
 	ast.buildNode(AST.Type.Write, tokens.size());
     }
@@ -370,10 +514,12 @@ public class LittleParser {
 	requireToken(RETURN);
 	parseExpr();
 	requireToken(STMT_END);
+
+	ast.buildNode(AST.Type.Return, 1);
     }
 
     private void parseAssignStmt() {
-	requireTypeBuild(Token.Type.IDENTIFIER, (Token t) -> ast.buildNode(AST.Type.Identifier, t.value));
+	requireTypeBuild(Token.Type.IDENTIFIER, (int t) -> buildLeaf(AST.Type.Identifier, t));
 	requireToken(ASSIGN_OPERATOR);
 	parseExpr();
 	requireToken(STMT_END);
@@ -399,27 +545,67 @@ public class LittleParser {
 	return null;
     }
 
-    private void parseElse() {
+    /* Closes the IF's scope and, after ELSE, opens the else block's. */
+    private boolean beginElse() {
 	closeScope();
 	if(matchToken(ELSE)) {
 	    addNewScope();
 	    
 	    parseDecls();
-	    parseStmtList();
-	    
-	    closeScope();
+	    return true;
+	}
+	return false;
+    }
+
+    /*
+     * Expressions in parentheses and call arguments that are being
+     * parsed, innermost on top: for each, the operators waiting for their
+     * right operands and whether it is a call argument. parseExpr keeps
+     * them here rather than on the call stack, so parentheses can nest to
+     * any depth.
+     */
+    private static class ExprState {
+	final boolean argument;
+	AST.Type addOp, mulOp;
+
+	ExprState(boolean argument) {
+	    this.argument = argument;
 	}
     }
 
     private void parseExpr() {
-	AST.Type addOp = null;
-	do {
-	    parseFactor();
-	    if(addOp != null)
-		ast.buildNode(addOp, 2);
-	} while((addOp = parseAddOp()) != null);
+	List<ExprState> open = new ArrayList<ExprState>();
+	open.add(new ExprState(false));
+	while(true) {
+	    if(!parsePrimary(open))
+		continue;
+
+	    /* An operand is done; finish what it completes. */
+	    while(true) {
+		ExprState expr = open.get(open.size() - 1);
+		if(expr.mulOp != null)
+		    ast.buildNode(expr.mulOp, 2);
+		if((expr.mulOp = parseMulOp()) != null)
+		    break;
+		if(expr.addOp != null)
+		    ast.buildNode(expr.addOp, 2);
+		if((expr.addOp = parseAddOp()) != null)
+		    break;
+
+		open.remove(open.size() - 1);
+		if(open.isEmpty())
+		    return;
+		if(expr.argument && matchToken(COMMA_SEPARATOR)) {
+		    open.add(new ExprState(true));
+		    break;
+		}
+		requireToken(RIGHT_PAREN);
+		if(expr.argument)
+		    ast.buildNode(AST.Type.Call, ast.endMark());
+	    }
+	}
     }
-    
+
     private AST.Type parseAddOp() {
 	if(matchToken(ADD_OPERATOR))
 	    return AST.Type.Addition;
@@ -428,15 +614,6 @@ public class LittleParser {
 	return null;
     }
 
-    private void parseFactor() {
-	AST.Type mulOp = null;
-	do {
-	    parsePostfixExpr();
-	    if(mulOp != null)
-		ast.buildNode(mulOp, 2);
-	} while((mulOp = parseMulOp()) != null);
-    }
-
     private AST.Type parseMulOp() {
 	if(matchToken(MULTIPLY_OPERATOR))
 	    return AST.Type.Multiplication;
@@ -453,21 +630,33 @@ public class LittleParser {
 	    seeType(Token.Type.FLOATLITERAL);
     }
 
-    private void parsePostfixExpr() {
-	if(matchCallExpr())
-	    parseCallExpr();
-	else if(seeToken(LEFT_PAREN))
-	    parseParenExpr();
-	else if(!(matchTypeBuild(Token.Type.IDENTIFIER, (Token t) -> ast.buildNode(AST.Type.Identifier, t.value)) ||
-		  matchTypeBuild(Token.Type.INTLITERAL, (Token t) -> ast.buildNode(AST.Type.IntLiteral, t.value)) ||
-		  matchTypeBuild(Token.Type.FLOATLITERAL, (Token t) -> ast.buildNode(AST.Type.FloatLiteral, t.value))))
-	    throw new CompileException("Illegal start of expression", tokens[pos]);
-    }
-
-    private void parseParenExpr() {
-	requireToken(LEFT_PAREN);
-	parseExpr();
-	requireToken(RIGHT_PAREN);
+    /*
+     * Parses an identifier or literal and returns true, or opens a
+     * parenthesized expression or a call's first argument and returns
+     * false. A call without arguments is a whole operand. A call's node
+     * takes the function's name and every argument, so it is marked here
+     * and built when its closing parenthesis is matched.
+     */
+    private boolean parsePrimary(List<ExprState> open) {
+	if(matchCallExpr()) {
+	    ast.startMark();
+	    requireTypeBuild(Token.Type.IDENTIFIER, (int t) -> buildLeaf(AST.Type.Identifier, t));
+	    requireToken(LEFT_PAREN);
+	    if(!matchExpr()) {
+		requireToken(RIGHT_PAREN);
+		ast.buildNode(AST.Type.Call, ast.endMark());
+		return true;
+	    }
+	    open.add(new ExprState(true));
+	    return false;
+	} else if(matchToken(LEFT_PAREN)) {
+	    open.add(new ExprState(false));
+	    return false;
+	} else if(!(matchTypeBuild(Token.Type.IDENTIFIER, (int t) -> buildLeaf(AST.Type.Identifier, t)) ||
+		  matchTypeBuild(Token.Type.INTLITERAL, (int t) -> buildLeaf(AST.Type.IntLiteral, t)) ||
+		  matchTypeBuild(Token.Type.FLOATLITERAL, (int t) -> buildLeaf(AST.Type.FloatLiteral, t))))
+	    throw new CompileException("Illegal start of expression", tokens.get(pos));
+	return true;
     }
 
     private boolean matchCallExpr() {
@@ -484,95 +673,46 @@ public class LittleParser {
 	return true;
     }
 
-    private void parseCallExpr() {
-	requireType(Token.Type.IDENTIFIER);
-	requireToken(LEFT_PAREN);
-	parseExprList();
-	requireToken(RIGHT_PAREN);
-    }
-
-    private void parseExprList() {
-	if(matchExpr()) {
-	    do {
-		parseExpr();
-	    } while(matchToken(COMMA_SEPARATOR));
-	}
-    }
-
     private boolean matchExpr() {
 	return matchPostfixExpr();
     }
 
-    private TokenMatcher<Token.Type> typeMatcher = new TokenMatcher<Token.Type>() {
-	    private Token.Type type;
-	    public boolean matches(Token t) {
-		return t.type == type;
-	    }
-	    public String error() {
-		return "Expected token of type '"+type+"'";
-	    }
-	    public void setup(Token.Type type) {
-		this.type = type;
-	    }
-	};
-
-    private TokenMatcher<Token> tokenMatcher = new TokenMatcher<Token>() {
-	    private Token token;
-	    public boolean matches(Token t) {
-		return token.type == t.type && token.value.equals(t.value);
-	    }
-	    public String error() {
-		return "Expected token: '"+token.value+"'";
-	    }
-	    public void setup(Token token) {
-		this.token = token;
-	    }
-	};
-
-    private interface TokenMatcher<T> {
-	public boolean matches(Token t);
-	public String error();
-	public void setup(T conf);
-    }
-
     private void requireType(Token.Type type) {
-	typeMatcher.setup(type);
-	match(typeMatcher, false, true);
+	match(type, null, false, true);
     }
 
     private void requireToken(Token token) {
-	tokenMatcher.setup(token);
-	match(tokenMatcher, false, true);
+	match(token.type, token.value, false, true);
     }
 
     private boolean matchType(Token.Type type) {
-	typeMatcher.setup(type);
-	return match(typeMatcher, false, false) != null;
+	return match(type, null, false, false) >= 0;
     }
 
     private boolean matchToken(Token token) {
-	tokenMatcher.setup(token);
-	return match(tokenMatcher, false, false) != null;
+	return match(token.type, token.value, false, false) >= 0;
     }
 
     private boolean seeType(Token.Type type) {
-	typeMatcher.setup(type);
-	return match(typeMatcher, true, false) != null;
+	return match(type, null, true, false) >= 0;
     }
 
     private boolean seeToken(Token token) {
-	tokenMatcher.setup(token);
-	return match(tokenMatcher, true, false) != null;
+	return match(token.type, token.value, true, false) >= 0;
+    }
+
+    /* A node holding token t's value and position. */
+    private void buildLeaf(AST.Type type, int t) {
+	ast.buildNode(type, tokens.value(t), tokens.offset(t));
     }
 
     private interface ASTNodeBuilder {
-	public void build(Token src);
+	public void build(int src);
     }
 
     private boolean matchTypeBuild(Token.Type type, ASTNodeBuilder builder) {
-	typeMatcher.setup(type);
-	Token res = match(typeMatcher, false, false);
-	if(res != null) {
+	int res = match(type, null, false, false);
+	if(res >= 0) {
 	    builder.build(res);
 	    return true;
 	}
@@ -580,9 +720,8 @@ public class LittleParser {
     }
 
     private boolean matchTokenBuild(Token token, ASTNodeBuilder builder) {
-	tokenMatcher.setup(token);
-	Token res = match(tokenMatcher, false, false);
-	if(res != null) {
+	int res = match(token.type, token.value, false, false);
+	if(res >= 0) {
 	    builder.build(res);
 	    return true;
 	}
@@ -590,42 +729,45 @@ public class LittleParser {
     }
 
     private void requireTypeBuild(Token.Type type, ASTNodeBuilder builder) {
-	typeMatcher.setup(type);
-	Token res = match(typeMatcher, false, true);
-	if(res != null) {
+	int res = match(type, null, false, true);
+	if(res >= 0) {
 	    builder.build(res);
 	}
     }
 
     private void requireTokenBuild(Token token, ASTNodeBuilder builder) {
-	tokenMatcher.setup(token);
-	Token res = match(tokenMatcher, false, true);
-	if(res != null) {
+	int res = match(token.type, token.value, false, true);
+	if(res >= 0) {
 	    builder.build(res);
 	}
     }
 
-
-    private Token match(TokenMatcher m, boolean stay, boolean required) {
-	if(pos >= tokens.length) {
+    /*
+     * A null value matches any token of the given type. Returns the
+     * index of the matched token, or -1.
+     */
+    private int match(Token.Type type, String value, boolean stay, boolean required) {
+	if(pos >= tokens.size()) {
 	    if(required) {
 		throw new CompileException("Reached end of file while parsing",
-					   tokens[tokens.length-1]);
+					   tokens.get(tokens.size()-1));
 	    }
-	    return null;
+	    return -1;
 	}
 
-	Token cur = tokens[pos];
-	if(m.matches(cur)) {
+	int cur = pos;
+	if(tokens.type(cur) == type && (value == null || value.equals(tokens.value(cur)))) {
 	    if(!stay)
 		pos++;
 	    return cur;
 	}
 	if(required) {
-	    throw new CompileException(m.error(),
-				       tokens[pos]);
+	    throw new CompileException(value == null ?
+				       "Expected token of type '"+type+"'" :
+				       "Expected token: '"+value+"'",
+				       tokens.get(pos));
 	}
-	return null;
+	return -1;
     }
 
     public static Token keyword(String val) {
@@ -636,19 +778,13 @@ public class LittleParser {
 	return new Token(Token.Type.OPERATOR, val);
     }
 
+    /* The tree built, unless the parser was given another TreeBuilder. */
     public AST getAST() {
-	return ast;
+	return (AST)ast;
     }
     
     public static void main(String[] args) throws java.io.IOException {
 	String input = new String(java.nio.file.Files.readAllBytes(new java.io.File(args[0]).toPath()));
-	Token[] toks = new LittleScanner(input).getTokens();
-	try {
-	    LittleParser parser = new LittleParser(toks);
-
-	    parser.getAST().print();
-	} catch(CompileException c) {
-	    ErrorPrinter.printError(args[0], c);
-	}
+	System.out.print(new Compiler().compile(args[0], input).treeOutput());
     }
 }
@@ -1,90 +1,129 @@
 import java.util.*;
+import java.util.stream.IntStream;
 
+/*
+ * Tokens carry their offset in the program; the scanner records where
+ * each line starts in a SourceFile, which maps offsets back to lines
+ * and columns when an error is reported.
+ */
 public class LittleScanner {
-    private char[] input;
     private String inputStr;
+    private int length;
     private int pos = 0;
     private Token[] tokens;
+    private List<Token> tokenList = new ArrayList<Token>();
+    private final TokenTable table;
+    private final SourceFile source;
 
-    private int newLinePos = 0;
     private int curLine = 1;
+    private boolean stringCrossedLine = false;
     
     public LittleScanner(String program) {
-	input = program.toCharArray();
-	inputStr = program;
-	
-	List<Token> tokenList = new ArrayList<Token>();
+	this(new SourceFile(program));
+    }
+
+    /* Scans source, recording its lines there as it goes, so that an
+       error can be placed even if scanning fails. */
+    public LittleScanner(SourceFile source) {
+	this(source, 0, source.getText().length(), 1, null);
+    }
 
-	while(pos < input.length) {
+    /* Scans only program[from, to), numbering lines from firstLine.
+     * A region that does not start the program must start a line. */
+    public LittleScanner(String program, int from, int to, int firstLine) {
+	this(new SourceFile(program, from == 0 ? 0 : SourceFile.skipBlanks(program, from, to), firstLine),
+	     from, to, firstLine, null);
+    }
+
+    /* Scans into an off-heap TokenTable; getTokens() then returns null. */
+    public LittleScanner(SourceFile source, TokenTable table) {
+	this(source, 0, source.getText().length(), 1, table);
+    }
+
+    private LittleScanner(SourceFile source, int from, int to, int firstLine, TokenTable table) {
+	this.table = table;
+	this.source = source;
+	inputStr = source.getText();
+	length = to;
+	pos = from;
+	curLine = firstLine;
+
+	while(pos < length) {
 	    scanWhitespace();
 	    
-	    if(pos >= input.length)
+	    if(pos >= length)
 		break;
 		
 	    if(onComment()) {
 		skipLine();
 	    } else if(onQuote()) {
-		tokenList.add(new Token(Token.Type.STRINGLITERAL,
-					scanStringLiteral(),
-					curLine, pos - newLinePos));
+		emit(Token.Type.STRINGLITERAL, scanStringLiteral());
 	    } else if(onIdentifier()) {
 		String ident = scanIdentifier();
-		tokenList.add(new Token(isKeyword(ident) ? Token.Type.KEYWORD :	Token.Type.IDENTIFIER,
-					ident,
-					curLine, pos - newLinePos));
+		int keyword = KEYWORDS.indexOf(ident);
+		if(keyword >= 0)
+		    emit(Token.Type.KEYWORD, KEYWORDS.get(keyword));
+		else
+		    emit(Token.Type.IDENTIFIER, ident);
 	    } else if(onNumber()) {
-		tokenList.add(scanNumberToken());
-	    } else {
-		Token opToken = scanOperatorToken();
-		
-		if(opToken == null)
-		    throw new CompileException("Unexpected Token",curLine, pos-newLinePos);
-
-		tokenList.add(opToken);
+		scanNumberToken();
+	    } else if(!scanOperatorToken()) {
+		throw new CompileException("Unexpected Token", pos);
 	    }
 	}
-	tokens = new Token[tokenList.size()];
-	tokenList.toArray(tokens);
+	source.indexedTo(length);
+	if(table == null)
+	    tokens = tokenList.toArray(new Token[tokenList.size()]);
+	tokenList = null;
+    }
+
+    /* Adds a token ending at pos, placed value's length before it. */
+    private void emit(Token.Type type, String value) {
+	if(table != null)
+	    table.add(type, value, pos - value.length());
+	else
+	    tokenList.add(new Token(type, value, pos - value.length()));
     }
 
+    /* Operator tokens, like keywords, share the strings listed here. */
     private static final List<String> OPERATORS =
 	Arrays.asList(":=","+","-","*","/","=","!=","<",">","(",")",";",",","<=",">=");
-    private Token scanOperatorToken() {
-	if(pos+1 < input.length) {
-	    String duOp = inputStr.substring(pos,pos+2);
-	    if(OPERATORS.contains(duOp)) {
+    private boolean scanOperatorToken() {
+	if(pos+1 < length) {
+	    int duOp = OPERATORS.indexOf(inputStr.substring(pos,pos+2));
+	    if(duOp >= 0) {
 		pos=pos+2;
-		return new Token(Token.Type.OPERATOR, duOp, curLine, pos - newLinePos);
+		emit(Token.Type.OPERATOR, OPERATORS.get(duOp));
+		return true;
 	    }
 	}
 
-	String unOp = inputStr.substring(pos,pos+1);
-	if(OPERATORS.contains(unOp)) {
+	int unOp = OPERATORS.indexOf(inputStr.substring(pos,pos+1));
+	if(unOp >= 0) {
 	    pos=pos+1;
-	    return new Token(Token.Type.OPERATOR, unOp, curLine, pos - newLinePos);
+	    emit(Token.Type.OPERATOR, OPERATORS.get(unOp));
+	    return true;
 	}
 	
-	return null;
+	return false;
     }
 
     private boolean onNumber() {
-	return Character.isDigit(input[pos]) || input[pos] == '.';
+	return Character.isDigit(inputStr.charAt(pos)) || inputStr.charAt(pos) == '.';
     }
 
-    private Token scanNumberToken() {
+    private void scanNumberToken() {
 	int start = pos;
-	boolean foundDot = input[pos] == '.';
+	boolean foundDot = inputStr.charAt(pos) == '.';
 	pos++;
-	while(pos < input.length && Character.isDigit(input[pos]) || (!foundDot && input[pos] == '.')) {
-	    if(input[pos] == '.')
+	while(pos < length && (Character.isDigit(inputStr.charAt(pos)) || (!foundDot && inputStr.charAt(pos) == '.'))) {
+	    if(inputStr.charAt(pos) == '.')
 		foundDot = true;
 	    pos++;
 	}
-	if(foundDot && input[pos] == '.')
-	    System.exit(1);
-	return new Token(foundDot ? Token.Type.FLOATLITERAL : Token.Type.INTLITERAL,
-			 inputStr.substring(start,pos),
-			 curLine, pos - newLinePos);
+	if(foundDot && pos < length && inputStr.charAt(pos) == '.')
+	    throw new CompileException("Malformed number", pos);
+	emit(foundDot ? Token.Type.FLOATLITERAL : Token.Type.INTLITERAL, inputStr.substring(start,pos));
     }
     
     private static final List<String> KEYWORDS =
@@ -94,79 +133,181 @@ public class LittleScanner {
     }
 
     public boolean onIdentifier() {
-	return Character.isLetter(input[pos]);
+	return Character.isLetter(inputStr.charAt(pos));
     }
 
     public String scanIdentifier() {
 	int start = pos;
-	while(pos < input.length && Character.isLetterOrDigit(input[pos])) {
+	while(pos < length && Character.isLetterOrDigit(inputStr.charAt(pos))) {
 	    pos++;
 	}
 	return inputStr.substring(start, pos);
     }
 
     public boolean onQuote() {
-	return input[pos] == '"';
+	return inputStr.charAt(pos) == '"';
     }
 
     public String scanStringLiteral() {
 	int start = ++pos;
-	while(pos < input.length && !onQuote()) {
-	    pos++;
-	}
+	int quote = inputStr.indexOf('"', pos);
+	if(quote >= length)
+	    quote = -1;
+	pos = quote < 0 ? length : quote;
+	if(quote < 0 || lineEnd(start) < quote)
+	    stringCrossedLine = true;
 	pos++;
 	return inputStr.substring(start, pos-1);
     }
     
     public static final char COMMENT_CHAR = '-';    
     public boolean onComment() {
-	return pos+1 < input.length &&
-	    input[pos] == COMMENT_CHAR &&
-	    input[pos+1] == COMMENT_CHAR;
+	return pos+1 < length &&
+	    inputStr.charAt(pos) == COMMENT_CHAR &&
+	    inputStr.charAt(pos+1) == COMMENT_CHAR;
     }
 
     public void skipLine() {
-	while(pos < input.length && !skipEOL()) {
-	    pos++;
-	}
+	pos = lineEnd(pos);
+	if(pos < length)
+	    skipEOL();
     }
 
     public void scanWhitespace() {
-	while(pos < input.length && Character.isWhitespace(input[pos])) {
-	    if(!skipEOL())
+	while(pos < length) {
+	    char c = inputStr.charAt(pos);
+	    if(c == ' ' || c == '\t')
+		pos++;
+	    else if(!Character.isWhitespace(c))
+		break;
+	    else if(!skipEOL())
 		pos++;
 	}
     }
 
+    /*
+     * Line ends and closing quotes are found with String.indexOf, which
+     * HotSpot compiles to vector instructions. The next \n and \r are
+     * remembered, so skipping every comment costs one pass in all.
+     */
+    private int nextLF = -1, nextCR = -1;
+    private int lineEnd(int from) {
+	if(nextLF < from && (nextLF = inputStr.indexOf('\n', from)) < 0)
+	    nextLF = length;
+	if(nextCR < from && (nextCR = inputStr.indexOf('\r', from)) < 0)
+	    nextCR = length;
+	return Math.min(Math.min(nextLF, nextCR), length);
+    }
+
+    /* A new line's columns count from its first non-blank character. */
     public boolean skipEOL() {
-	if(input[pos] == '\n') {
+	if(inputStr.charAt(pos) == '\n') {
 	    pos++;
-
-	    scanWhitespace();
-	    newLinePos = pos;
-	    curLine++;
-	    return true;
-	}
-	if(input[pos] == '\r') {
+	} else if(inputStr.charAt(pos) == '\r') {
 	    pos++;
-	    if(pos < input.length && input[pos] == '\n')
+	    if(pos < length && inputStr.charAt(pos) == '\n')
 		pos++;
-
-	    scanWhitespace();
-	    newLinePos = pos;
-	    curLine++;
-	    return true;
+	} else {
+	    return false;
 	}
-	return false;
+	pos = SourceFile.skipBlanks(inputStr, pos, length);
+	source.startLine(pos);
+	curLine++;
+	return true;
     }
 
     public Token[] getTokens() {
 	return tokens;
     }
 
+    public SourceFile getSource() {
+	return source;
+    }
+
+    /*
+     * Scans a large program in chunks on all processors. The program is
+     * cut after newlines, the line breaks in each chunk are counted to
+     * number the next one's lines, and the chunks' tokens are joined in
+     * order. A string literal that runs over a line break (which the
+     * sequential scanner does not count as a line) or off the end of a
+     * chunk makes the cuts unsafe, so then the program is scanned again
+     * sequentially, as it is when it is too small to be worth cutting.
+     * The chunks' lines are then added to source in order.
+     */
+    public static Token[] scanParallel(SourceFile source) {
+	String program = source.getText();
+	int processors = Runtime.getRuntime().availableProcessors();
+	int chunkSize = Math.max(MIN_CHUNK, program.length() / (4 * processors) + 1);
+	if(program.length() < 2 * MIN_CHUNK)
+	    return new LittleScanner(source).getTokens();
+
+	List<Integer> cuts = new ArrayList<Integer>();
+	cuts.add(0);
+	int next;
+	while((next = program.indexOf('\n', cuts.get(cuts.size() - 1) + chunkSize)) >= 0 &&
+	      next + 1 < program.length())
+	    cuts.add(next + 1);
+	cuts.add(program.length());
+
+	int chunks = cuts.size() - 1;
+	int[] lines = new int[chunks + 1];
+	IntStream.range(0, chunks).parallel().forEach((int i) ->
+	    lines[i + 1] = countLineBreaks(program, cuts.get(i), cuts.get(i + 1)));
+	lines[0] = 1;
+	for(int i = 1; i <= chunks; i++)
+	    lines[i] += lines[i - 1];
+
+	LittleScanner[] scanners = new LittleScanner[chunks];
+	CompileException[] errors = new CompileException[chunks];
+	IntStream.range(0, chunks).parallel().forEach((int i) -> {
+	    try {
+		scanners[i] = new LittleScanner(program, cuts.get(i), cuts.get(i + 1), lines[i]);
+	    } catch(CompileException c) {
+		errors[i] = c;
+	    }
+	});
+
+	int count = 0;
+	for(int i = 0; i < chunks; i++) {
+	    if(errors[i] != null)
+		throw errors[i];
+	    if(scanners[i].stringCrossedLine)
+		return new LittleScanner(source).getTokens();
+	    count += scanners[i].tokens.length;
+	}
+	Token[] tokens = new Token[count];
+	count = 0;
+	for(LittleScanner scanner : scanners) {
+	    System.arraycopy(scanner.tokens, 0, tokens, count, scanner.tokens.length);
+	    count += scanner.tokens.length;
+	    source.append(scanner.source);
+	}
+	return tokens;
+    }
+
+    private static final int MIN_CHUNK = 1 << 20;
+
+    /* Line breaks as skipEOL counts them: \n, \r\n or a lone \r. */
+    private static int countLineBreaks(String program, int from, int to) {
+	int breaks = 0;
+	for(int i = from; i < to; i++) {
+	    char c = program.charAt(i);
+	    if(c == '\n' || (c == '\r' && (i + 1 >= program.length() || program.charAt(i + 1) != '\n')))
+		breaks++;
+	}
+	return breaks;
+    }
+
+    /* The line number reached at the end of the scanned region. */
+    public int getLine() {
+	return curLine;
+    }
+
     public static void main(String[] args) throws java.io.IOException {
-	String input = new String(java.nio.file.Files.readAllBytes(new java.io.File(args[0]).toPath()));
-	Token[] toks = new LittleScanner(input).getTokens();
+	boolean parallel = args[0].equals("-parallel");
+	String file = args[parallel ? 1 : 0];
+	String input = new String(java.nio.file.Files.readAllBytes(new java.io.File(file).toPath()));
+	Token[] toks = parallel ? scanParallel(new SourceFile(input)) : new LittleScanner(input).getTokens();
 	
 	for(int i = 0; i < toks.length; i++) {
 	    Token t = toks[i];
@@ -0,0 +1,121 @@
+import java.util.*;
+
+/*
+ * Which of some names -- variables or registers, each numbered by index
+ * -- may still be read after each basic block of straight-line IR with
+ * no declarations in it. Blocks start at labels and after branches; a
+ * call is taken to come back to the instruction after it, and RET and
+ * HALT to go nowhere in the code. What is live at an instruction inside
+ * a block is found by walking back from the block's end with step.
+ */
+public class Liveness {
+    private final Map<String, Integer> index;
+    private final List<Integer> starts = new ArrayList<Integer>();
+    private final BitSet[] out;
+
+    public Liveness(List<IRNode> instrs, Map<String, Integer> index) {
+	this.index = index;
+	int n = instrs.size();
+	Map<String, Integer> labels = new HashMap<String, Integer>();
+	boolean[] leader = new boolean[n + 1];
+	leader[0] = true;
+	for(int i = 0; i < n; i++) {
+	    IRNode node = instrs.get(i);
+	    if(node.getType() == IRNode.Type.LABEL) {
+		leader[i] = true;
+		labels.put(node.getRes(), i);
+	    } else if(node.getTarget() != null || !falls(node)) {
+		leader[i + 1] = true;
+	    }
+	}
+	int[] blockAt = new int[n + 1];
+	for(int i = 0; i < n; i++) {
+	    if(leader[i])
+		starts.add(i);
+	    blockAt[i] = starts.size() - 1;
+	}
+	int blocks = starts.size();
+	starts.add(n);
+
+	int[][] succ = new int[blocks][];
+	BitSet[] gen = new BitSet[blocks], kill = new BitSet[blocks];
+	BitSet[] in = new BitSet[blocks];
+	out = new BitSet[blocks];
+	for(int b = 0; b < blocks; b++) {
+	    IRNode last = instrs.get(end(b) - 1);
+	    String target = last.getTarget();
+	    boolean falls = falls(last) && b + 1 < blocks;
+	    Integer to = target == null ? null : labels.get(target);
+	    if(to == null)
+		succ[b] = falls ? new int[] {b + 1} : new int[0];
+	    else
+		succ[b] = falls ? new int[] {b + 1, blockAt[to]} : new int[] {blockAt[to]};
+
+	    gen[b] = new BitSet();
+	    kill[b] = new BitSet();
+	    for(int i = end(b) - 1; i >= start(b); i--)
+		step(instrs.get(i), gen[b], kill[b]);
+	    in[b] = (BitSet) gen[b].clone();
+	    out[b] = new BitSet();
+	}
+
+	boolean changed = true;
+	while(changed) {
+	    changed = false;
+	    for(int b = blocks - 1; b >= 0; b--) {
+		for(int s : succ[b])
+		    out[b].or(in[s]);
+		BitSet live = (BitSet) out[b].clone();
+		live.andNot(kill[b]);
+		live.or(gen[b]);
+		if(!live.equals(in[b])) {
+		    in[b] = live;
+		    changed = true;
+		}
+	    }
+	}
+    }
+
+    private static boolean falls(IRNode node) {
+	IRNode.Type type = node.getType();
+	return type != IRNode.Type.JUMP && type != IRNode.Type.RET && type != IRNode.Type.HALT;
+    }
+
+    public int blocks() {
+	return out.length;
+    }
+
+    /* Block b is instrs[start(b), end(b)). */
+    public int start(int b) {
+	return starts.get(b);
+    }
+
+    public int end(int b) {
+	return starts.get(b + 1);
+    }
+
+    /* What is live after block b, as a copy to walk back with. */
+    public BitSet liveOut(int b) {
+	return (BitSet) out[b].clone();
+    }
+
+    /* Moves live back over node. */
+    public void step(IRNode node, BitSet live) {
+	step(node, live, null);
+    }
+
+    /* As step; kill, if given, collects what node writes. */
+    private void step(IRNode node, BitSet live, BitSet kill) {
+	Integer d = index.get(node.getDef());
+	if(d != null) {
+	    live.clear(d);
+	    if(kill != null)
+		kill.set(d);
+	}
+	for(String use : node.getUses()) {
+	    Integer u = index.get(use);
+	    if(u != null)
+		live.set(u);
+	}
+    }
+}
@@ -0,0 +1,273 @@
+import java.util.*;
+
+/*
+ * Keeps the variables a loop mentions most in registers while it runs. A
+ * loop is the code from a label to the last jump back to it, when nothing
+ * outside jumps into it and it neither calls nor returns. Each variable
+ * promoted is loaded into a fresh register just before the loop's label,
+ * and if the loop writes it, stored back on every branch out of the loop.
+ *
+ * Loops are taken outermost first, each promoting the variables it
+ * mentions most, as weighed by the CostModel, until budget variables are
+ * held in registers counting those of the loops enclosing it. A variable
+ * is promoted only if the memory cycles its mentions are estimated to
+ * take in all the loop's runs outweigh its load and store.
+ */
+public class LoopPromotion implements PassManager.Pass {
+    public static final int DEFAULT_BUDGET = 4;
+    private static final String EXIT_SUFFIX = "_exit";
+
+    private final int budget;
+    private final CostModel costs;
+
+    public LoopPromotion(int budget, CostModel costs) {
+	this.budget = budget;
+	this.costs = costs;
+    }
+
+    public String name() {
+	return "promote-loops";
+    }
+
+    /* code[start] is the loop's label and code[end] the last jump back to it. */
+    private static class Loop {
+	final String header;
+	final int start, end;
+	Loop outer;
+	int depth;
+	/* Each promoted variable's register, and those the loop writes. */
+	final Map<String, String> registers = new LinkedHashMap<String, String>();
+	final Map<String, Boolean> floats = new HashMap<String, Boolean>();
+	final Set<String> written = new HashSet<String>();
+	/* The stores and jumps on its ways out, placed after its end. */
+	final List<IRNode> exits = new ArrayList<IRNode>();
+
+	Loop(String header, int start, int end) {
+	    this.header = header;
+	    this.start = start;
+	    this.end = end;
+	}
+
+	boolean contains(int i) {
+	    return start <= i && i <= end;
+	}
+
+	boolean holds(String var) {
+	    for(Loop l = this; l != null; l = l.outer) {
+		if(l.registers.containsKey(var))
+		    return true;
+	    }
+	    return false;
+	}
+
+	int held() {
+	    int held = 0;
+	    for(Loop l = this; l != null; l = l.outer)
+		held += l.registers.size();
+	    return held;
+	}
+    }
+
+    public List<IRNode> run(List<IRNode> code) {
+	List<Loop> loops = loops(code);
+	if(loops.isEmpty() || budget <= 0)
+	    return code;
+
+	Loop[] innermost = new Loop[code.size()];
+	for(Loop loop : loops) {
+	    for(int i = loop.start; i <= loop.end; i++)
+		innermost[i] = loop;
+	}
+
+	Set<String> strings = new HashSet<String>();
+	for(IRNode node : code) {
+	    if(!node.isDeclaration() && node.getType() == IRNode.Type.WRITES)
+		strings.add(node.getRes());
+	}
+
+	int next = CodeGenerator.maxRegister(code) + 1;
+	boolean promoted = false;
+	for(Loop loop : loops) {
+	    int room = budget - (loop.outer == null ? 0 : loop.outer.held());
+	    if(room <= 0)
+		continue;
+	    Map<String, Long> saved = new LinkedHashMap<String, Long>();
+	    Map<String, Boolean> floats = new HashMap<String, Boolean>();
+	    for(int i = loop.start; i <= loop.end; i++) {
+		IRNode node = code.get(i);
+		if(node.isDeclaration())
+		    continue;
+		long weight = CostModel.times(costs.weight(innermost[i].depth - loop.depth + 1),
+					      costs.memory() - costs.register());
+		List<String> operands = node.getUses();
+		if(node.getDef() != null)
+		    operands.add(node.getDef());
+		for(String var : operands) {
+		    if(!IRNode.isMemory(var) || strings.contains(var) ||
+		       loop.outer != null && loop.outer.holds(var))
+			continue;
+		    saved.merge(var, weight, CostModel::plus);
+		    floats.putIfAbsent(var, node.getType().isFloat());
+		}
+		if(IRNode.isMemory(node.getDef()))
+		    loop.written.add(node.getDef());
+	    }
+
+	    List<String> vars = new ArrayList<String>(saved.keySet());
+	    vars.sort((a, b) -> Long.compare(saved.get(b), saved.get(a)));
+	    for(String var : vars) {
+		if(loop.registers.size() == room)
+		    break;
+		String reg = "$T"+next;
+		long cost = costs.cost(CallPasses.store(floats.get(var), var, reg));
+		if(loop.written.contains(var))
+		    cost += costs.cost(CallPasses.store(floats.get(var), reg, var));
+		if(saved.get(var) <= cost)
+		    continue;
+		loop.registers.put(var, reg);
+		loop.floats.put(var, floats.get(var));
+		next++;
+	    }
+	    loop.written.retainAll(loop.registers.keySet());
+	    promoted |= !loop.registers.isEmpty();
+	}
+	if(!promoted)
+	    return code;
+
+	Map<String, Integer> labels = new HashMap<String, Integer>();
+	for(int i = 0; i < code.size(); i++) {
+	    IRNode node = code.get(i);
+	    if(!node.isDeclaration() && node.getType() == IRNode.Type.LABEL)
+		labels.put(node.getRes(), i);
+	}
+
+	List<IRNode> out = new ArrayList<IRNode>(code.size());
+	Map<String, String> exitLabels = new HashMap<String, String>();
+	int l = 0;
+	for(int i = 0; i < code.size(); i++) {
+	    for(; l < loops.size() && loops.get(l).start == i; l++) {
+		Loop loop = loops.get(l);
+		for(String var : loop.registers.keySet())
+		    out.add(CallPasses.store(loop.floats.get(var), var, loop.registers.get(var)));
+	    }
+
+	    IRNode node = code.get(i);
+	    Loop in = innermost[i];
+	    if(in == null || node.isDeclaration()) {
+		out.add(node);
+		continue;
+	    }
+	    Map<String, String> rename = new HashMap<String, String>();
+	    for(Loop loop = in; loop != null; loop = loop.outer)
+		rename.putAll(loop.registers);
+	    node = StorageCoalescing.rename(node, rename);
+
+	    String target = node.getTarget();
+	    if(target != null && !in.contains(labels.get(target))) {
+		String exit = exitLabels.get(in.header+" "+target);
+		if(exit == null)
+		    exit = exit(in, target, labels, exitLabels);
+		if(!exit.equals(target))
+		    node = new IRNode(node.getType(), node.getOp1(), node.getOp2(), exit);
+	    }
+	    out.add(node);
+
+	    for(Loop loop = in; loop != null && loop.end == i; loop = loop.outer)
+		out.addAll(loop.exits);
+	}
+	return out;
+    }
+
+    /*
+     * The label a branch from inside in to target should take instead, so
+     * that the loops it leaves store their variables back, or target if
+     * none of them wrote any.
+     */
+    private static String exit(Loop in, String target, Map<String, Integer> labels,
+			       Map<String, String> exitLabels) {
+	List<IRNode> stores = new ArrayList<IRNode>();
+	Loop last = in;
+	for(Loop loop = in; loop != null && !loop.contains(labels.get(target)); loop = loop.outer) {
+	    for(String var : loop.written)
+		stores.add(CallPasses.store(loop.floats.get(var), loop.registers.get(var), var));
+	    last = loop;
+	}
+	String exit = target;
+	if(!stores.isEmpty()) {
+	    int k = exitLabels.size();
+	    do {
+		exit = in.header+EXIT_SUFFIX+k++;
+	    } while(labels.containsKey(exit));
+	    last.exits.add(new IRNode(IRNode.Type.LABEL, exit));
+	    last.exits.addAll(stores);
+	    last.exits.add(new IRNode(IRNode.Type.JUMP, target));
+	}
+	exitLabels.put(in.header+" "+target, exit);
+	return exit;
+    }
+
+    /*
+     * The loops of code that may be promoted, outermost first, each linked
+     * to the one it is nested in.
+     */
+    private static List<Loop> loops(List<IRNode> code) {
+	Map<String, Integer> labels = new HashMap<String, Integer>();
+	int n = code.size();
+	for(int i = 0; i < n; i++) {
+	    IRNode node = code.get(i);
+	    if(!node.isDeclaration() && node.getType() == IRNode.Type.LABEL)
+		labels.put(node.getRes(), i);
+	}
+
+	/* The first and last branches to each label, and each loop's last jump back. */
+	int[] firstFrom = new int[n], lastFrom = new int[n], backFrom = new int[n];
+	Arrays.fill(firstFrom, n);
+	Arrays.fill(lastFrom, -1);
+	Arrays.fill(backFrom, -1);
+	for(int i = 0; i < n; i++) {
+	    String target = code.get(i).getTarget();
+	    Integer to = target == null ? null : labels.get(target);
+	    if(to == null)
+		continue;
+	    firstFrom[to] = Math.min(firstFrom[to], i);
+	    lastFrom[to] = Math.max(lastFrom[to], i);
+	    if(to < i && code.get(i).getType() == IRNode.Type.JUMP)
+		backFrom[to] = i;
+	}
+
+	List<Loop> loops = new ArrayList<Loop>();
+	Deque<Loop> open = new ArrayDeque<Loop>();
+	for(int h = 0; h < n; h++) {
+	    while(!open.isEmpty() && open.peek().end < h)
+		open.pop();
+	    int end = backFrom[h];
+	    if(end < 0 || !open.isEmpty() && open.peek().end < end ||
+	       !closed(code, h, end, firstFrom, lastFrom))
+		continue;
+	    Loop loop = new Loop(code.get(h).getRes(), h, end);
+	    loop.outer = open.peek();
+	    loop.depth = open.size();
+	    open.push(loop);
+	    loops.add(loop);
+	}
+	return loops;
+    }
+
+    /* Whether code[start, end] is only entered at start and neither calls nor returns. */
+    private static boolean closed(List<IRNode> code, int start, int end,
+				  int[] firstFrom, int[] lastFrom) {
+	if(firstFrom[start] < start || lastFrom[start] > end)
+	    return false;
+	for(int i = start; i <= end; i++) {
+	    IRNode node = code.get(i);
+	    if(node.isDeclaration())
+		continue;
+	    IRNode.Type type = node.getType();
+	    if(type == IRNode.Type.JSR || type == IRNode.Type.LINK || type.mayOmitOperand())
+		return false;
+	    if(type == IRNode.Type.LABEL && i > start && (firstFrom[i] < start || lastFrom[i] > end))
+		return false;
+	}
+	return true;
+    }
+}
@@ -0,0 +1,74 @@
+import java.io.*;
+import java.util.StringTokenizer;
+
+public interface MicroIO {
+    public int readInt();
+    public double readFloat();
+    public void writeInt(int value);
+    public void writeFloat(double value);
+    public void writeString(String value);
+
+    /* Input that ran out or does not parse, reported like a simulator trap. */
+    public static class TrapException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public TrapException(String msg) {
+	    super(msg);
+	}
+    }
+
+    public static class Console implements MicroIO {
+	private final BufferedReader in;
+	private final PrintStream out;
+	private StringTokenizer pending = new StringTokenizer("");
+
+	public Console(InputStream in, PrintStream out) {
+	    this.in = new BufferedReader(new InputStreamReader(in));
+	    this.out = out;
+	}
+
+	private String next() {
+	    try {
+		while(!pending.hasMoreTokens()) {
+		    String line = in.readLine();
+		    if(line == null)
+			throw new TrapException("Unexpected end of input");
+		    pending = new StringTokenizer(line);
+		}
+		return pending.nextToken();
+	    } catch(IOException e) {
+		throw new TrapException(e.getMessage());
+	    }
+	}
+
+	public int readInt() {
+	    String token = next();
+	    try {
+		return Integer.parseInt(token);
+	    } catch(NumberFormatException e) {
+		throw new TrapException("Bad input '"+token+"', expected an integer");
+	    }
+	}
+
+	public double readFloat() {
+	    String token = next();
+	    try {
+		return Double.parseDouble(token);
+	    } catch(NumberFormatException e) {
+		throw new TrapException("Bad input '"+token+"', expected a real");
+	    }
+	}
+
+	public void writeInt(int value) {
+	    out.print(value);
+	}
+
+	public void writeFloat(double value) {
+	    out.print(TinySimulator.formatReal(value));
+	}
+
+	public void writeString(String value) {
+	    out.print(value);
+	}
+    }
+}
@@ -0,0 +1,3 @@
+public interface MicroProgram {
+    public void run(MicroIO io);
+}
@@ -0,0 +1,149 @@
+import java.util.*;
+
+/*
+ * A syntax tree stored off-heap in a CompileArena, built by LittleParser
+ * like an AST and read by CodeGenerator through SyntaxTree. Each node is
+ * nine ints: type, interned value (or -1), scope (or -1), where its
+ * children start in the child list and how many there are, offset (or
+ * -1), and Resolver's variable (or -1), slot and value type (or -1).
+ * A Node is a flyweight: just the table and an index.
+ */
+public class NodeTable implements TreeBuilder, SyntaxTree<NodeTable.Node> {
+    private static final AST.Type[] TYPES = AST.Type.values();
+    private static final ValueType[] VALUE_TYPES = ValueType.values();
+    private static final int NODE_INTS = 9;
+
+    public static final class Node {
+	final int index;
+
+	Node(int index) {
+	    this.index = index;
+	}
+    }
+
+    private final CompileArena arena;
+    private final CompileArena.Ints nodes, children, stack, marks;
+    private final List<Scope> scopes = new ArrayList<Scope>();
+    private final List<Variable> variables = new ArrayList<Variable>();
+
+    public NodeTable(CompileArena arena) {
+	this.arena = arena;
+	nodes = new CompileArena.Ints(arena);
+	children = new CompileArena.Ints(arena);
+	stack = new CompileArena.Ints(arena);
+	marks = new CompileArena.Ints(arena);
+    }
+
+    private void push(AST.Type type, int value, int numChildren, int offset) {
+	int node = nodes.size() / NODE_INTS;
+	int first = children.size();
+	int from = stack.size() - numChildren;
+	for(int i = from; i < stack.size(); i++)
+	    children.add(stack.get(i));
+	stack.truncate(from);
+
+	nodes.add(type.ordinal());
+	nodes.add(value);
+	nodes.add(-1);
+	nodes.add(first);
+	nodes.add(numChildren);
+	nodes.add(offset);
+	nodes.add(-1);
+	nodes.add(-1);
+	nodes.add(-1);
+	stack.add(node);
+    }
+
+    public void buildNode(AST.Type type) {
+	push(type, -1, 0, -1);
+    }
+
+    public void buildNode(AST.Type type, String value, int offset) {
+	push(type, arena.intern(value), 0, offset);
+    }
+
+    public void buildNode(AST.Type type, int numChildren) {
+	push(type, -1, numChildren, -1);
+    }
+
+    public void setTopScope(Scope scope) {
+	nodes.set(stack.get(stack.size() - 1) * NODE_INTS + 2, scopes.size());
+	scopes.add(scope);
+    }
+
+    public void startMark() {
+	marks.add(stack.size());
+    }
+
+    public int endMark() {
+	int mark = marks.get(marks.size() - 1);
+	marks.truncate(marks.size() - 1);
+	return stack.size() - mark;
+    }
+
+    public Node getRoot() {
+	return new Node(stack.get(stack.size() - 1));
+    }
+
+    public AST.Type type(Node node) {
+	return TYPES[nodes.get(node.index * NODE_INTS)];
+    }
+
+    public String value(Node node) {
+	int value = nodes.get(node.index * NODE_INTS + 1);
+	return value < 0 ? null : arena.string(value);
+    }
+
+    public Scope scope(Node node) {
+	int scope = nodes.get(node.index * NODE_INTS + 2);
+	return scope < 0 ? null : scopes.get(scope);
+    }
+
+    public int size(Node node) {
+	return nodes.get(node.index * NODE_INTS + 4);
+    }
+
+    public Node child(Node node, int i) {
+	return new Node(children.get(nodes.get(node.index * NODE_INTS + 3) + i));
+    }
+
+    public int offset(Node node) {
+	return nodes.get(node.index * NODE_INTS + 5);
+    }
+
+    public Variable variable(Node node) {
+	int variable = nodes.get(node.index * NODE_INTS + 6);
+	return variable < 0 ? null : variables.get(variable);
+    }
+
+    public int slot(Node node) {
+	return nodes.get(node.index * NODE_INTS + 7);
+    }
+
+    public ValueType valueType(Node node) {
+	int type = nodes.get(node.index * NODE_INTS + 8);
+	return type < 0 ? null : VALUE_TYPES[type];
+    }
+
+    public void resolve(Node node, Variable variable, int slot, ValueType valueType) {
+	int at = node.index * NODE_INTS;
+	if(variable != null) {
+	    nodes.set(at + 6, variables.size());
+	    variables.add(variable);
+	} else {
+	    nodes.set(at + 6, -1);
+	}
+	nodes.set(at + 7, slot);
+	nodes.set(at + 8, valueType == null ? -1 : valueType.ordinal());
+    }
+
+    /* The same text as AST.toXml. */
+    public String toXml() {
+	StringBuffer buf = new StringBuffer();
+	for(int i = 0; i < stack.size(); i++) {
+	    appendXml(buf, new Node(stack.get(i)));
+	    buf.append("\n");
+	}
+	return buf.toString();
+    }
+}
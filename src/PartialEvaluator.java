@@ -0,0 +1,186 @@
+import java.util.*;
+
+public class PartialEvaluator implements PassManager.Pass {
+    public static final long DEFAULT_BUDGET = 1000000;
+    private static final String RESUME_LABEL = "peval_resume";
+
+    private final long budget;
+
+    public PartialEvaluator(long budget) {
+	this.budget = budget;
+    }
+
+    public String name() {
+	return "peval";
+    }
+
+    public List<IRNode> run(List<IRNode> code) {
+	Map<String, Integer> labels = new HashMap<String, Integer>();
+	Map<String, String> varTypes = new HashMap<String, String>();
+	for(int i = 0; i < code.size(); i++) {
+	    IRNode node = code.get(i);
+	    if(node.isDeclaration()) {
+		Scope scope = node.getScope();
+		for(String name : scope.getDeclared()) {
+		    Variable var = scope.getVariable(name);
+		    varTypes.put(var.makeName(), var.type);
+		}
+	    } else if(node.getType() == IRNode.Type.LABEL) {
+		labels.put(node.getRes(), i);
+	    }
+	}
+
+	Map<String, Double> values = new LinkedHashMap<String, Double>();
+	Map<String, Boolean> floats = new HashMap<String, Boolean>();
+	List<IRNode> writes = new ArrayList<IRNode>();
+	int nextReg = CodeGenerator.maxRegister(code) + 1;
+
+	long steps = 0;
+	int pc = 0;
+	while(pc < code.size()) {
+	    IRNode node = code.get(pc);
+	    if(node.isDeclaration()) {
+		pc++;
+		continue;
+	    }
+	    if(++steps > budget)
+		return code;
+
+	    IRNode.Type type = node.getType();
+	    boolean f = type.isFloat();
+	    if(type == IRNode.Type.LABEL) {
+		pc++;
+		continue;
+	    }
+	    if(type.isRead()) {
+		break;
+	    } else if(type.isStore()) {
+		Double value = value(node.getOp1(), values);
+		set(node.getRes(), value, f, values, floats);
+	    } else if(type.isArithmetic()) {
+		double a = value(node.getOp1(), values);
+		double b = value(node.getOp2(), values);
+		double r;
+		switch(type) {
+		case ADDI: r = (int) a + (int) b; break;
+		case SUBI: r = (int) a - (int) b; break;
+		case MULTI: r = (int) a * (int) b; break;
+		case DIVI:
+		    if((int) b == 0)
+			return code;
+		    r = (int) a / (int) b;
+		    break;
+		case ADDF: r = a + b; break;
+		case SUBF: r = a - b; break;
+		case MULTF: r = a * b; break;
+		default: r = a / b; break;
+		}
+		set(node.getRes(), r, f, values, floats);
+	    } else if(type.isCompare()) {
+		double a = value(node.getOp1(), values);
+		double b = value(node.getOp2(), values);
+		int cmp = f ? Double.compare(a, b) : Integer.compare((int) a, (int) b);
+		if(holds(type, cmp)) {
+		    pc = labels.get(node.getRes());
+		    continue;
+		}
+	    } else if(type == IRNode.Type.JUMP) {
+		pc = labels.get(node.getRes());
+		continue;
+	    } else if(type == IRNode.Type.WRITES) {
+		writes.add(node);
+	    } else if(type.isWrite()) {
+		String literal = literal(value(node.getRes(), values), f);
+		if(literal == null)
+		    return code;
+		String reg = "$T"+(nextReg++);
+		writes.add(new IRNode(f ? IRNode.Type.STOREF : IRNode.Type.STOREI, literal, reg));
+		writes.add(new IRNode(type, reg));
+	    } else {
+		return code;
+	    }
+	    pc++;
+	}
+
+	List<IRNode> out = new ArrayList<IRNode>();
+	for(IRNode node : code) {
+	    if(node.isDeclaration())
+		out.add(node);
+	}
+	out.addAll(writes);
+
+	Map<String, Integer> uses = IRPasses.countUses(code);
+	for(Map.Entry<String, Double> entry : values.entrySet()) {
+	    String name = entry.getKey();
+	    boolean f;
+	    if(IRNode.isRegister(name)) {
+		if(pc >= code.size() || !uses.containsKey(name))
+		    continue;
+		f = floats.get(name);
+	    } else {
+		f = "FLOAT".equals(varTypes.get(name));
+	    }
+	    String literal = literal(entry.getValue(), f);
+	    if(literal == null)
+		return code;
+	    out.add(new IRNode(f ? IRNode.Type.STOREF : IRNode.Type.STOREI, literal, name));
+	}
+
+	if(pc < code.size()) {
+	    /* Resume at the READ with only the code that can run from there,
+	       which may still be some before it if a loop leads back. */
+	    List<IRNode> resumed = new ArrayList<IRNode>();
+	    resumed.add(new IRNode(IRNode.Type.JUMP, RESUME_LABEL));
+	    int resume = -1;
+	    for(int i = 0; i < code.size(); i++) {
+		if(i == pc) {
+		    resume = resumed.size();
+		    resumed.add(new IRNode(IRNode.Type.LABEL, RESUME_LABEL));
+		}
+		if(!code.get(i).isDeclaration())
+		    resumed.add(code.get(i));
+	    }
+	    boolean[] reachable = IRPasses.reachable(resumed);
+	    int first = 1;
+	    while(!reachable[first])
+		first++;
+	    if(first == resume)
+		reachable[0] = false;
+	    for(int i = 0; i < resumed.size(); i++) {
+		if(reachable[i])
+		    out.add(resumed.get(i));
+	    }
+	}
+	return out;
+    }
+
+    private static void set(String name, double value, boolean f, Map<String, Double> values,
+			    Map<String, Boolean> floats) {
+	values.put(name, value);
+	floats.put(name, f);
+    }
+
+    private static double value(String operand, Map<String, Double> values) {
+	if(IRNode.isLiteral(operand))
+	    return Double.parseDouble(operand);
+	Double value = values.get(operand);
+	return value == null ? 0 : value;
+    }
+
+    private static String literal(double value, boolean f) {
+	if(f)
+	    return IRPasses.formatFloat(value);
+	return Integer.toString((int) value);
+    }
+
+    private static boolean holds(IRNode.Type type, int cmp) {
+	switch(type) {
+	case GTI: case GTF: return cmp > 0;
+	case GEI: case GEF: return cmp >= 0;
+	case LTI: case LTF: return cmp < 0;
+	case LEI: case LEF: return cmp <= 0;
+	case NEI: case NEF: return cmp != 0;
+	default: return cmp == 0;
+	}
+    }
+}
@@ -0,0 +1,150 @@
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.function.BiFunction;
+
+public class PassManager {
+    static interface Pass {
+	public String name();
+	public List<IRNode> run(List<IRNode> code);
+    }
+
+    /* Each pass's factory, given its argument and the costs it may weigh code by. */
+    private static final Map<String, BiFunction<String, CostModel, Pass>> PASSES =
+	new LinkedHashMap<String, BiFunction<String, CostModel, Pass>>();
+    static {
+	register(new IRPasses.CopyPropagation());
+	register(new IRPasses.DeadCodeElimination());
+	register(new IRPasses.JumpCleanup());
+	register(new IRPasses.ConstantFolding());
+	register(new StorageCoalescing());
+	register(new CallPasses.Inliner());
+	register(new CallPasses.TailCalls());
+	PASSES.put("peval", (arg, costs) -> new PartialEvaluator(arg == null ? PartialEvaluator.DEFAULT_BUDGET : Long.parseLong(arg)));
+	PASSES.put("promote-loops", (arg, costs) ->
+		   new LoopPromotion(arg == null ? LoopPromotion.DEFAULT_BUDGET : Integer.parseInt(arg), costs));
+    }
+
+    private static void register(Pass pass) {
+	PASSES.put(pass.name(), (arg, costs) -> pass);
+    }
+
+    public static Pass lookup(String name) {
+	return lookup(name, CostModel.DEFAULT);
+    }
+
+    /* Pass names may carry an argument, as in "peval=5000". */
+    public static Pass lookup(String name, CostModel costs) {
+	int eq = name.indexOf('=');
+	String arg = eq < 0 ? null : name.substring(eq+1);
+	BiFunction<String, CostModel, Pass> factory = PASSES.get(eq < 0 ? name : name.substring(0, eq));
+	if(factory == null)
+	    throw new CompileException("Unknown optimization pass '"+name+"', expected one of "+PASSES.keySet());
+	try {
+	    return factory.apply(arg, costs);
+	} catch(NumberFormatException e) {
+	    throw new CompileException("Bad argument for optimization pass '"+name+"'");
+	}
+    }
+
+    public static List<String> preset(int level) {
+	switch(level) {
+	case 0:
+	    return Arrays.asList();
+	case 1:
+	    return Arrays.asList("tail-calls", "fold-copies", "dce", "jump-cleanup");
+	case 2:
+	    return Arrays.asList("inline", "tail-calls", "promote-loops", "fold-copies", "const-fold",
+				 "fold-copies", "dce", "jump-cleanup", "coalesce-storage");
+	default:
+	    throw new CompileException("Unknown optimization level -O"+level);
+	}
+    }
+
+    static class PassStats {
+	public final String name;
+	public final long nanos;
+	public final int before, after;
+	public final long allocated;
+
+	PassStats(String name, long nanos, int before, int after, long allocated) {
+	    this.name = name;
+	    this.nanos = nanos;
+	    this.before = before;
+	    this.after = after;
+	    this.allocated = allocated;
+	}
+    }
+
+    private final List<Pass> passes = new ArrayList<Pass>();
+    private final List<PassStats> stats = new ArrayList<PassStats>();
+    private boolean verify;
+
+    public PassManager(List<String> passNames, boolean verify) {
+	this(passNames, verify, CostModel.DEFAULT);
+    }
+
+    public PassManager(List<String> passNames, boolean verify, CostModel costs) {
+	for(String name : passNames)
+	    passes.add(lookup(name, costs));
+	this.verify = verify;
+    }
+
+    public List<IRNode> run(List<IRNode> code) {
+	if(verify)
+	    IRVerifier.verify(code, "IR generation");
+
+	for(Pass pass : passes) {
+	    int before = countInstructions(code);
+	    long startAlloc = allocatedBytes();
+	    long start = System.nanoTime();
+
+	    code = pass.run(code);
+
+	    long nanos = System.nanoTime() - start;
+	    long allocated = allocatedBytes() - startAlloc;
+	    stats.add(new PassStats(pass.name(), nanos, before, countInstructions(code), allocated));
+
+	    if(verify)
+		IRVerifier.verify(code, "pass '"+pass.name()+"'");
+	}
+	return code;
+    }
+
+    public List<PassStats> getStats() {
+	return stats;
+    }
+
+    public String report() {
+	return report(stats);
+    }
+
+    public static String report(List<PassStats> stats) {
+	StringBuffer buf = new StringBuffer();
+	buf.append(String.format("%-16s %10s %8s %8s %12s%n", "pass", "time(ms)", "before", "after", "alloc(B)"));
+	long totalNanos = 0, totalAlloc = 0;
+	for(PassStats s : stats) {
+	    buf.append(String.format("%-16s %10.3f %8d %8d %12d%n",
+				     s.name, s.nanos / 1e6, s.before, s.after, s.allocated));
+	    totalNanos += s.nanos;
+	    totalAlloc += s.allocated;
+	}
+	buf.append(String.format("%-16s %10.3f %8s %8s %12d%n", "total", totalNanos / 1e6, "", "", totalAlloc));
+	return buf.toString();
+    }
+
+    public static int countInstructions(List<IRNode> code) {
+	int count = 0;
+	for(IRNode node : code) {
+	    if(!node.isDeclaration())
+		count++;
+	}
+	return count;
+    }
+
+    private static final java.lang.management.ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    static long allocatedBytes() {
+	if(THREADS instanceof com.sun.management.ThreadMXBean)
+	    return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+	return 0;
+    }
+}
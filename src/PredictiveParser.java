@@ -0,0 +1,512 @@
+import java.util.*;
+
+/*
+ * A faster parser for the same grammar as LittleParser, building the
+ * same tree through the same TreeBuilder calls. Each token is first
+ * given an int kind, and the parser then decides everything on the
+ * kind of the next token, with tables of the tokens that can start a
+ * declaration, statement or expression and of operator precedences: no
+ * string comparisons after that and no backtracking. The only look past the next
+ * token tells a call, IDENTIFIER '(', from a variable.
+ *
+ * Expressions are parsed by precedence climbing with the pending
+ * operators kept on a stack, which builds nodes in the order
+ * LittleParser's recursive descent does. Like LittleParser, blocks and
+ * parentheses are tracked on stacks, not by recursion.
+ *
+ * On any error it gives up: parse then runs a LittleParser instead, so
+ * that errors are reported exactly as before.
+ */
+public class PredictiveParser {
+    private static final int IDENTIFIER = 0, INTLITERAL = 1, FLOATLITERAL = 2, STRINGLITERAL = 3,
+	PROGRAM = 4, BEGIN = 5, END = 6, FUNCTION = 7, READ = 8, WRITE = 9, IF = 10, ELSE = 11,
+	ENDIF = 12, WHILE = 13, ENDWHILE = 14, CONTINUE = 15, BREAK = 16, RETURN = 17, INT = 18,
+	VOID = 19, STRING = 20, FLOAT = 21, ASSIGN = 22, PLUS = 23, MINUS = 24, TIMES = 25,
+	DIVIDE = 26, EQUAL = 27, NOT_EQUAL = 28, LESS = 29, GREATER = 30, LEFT_PAREN = 31,
+	RIGHT_PAREN = 32, SEMICOLON = 33, COMMA = 34, LESS_EQUAL = 35, GREATER_EQUAL = 36,
+	EOF = 37, KINDS = 38;
+
+    /*
+     * Keywords and operators are told apart by their first two
+     * characters and length, then checked against the name found.
+     */
+    private static final String[] NAMES = new String[KINDS];
+    private static final byte[] BY_SHAPE = new byte[1 << 15];
+    static {
+	String[] names = {"PROGRAM", "BEGIN", "END", "FUNCTION", "READ", "WRITE", "IF", "ELSE",
+			  "ENDIF", "WHILE", "ENDWHILE", "CONTINUE", "BREAK", "RETURN", "INT",
+			  "VOID", "STRING", "FLOAT", ":=", "+", "-", "*", "/", "=", "!=", "<",
+			  ">", "(", ")", ";", ",", "<=", ">="};
+	for(int i = 0; i < names.length; i++) {
+	    int k = PROGRAM + i;
+	    NAMES[k] = names[i];
+	    int shape = shape(names[i], k >= ASSIGN);
+	    if(BY_SHAPE[shape] != 0)
+		throw new IllegalStateException(names[i]+" has the shape of "+NAMES[BY_SHAPE[shape]]);
+	    BY_SHAPE[shape] = (byte)k;
+	}
+    }
+
+    private static int shape(String name, boolean operator) {
+	int length = name.length();
+	return (name.charAt(0) & 31) | (length > 1 ? (name.charAt(1) & 31) << 5 : 0) |
+	    (length & 15) << 10 | (operator ? 1 << 14 : 0);
+    }
+
+    /* FIRST sets: the tokens that can start each construct. Statements
+       are told apart by the switch in parseStmtList. */
+    private static final boolean[] DECL_FIRST = kinds(STRING, FLOAT, INT);
+    private static final boolean[] EXPR_FIRST = kinds(IDENTIFIER, INTLITERAL, FLOATLITERAL, LEFT_PAREN);
+
+    /* Binary operators: precedence, 0 for other tokens, and the node built. */
+    private static final int COMPARISON = 1;
+    private static final int[] PRECEDENCE = new int[KINDS];
+    private static final AST.Type[] OPERATION = new AST.Type[KINDS];
+    static {
+	operator(LESS, COMPARISON, AST.Type.LessThan);
+	operator(GREATER, COMPARISON, AST.Type.GreaterThan);
+	operator(LESS_EQUAL, COMPARISON, AST.Type.LessThanEqual);
+	operator(GREATER_EQUAL, COMPARISON, AST.Type.GreaterThanEqual);
+	operator(NOT_EQUAL, COMPARISON, AST.Type.NotEqual);
+	operator(EQUAL, COMPARISON, AST.Type.Equal);
+	operator(PLUS, 2, AST.Type.Addition);
+	operator(MINUS, 2, AST.Type.Subtraction);
+	operator(TIMES, 3, AST.Type.Multiplication);
+	operator(DIVIDE, 3, AST.Type.Division);
+    }
+
+    private static boolean[] kinds(int... kinds) {
+	boolean[] set = new boolean[KINDS];
+	for(int kind : kinds)
+	    set[kind] = true;
+	return set;
+    }
+
+    private static void operator(int kind, int precedence, AST.Type type) {
+	PRECEDENCE[kind] = precedence;
+	OPERATION[kind] = type;
+    }
+
+    /* Thrown to give up; LittleParser then finds and reports the error. */
+    private static class Mismatch extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	Mismatch() {
+	    super(null, null, false, false);
+	}
+    }
+    private static final Mismatch MISMATCH = new Mismatch();
+
+    private final Tokens tokens;
+    private final TreeBuilder ast;
+    private final int[] kind;
+    private int pos = 0;
+    private final List<Scope> scopes = new ArrayList<Scope>();
+
+    private PredictiveParser(Tokens tokens, TreeBuilder ast) {
+	this.tokens = tokens;
+	this.ast = ast;
+	int n = tokens.size();
+	kind = new int[n + 2];
+	for(int i = 0; i < n; i++)
+	    kind[i] = kindOf(tokens, i);
+	kind[n] = kind[n + 1] = EOF;
+    }
+
+    private static int kindOf(Tokens tokens, int i) {
+	switch(tokens.type(i)) {
+	case IDENTIFIER:
+	    return IDENTIFIER;
+	case INTLITERAL:
+	    return INTLITERAL;
+	case FLOATLITERAL:
+	    return FLOATLITERAL;
+	case STRINGLITERAL:
+	    return STRINGLITERAL;
+	}
+	String value = tokens.value(i);
+	int k = value.isEmpty() ? 0 : BY_SHAPE[shape(value, tokens.type(i) == Token.Type.OPERATOR)];
+	if(k == 0 || !NAMES[k].equals(value))
+	    throw MISMATCH;
+	return k;
+    }
+
+    /* Parses tokens into an AST, as new LittleParser(tokens) would. */
+    public static AST parse(Token[] tokens) {
+	AST ast = new AST();
+	if(tryParse(Tokens.of(tokens), ast))
+	    return ast;
+	return new LittleParser(tokens).getAST();
+    }
+
+    /*
+     * Parses tokens into tree and returns true, or returns false if
+     * they have an error, leaving tree partly built.
+     */
+    public static boolean tryParse(Tokens tokens, TreeBuilder tree) {
+	try {
+	    new PredictiveParser(tokens, tree).parseProgram();
+	    return true;
+	} catch(RuntimeException e) {
+	    return false;
+	}
+    }
+
+    private void expect(int k) {
+	if(kind[pos] != k)
+	    throw MISMATCH;
+	pos++;
+    }
+
+    private boolean accept(int k) {
+	if(kind[pos] != k)
+	    return false;
+	pos++;
+	return true;
+    }
+
+    private void leaf(AST.Type type) {
+	ast.buildNode(type, tokens.value(pos), tokens.offset(pos));
+	pos++;
+    }
+
+    private void expectLeaf(int k, AST.Type type) {
+	if(kind[pos] != k)
+	    throw MISMATCH;
+	leaf(type);
+    }
+
+    private void addNewScope() {
+	int scopeNum = scopes.size();
+	scopes.add(scopeNum == 0 ? new Scope(scopeNum) : new Scope(scopeNum, currentScope()));
+    }
+
+    private Scope currentScope() {
+	return scopes.get(scopes.size() - 1);
+    }
+
+    private void closeScope() {
+	scopes.remove(scopes.size() - 1);
+    }
+
+    private void parseProgram() {
+	addNewScope();
+
+	expect(PROGRAM);
+	expectLeaf(IDENTIFIER, AST.Type.Identifier);
+	expect(BEGIN);
+	parseDecls();
+	ast.setTopScope(currentScope());
+
+	ast.startMark();
+	while(kind[pos] == FUNCTION)
+	    parseFuncDecl();
+	ast.buildNode(AST.Type.FunctionList, ast.endMark());
+	expect(END);
+
+	closeScope();
+	ast.buildNode(AST.Type.Program, 3);
+    }
+
+    private void parseDecls() {
+	ast.startMark();
+	while(DECL_FIRST[kind[pos]]) {
+	    if(kind[pos] == STRING)
+		parseStringDecl();
+	    else
+		parseVarDecl();
+	}
+	ast.buildNode(AST.Type.DeclarationList, ast.endMark());
+    }
+
+    private void parseStringDecl() {
+	int start = pos;
+	expect(STRING);
+	expectLeaf(IDENTIFIER, AST.Type.Identifier);
+	expect(ASSIGN);
+	expectLeaf(STRINGLITERAL, AST.Type.StringLiteral);
+	expect(SEMICOLON);
+
+	currentScope().addVariable(new Variable(tokens.get(start+1), tokens.value(start), tokens.value(start+3)));
+
+	ast.buildNode(AST.Type.StringDeclaration, 2);
+    }
+
+    private void parseVarDecl() {
+	boolean isFloat = kind[pos++] == FLOAT;
+	int first = pos;
+	do {
+	    expect(IDENTIFIER);
+	} while(accept(COMMA));
+	int last = pos;
+	expect(SEMICOLON);
+
+	ast.startMark();
+	ast.buildNode(isFloat ? AST.Type.FloatType : AST.Type.IntType);
+	for(int i = first; i < last; i += 2) {
+	    Token varName = tokens.get(i);
+	    currentScope().addVariable(new Variable(varName, isFloat ? "FLOAT" : "INT"));
+	    ast.buildNode(AST.Type.Identifier, varName.value, varName.offset);
+	}
+	ast.buildNode(AST.Type.VariableDeclaration, ast.endMark());
+    }
+
+    private void parseFuncDecl() {
+	expect(FUNCTION);
+	switch(kind[pos++]) {
+	case FLOAT:
+	    ast.buildNode(AST.Type.FloatType);
+	    break;
+	case INT:
+	    ast.buildNode(AST.Type.IntType);
+	    break;
+	case VOID:
+	    ast.buildNode(AST.Type.VoidType);
+	    break;
+	default:
+	    throw MISMATCH;
+	}
+	expectLeaf(IDENTIFIER, AST.Type.Identifier);
+
+	addNewScope();
+
+	expect(LEFT_PAREN);
+	ast.startMark();
+	if(kind[pos] == FLOAT || kind[pos] == INT) {
+	    do {
+		parseParamDecl();
+	    } while(accept(COMMA));
+	}
+	ast.buildNode(AST.Type.ParameterList, ast.endMark());
+	expect(RIGHT_PAREN);
+	expect(BEGIN);
+	parseDecls();
+	parseStmtList();
+	expect(END);
+
+	closeScope();
+
+	ast.buildNode(AST.Type.Function, 5);
+    }
+
+    private void parseParamDecl() {
+	if(kind[pos] == FLOAT)
+	    ast.buildNode(AST.Type.FloatType);
+	else if(kind[pos] == INT)
+	    ast.buildNode(AST.Type.IntType);
+	else
+	    throw MISMATCH;
+	pos++;
+	expectLeaf(IDENTIFIER, AST.Type.Identifier);
+
+	ast.buildNode(AST.Type.Parameter, 2);
+	currentScope().addVariable(new Variable(tokens.get(pos-1), tokens.value(pos-2)));
+    }
+
+    /* The IF and WHILE statements whose blocks are open, innermost last. */
+    private static final int THEN_BLOCK = 0, ELSE_BLOCK = 1, WHILE_BLOCK = 2;
+    private int[] openBlocks = new int[16];
+    private int depth = 0;
+
+    private void openBlock(int block) {
+	if(depth == openBlocks.length)
+	    openBlocks = Arrays.copyOf(openBlocks, 2 * depth);
+	openBlocks[depth++] = block;
+	ast.startMark();
+    }
+
+    private void parseStmtList() {
+	int outer = depth;
+	ast.startMark();
+	while(true) {
+	    switch(kind[pos]) {
+	    case IF:
+		ast.startMark();
+		addNewScope();
+		pos++;
+		expect(LEFT_PAREN);
+		parseCondition();
+		expect(RIGHT_PAREN);
+		parseDecls();
+		openBlock(THEN_BLOCK);
+		break;
+	    case WHILE:
+		addNewScope();
+		pos++;
+		expect(LEFT_PAREN);
+		parseCondition();
+		expect(RIGHT_PAREN);
+		parseDecls();
+		openBlock(WHILE_BLOCK);
+		break;
+	    case IDENTIFIER:
+		leaf(AST.Type.Identifier);
+		expect(ASSIGN);
+		parseExpr(false);
+		expect(SEMICOLON);
+		ast.buildNode(AST.Type.Assignment, 2);
+		break;
+	    case READ:
+		parseIdStmt(AST.Type.Read);
+		break;
+	    case WRITE:
+		parseIdStmt(AST.Type.Write);
+		break;
+	    case RETURN:
+		pos++;
+		parseExpr(false);
+		expect(SEMICOLON);
+		ast.buildNode(AST.Type.Return, 1);
+		break;
+	    default:
+		ast.buildNode(AST.Type.StatementList, ast.endMark());
+		ast.setTopScope(currentScope());
+		if(depth == outer)
+		    return;
+		int block = openBlocks[--depth];
+		if(block == THEN_BLOCK) {
+		    closeScope();
+		    if(accept(ELSE)) {
+			addNewScope();
+			parseDecls();
+			openBlock(ELSE_BLOCK);
+			break;
+		    }
+		} else if(block == ELSE_BLOCK) {
+		    closeScope();
+		}
+		if(block == WHILE_BLOCK) {
+		    expect(ENDWHILE);
+		    ast.buildNode(AST.Type.While, 3);
+		    closeScope();
+		} else {
+		    expect(ENDIF);
+		    ast.buildNode(AST.Type.If, ast.endMark());
+		}
+		break;
+	    }
+	}
+    }
+
+    /* READ or WRITE and a parenthesized list of identifiers. */
+    private void parseIdStmt(AST.Type type) {
+	pos++;
+	expect(LEFT_PAREN);
+	int first = pos;
+	do {
+	    expect(IDENTIFIER);
+	} while(accept(COMMA));
+	int last = pos;
+	expect(RIGHT_PAREN);
+	expect(SEMICOLON);
+
+	for(int i = first; i < last; i += 2)
+	    ast.buildNode(AST.Type.Identifier, tokens.value(i), tokens.offset(i));
+	ast.buildNode(type, (last - first + 1) / 2);
+    }
+
+    private void parseCondition() {
+	parseExpr(true);
+	ast.buildNode(AST.Type.Condition, 1);
+    }
+
+    /*
+     * The operators waiting for their right operands, and for each open
+     * parenthesis or call where its operators start and whether it holds
+     * call arguments.
+     */
+    private int[] operators = new int[16];
+    private int operatorCount = 0;
+    private int[] levelStart = new int[16];
+    private boolean[] levelIsCall = new boolean[16];
+
+    /*
+     * An expression; a condition is two expressions and a comparison
+     * between them, the only place a comparison may appear.
+     */
+    private void parseExpr(boolean condition) {
+	int level = 0;
+	levelStart[0] = operatorCount;
+	boolean compared = false;
+	while(true) {
+	    int k = kind[pos];
+	    if(k == IDENTIFIER && kind[pos+1] == LEFT_PAREN) {
+		/* A call's node takes its name and arguments; it is
+		   marked here and built at its closing parenthesis. */
+		ast.startMark();
+		leaf(AST.Type.Identifier);
+		pos++;
+		if(EXPR_FIRST[kind[pos]]) {
+		    level = openLevel(level, true);
+		    continue;
+		}
+		expect(RIGHT_PAREN);
+		ast.buildNode(AST.Type.Call, ast.endMark());
+	    } else if(k == LEFT_PAREN) {
+		pos++;
+		level = openLevel(level, false);
+		continue;
+	    } else if(k == IDENTIFIER) {
+		leaf(AST.Type.Identifier);
+	    } else if(k == INTLITERAL) {
+		leaf(AST.Type.IntLiteral);
+	    } else if(k == FLOATLITERAL) {
+		leaf(AST.Type.FloatLiteral);
+	    } else {
+		throw MISMATCH;
+	    }
+
+	    /* An operand is done: take the operator after it, or close
+	       what it ends. */
+	    while(true) {
+		int op = kind[pos];
+		int precedence = PRECEDENCE[op];
+		if(precedence == COMPARISON && (!condition || level > 0 || compared))
+		    precedence = 0;
+		if(precedence > 0) {
+		    reduce(levelStart[level], precedence);
+		    if(precedence == COMPARISON)
+			compared = true;
+		    if(operatorCount == operators.length)
+			operators = Arrays.copyOf(operators, 2 * operatorCount);
+		    operators[operatorCount++] = op;
+		    pos++;
+		    break;
+		}
+
+		reduce(levelStart[level], 1);
+		if(level == 0) {
+		    if(condition && !compared)
+			throw MISMATCH;
+		    return;
+		}
+		if(levelIsCall[level] && kind[pos] == COMMA) {
+		    pos++;
+		    break;
+		}
+		expect(RIGHT_PAREN);
+		if(levelIsCall[level])
+		    ast.buildNode(AST.Type.Call, ast.endMark());
+		level--;
+	    }
+	}
+    }
+
+    private int openLevel(int level, boolean call) {
+	level++;
+	if(level == levelStart.length) {
+	    levelStart = Arrays.copyOf(levelStart, 2 * level);
+	    levelIsCall = Arrays.copyOf(levelIsCall, 2 * level);
+	}
+	levelStart[level] = operatorCount;
+	levelIsCall[level] = call;
+	return level;
+    }
+
+    /* Builds the pending operators above start that bind at least as
+       tightly as precedence; all are left-associative. */
+    private void reduce(int start, int precedence) {
+	while(operatorCount > start && PRECEDENCE[operators[operatorCount - 1]] >= precedence)
+	    ast.buildNode(OPERATION[operators[--operatorCount]], 2);
+    }
+}
@@ -0,0 +1,342 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/*
+ * A compact binary form of syntax trees and IR that can be read back,
+ * so a parsed or lowered program can be handed on without scanning and
+ * parsing it again.
+ *
+ * Layout: int MAGIC, byte VERSION, byte kind (TREE or IR), the string
+ * table, the scope table, then the body. Numbers are unsigned varints,
+ * seven bits to a byte, low bits first; offsets are zigzag varints, and
+ * a reference that may be null is stored plus one. A tree node's offset
+ * is stored as the distance from the valued node before it, which is
+ * mostly short.
+ *
+ * Strings: count, {length, UTF-8 bytes}*; everything else names a
+ * string by its index. Scopes: count, {number, enclosing scope + 1,
+ * variables, {name, type, value + 1, offset}*}*, each scope after the
+ * one enclosing it. A tree is its node count and the nodes in postorder,
+ * {type, value + 1, [offset if valued], children, scope + 1}*, so
+ * reading it is one buildNode per node. IR is its length and {0, scope}
+ * for a declaration, or {type + 1, op1 + 1, op2 + 1, res + 1}.
+ *
+ * Trees are written as the parser built them; Resolver's annotations
+ * are not kept.
+ */
+public class ProgramCodec {
+    private static final int MAGIC = 0x4D42494E;
+    private static final int VERSION = 3;
+    private static final int TREE = 1, IR = 2;
+    private static final AST.Type[] TYPES = AST.Type.values();
+    private static final IRNode.Type[] IR_TYPES = IRNode.Type.values();
+
+    /* A growable byte array, with the strings and scopes it refers to. */
+    private static class Out {
+	byte[] bytes = new byte[256];
+	int size;
+	final Map<String, Integer> strings;
+	/* Scope keeps identity equality, so this is by identity, in order. */
+	final Map<Scope, Integer> scopes;
+
+	Out(Map<String, Integer> strings, Map<Scope, Integer> scopes) {
+	    this.strings = strings;
+	    this.scopes = scopes;
+	}
+
+	void ensure(int n) {
+	    if(size + n > bytes.length)
+		bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, size + n));
+	}
+
+	void varint(int v) {
+	    ensure(5);
+	    while((v & ~0x7F) != 0) {
+		bytes[size++] = (byte)((v & 0x7F) | 0x80);
+		v >>>= 7;
+	    }
+	    bytes[size++] = (byte)v;
+	}
+
+	void signed(int v) {
+	    varint((v << 1) ^ (v >> 31));
+	}
+
+	void raw(byte[] b) {
+	    ensure(b.length);
+	    System.arraycopy(b, 0, bytes, size, b.length);
+	    size += b.length;
+	}
+
+	void string(String s) {
+	    if(s == null) {
+		varint(0);
+		return;
+	    }
+	    Integer id = strings.get(s);
+	    if(id == null) {
+		id = strings.size();
+		strings.put(s, id);
+	    }
+	    varint(id + 1);
+	}
+
+	void scope(Scope scope) {
+	    varint(scope == null ? 0 : number(scope) + 1);
+	}
+
+	/* Enclosing scopes are numbered first, so a reader meets them first. */
+	private int number(Scope scope) {
+	    Integer id = scopes.get(scope);
+	    if(id != null)
+		return id;
+	    List<Scope> unnumbered = new ArrayList<Scope>();
+	    for(Scope s = scope; s != null && !scopes.containsKey(s); s = s.getEnclosing())
+		unnumbered.add(s);
+	    for(int i = unnumbered.size() - 1; i >= 0; i--)
+		scopes.put(unnumbered.get(i), scopes.size());
+	    return scopes.size() - 1;
+	}
+    }
+
+    public static <N> ByteBuffer writeTree(SyntaxTree<N> tree, N root) {
+	Out body = new Out(new HashMap<String, Integer>(), new LinkedHashMap<Scope, Integer>());
+	List<N> open = new ArrayList<N>();
+	int[] next = new int[16];
+	int count = 0, offset = 0;
+	open.add(root);
+	while(!open.isEmpty()) {
+	    int top = open.size() - 1;
+	    N node = open.get(top);
+	    if(next[top] < tree.size(node)) {
+		N child = tree.child(node, next[top]++);
+		if(open.size() == next.length)
+		    next = Arrays.copyOf(next, 2 * next.length);
+		next[open.size()] = 0;
+		open.add(child);
+		continue;
+	    }
+	    body.varint(tree.type(node).ordinal());
+	    body.string(tree.value(node));
+	    if(tree.value(node) != null) {
+		body.signed(tree.offset(node) - offset);
+		offset = tree.offset(node);
+	    }
+	    body.varint(tree.size(node));
+	    body.scope(tree.scope(node));
+	    open.remove(top);
+	    count++;
+	}
+	return finish(TREE, count, body);
+    }
+
+    public static ByteBuffer writeIR(List<IRNode> code) {
+	Out body = new Out(new HashMap<String, Integer>(), new LinkedHashMap<Scope, Integer>());
+	for(IRNode node : code) {
+	    if(node.isDeclaration()) {
+		body.varint(0);
+		body.scope(node.getScope());
+	    } else {
+		body.varint(node.getType().ordinal() + 1);
+		body.string(node.getOp1());
+		body.string(node.getOp2());
+		body.string(node.getRes());
+	    }
+	}
+	return finish(IR, code.size(), body);
+    }
+
+    /* The header and tables, then count and the body, in one buffer ready to read. */
+    private static ByteBuffer finish(int kind, int count, Out body) {
+	Out scopes = new Out(body.strings, body.scopes);
+	scopes.varint(body.scopes.size());
+	for(Scope scope : body.scopes.keySet()) {
+	    scopes.varint(scope.getNumber());
+	    Integer enclosing = scope.getEnclosing() == null ? null : body.scopes.get(scope.getEnclosing());
+	    scopes.varint(enclosing == null ? 0 : enclosing + 1);
+	    scopes.varint(scope.getDeclared().size());
+	    for(String name : scope.getDeclared()) {
+		Variable var = scope.getVariable(name);
+		scopes.string(var.name);
+		scopes.string(var.type);
+		scopes.string(var.value);
+		scopes.signed(var.nameToken.offset);
+	    }
+	}
+
+	Out header = new Out(null, null);
+	header.varint(body.strings.size());
+	String[] table = new String[body.strings.size()];
+	for(Map.Entry<String, Integer> e : body.strings.entrySet())
+	    table[e.getValue()] = e.getKey();
+	for(String s : table) {
+	    byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+	    header.varint(utf8.length);
+	    header.raw(utf8);
+	}
+	Out counted = new Out(null, null);
+	counted.varint(count);
+
+	ByteBuffer buf = ByteBuffer.allocate(6 + header.size + scopes.size + counted.size + body.size);
+	buf.putInt(MAGIC);
+	buf.put((byte)VERSION);
+	buf.put((byte)kind);
+	buf.put(header.bytes, 0, header.size);
+	buf.put(scopes.bytes, 0, scopes.size);
+	buf.put(counted.bytes, 0, counted.size);
+	buf.put(body.bytes, 0, body.size);
+	buf.flip();
+	return buf;
+    }
+
+    /* Reads from in's position, leaving it after the program. */
+    private static class In {
+	final ByteBuffer in;
+	String[] strings;
+	Scope[] scopes;
+
+	In(ByteBuffer in, int kind) {
+	    this.in = in;
+	    if(in.remaining() < 6 || in.getInt() != MAGIC)
+		throw new CompileException("Not a compiled program");
+	    int version = in.get();
+	    if(version != VERSION)
+		throw new CompileException("Unsupported compiled program version "+version);
+	    if(in.get() != kind)
+		throw new CompileException(kind == TREE ? "Compiled program holds IR, not a tree"
+					   : "Compiled program holds a tree, not IR");
+	    readStrings();
+	    readScopes();
+	}
+
+	int varint() {
+	    int v = 0;
+	    for(int shift = 0; shift < 35; shift += 7) {
+		byte b = in.get();
+		v |= (b & 0x7F) << shift;
+		if(b >= 0)
+		    return v;
+	    }
+	    throw new CompileException("Corrupt compiled program: bad varint");
+	}
+
+	/* A count of things each at least a byte long. */
+	int count() {
+	    int n = varint();
+	    if(n < 0 || n > in.remaining())
+		throw new CompileException("Corrupt compiled program: bad count "+n);
+	    return n;
+	}
+
+	int signed() {
+	    int v = varint();
+	    return (v >>> 1) ^ -(v & 1);
+	}
+
+	String string() {
+	    int id = varint();
+	    return id == 0 ? null : strings[id - 1];
+	}
+
+	Scope scope() {
+	    int id = varint();
+	    return id == 0 ? null : scopes[id - 1];
+	}
+
+	private void readStrings() {
+	    strings = new String[count()];
+	    for(int i = 0; i < strings.length; i++) {
+		int length = varint();
+		if(length < 0 || length > in.remaining())
+		    throw new BufferUnderflowException();
+		if(in.hasArray()) {
+		    strings[i] = new String(in.array(), in.arrayOffset() + in.position(), length,
+					    StandardCharsets.UTF_8);
+		    in.position(in.position() + length);
+		} else {
+		    byte[] utf8 = new byte[length];
+		    in.get(utf8);
+		    strings[i] = new String(utf8, StandardCharsets.UTF_8);
+		}
+	    }
+	}
+
+	/* Each scope declares its variables before any scope inside it
+	   is opened, as the parsers do. */
+	private void readScopes() {
+	    scopes = new Scope[count()];
+	    for(int i = 0; i < scopes.length; i++) {
+		int number = varint();
+		Scope enclosing = scope();
+		Scope scope = enclosing == null ? new Scope(number) : new Scope(number, enclosing);
+		int variables = count();
+		for(int v = 0; v < variables; v++) {
+		    String name = string();
+		    String type = string();
+		    String value = string();
+		    Token token = new Token(Token.Type.IDENTIFIER, name, signed());
+		    scope.addVariable(new Variable(token, type, value));
+		}
+		scopes[i] = scope;
+	    }
+	}
+    }
+
+    /* Builds the tree in builder, which may be an AST or a NodeTable. */
+    public static void readTree(ByteBuffer buf, TreeBuilder builder) {
+	try {
+	    In in = new In(buf, TREE);
+	    int count = in.count(), offset = 0;
+	    for(int i = 0; i < count; i++) {
+		AST.Type type = TYPES[in.varint()];
+		String value = in.string();
+		if(value != null)
+		    offset += in.signed();
+		int children = in.varint();
+		if(value != null && children > 0)
+		    throw new CompileException("Corrupt compiled program: "+type.string+" has a value and children");
+		if(value != null)
+		    builder.buildNode(type, value, offset);
+		else if(children > 0)
+		    builder.buildNode(type, children);
+		else
+		    builder.buildNode(type);
+		Scope scope = in.scope();
+		if(scope != null)
+		    builder.setTopScope(scope);
+	    }
+	} catch(BufferUnderflowException | IndexOutOfBoundsException e) {
+	    throw new CompileException("Corrupt compiled program: "+e);
+	}
+    }
+
+    public static AST.ASTNode readTree(ByteBuffer buf) {
+	AST ast = new AST();
+	readTree(buf, ast);
+	return ast.getRoot();
+    }
+
+    public static List<IRNode> readIR(ByteBuffer buf) {
+	try {
+	    In in = new In(buf, IR);
+	    int count = in.count();
+	    List<IRNode> code = new ArrayList<IRNode>(count);
+	    for(int i = 0; i < count; i++) {
+		int tag = in.varint();
+		if(tag == 0) {
+		    code.add(new IRNode(in.scope()));
+		} else {
+		    IRNode.Type type = IR_TYPES[tag - 1];
+		    String op1 = in.string();
+		    String op2 = in.string();
+		    code.add(new IRNode(type, op1, op2, in.string()));
+		}
+	    }
+	    return code;
+	} catch(BufferUnderflowException | IndexOutOfBoundsException e) {
+	    throw new CompileException("Corrupt compiled program: "+e);
+	}
+    }
+}
@@ -0,0 +1,238 @@
+import java.util.*;
+
+/*
+ * Resolves names and types in the functions whose code is emitted,
+ * between parsing and code generation: main and every function it
+ * calls, directly or not. Every Identifier a statement or expression
+ * uses gets its Variable and a slot, the function's variables being
+ * numbered from 0 in order of first use, and every expression and
+ * comparison the type of its value, so that later passes need no scope
+ * lookups or type-name comparisons. This is where an undeclared variable
+ * or function, a STRING in an expression, a call with the wrong number
+ * of arguments or a call to a VOID function in an expression is
+ * reported, at the identifier's token.
+ *
+ * Like CodeGenerator, the walk keeps its own stacks, so blocks and
+ * expressions may nest to any depth.
+ */
+public class Resolver<N> {
+    static final String MAIN_FUNCTION = "main";
+
+    private final SyntaxTree<N> tree;
+    private final Map<String, N> functions;
+    private final Map<Variable, Integer> slots = new IdentityHashMap<Variable, Integer>();
+    private final ArrayDeque<N> pending = new ArrayDeque<N>();
+    private final List<N> preorder = new ArrayList<N>();
+    private final List<N> callees = new ArrayList<N>();
+
+    private Resolver(SyntaxTree<N> tree, Map<String, N> functions) {
+	this.tree = tree;
+	this.functions = functions;
+    }
+
+    /* Resolves the functions whose code is emitted and returns them, main
+       first and the others in the order they are declared. */
+    public static <N> List<N> resolve(SyntaxTree<N> tree, N root) {
+	Map<String, N> functions = functions(tree, root);
+	N main = functions.get(MAIN_FUNCTION);
+	if(main == null)
+	    throw new CompileException("Could not find main method");
+
+	Set<N> reached = new HashSet<N>();
+	ArrayDeque<N> work = new ArrayDeque<N>();
+	reached.add(main);
+	work.push(main);
+	while(!work.isEmpty()) {
+	    Resolver<N> resolver = new Resolver<N>(tree, functions);
+	    resolver.resolveBlock(tree.child(work.pop(), 4));
+	    for(N callee : resolver.callees) {
+		if(reached.add(callee))
+		    work.push(callee);
+	    }
+	}
+
+	List<N> emitted = new ArrayList<N>(reached.size());
+	emitted.add(main);
+	for(N function : functions.values()) {
+	    if(function != main && reached.contains(function))
+		emitted.add(function);
+	}
+	return emitted;
+    }
+
+    /* Resolves one function and returns how many slots it uses. */
+    public static <N> int resolveFunction(SyntaxTree<N> tree, N root, N function) {
+	Resolver<N> resolver = new Resolver<N>(tree, functions(tree, root));
+	resolver.resolveBlock(tree.child(function, 4));
+	return resolver.slots.size();
+    }
+
+    /* The program's functions by name; the first of a name is the one called. */
+    private static <N> Map<String, N> functions(SyntaxTree<N> tree, N root) {
+	N funcList = tree.child(root, 2);
+	assert tree.type(funcList) == AST.Type.FunctionList;
+
+	Map<String, N> functions = new LinkedHashMap<String, N>();
+	for(N child : tree.children(funcList)) {
+	    assert tree.type(child) == AST.Type.Function;
+	    functions.putIfAbsent(tree.value(tree.child(child, 1)), child);
+	}
+	return functions;
+    }
+
+    private void resolveBlock(N body) {
+	ArrayDeque<N> stmts = new ArrayDeque<N>();
+	ArrayDeque<Scope> scopes = new ArrayDeque<Scope>();
+	stmts.push(body);
+	scopes.push(tree.scope(body));
+	while(!stmts.isEmpty()) {
+	    N stmt = stmts.pop();
+	    Scope scope = scopes.pop();
+	    switch(tree.type(stmt)) {
+	    case StatementList:
+		for(int i = tree.size(stmt) - 1; i >= 0; i--) {
+		    stmts.push(tree.child(stmt, i));
+		    scopes.push(tree.scope(stmt));
+		}
+		break;
+	    case Assignment:
+		resolveVariable(tree.child(stmt, 0), scope);
+		resolveExpr(tree.child(stmt, 1), scope);
+		break;
+	    case Read:
+	    case Write:
+		for(N operand : tree.children(stmt))
+		    resolveVariable(operand, scope);
+		break;
+	    case If:
+	    case While:
+		resolveCondition(tree.child(stmt, 0), scope);
+		/* The blocks are children 2 and, after ELSE, 4. */
+		for(int i = tree.size(stmt) - 1; i >= 2; i -= 2) {
+		    stmts.push(tree.child(stmt, i));
+		    scopes.push(tree.scope(tree.child(stmt, i)));
+		}
+		break;
+	    case Return:
+		resolveExpr(tree.child(stmt, 0), scope);
+		break;
+	    default:
+		assert false;
+		break;
+	    }
+	}
+    }
+
+    private Variable resolveVariable(N ident, Scope scope) {
+	Variable var = scope.getVariable(tree.value(ident));
+	if(var == null)
+	    throw new CompileException("Variable '"+tree.value(ident)+"' not defined in this scope",
+				       tree.offset(ident));
+	Integer slot = slots.get(var);
+	if(slot == null) {
+	    slot = slots.size();
+	    slots.put(var, slot);
+	}
+	tree.resolve(ident, var, slot, var.valueType);
+	return var;
+    }
+
+    private void resolveCondition(N cond, Scope scope) {
+	N comparison = tree.child(cond, 0);
+	ValueType left = resolveExpr(tree.child(comparison, 0), scope);
+	ValueType right = resolveExpr(tree.child(comparison, 1), scope);
+	tree.resolve(comparison, null, -1, combine(left, right));
+    }
+
+    /*
+     * Resolves the nodes of expr in postorder: preorder with the right
+     * operand first, reversed. Identifiers are so resolved from left to
+     * right.
+     */
+    private ValueType resolveExpr(N expr, Scope scope) {
+	preorder.clear();
+	pending.push(expr);
+	while(!pending.isEmpty()) {
+	    N node = pending.pop();
+	    preorder.add(node);
+	    if(isArithmetic(tree.type(node))) {
+		pending.push(tree.child(node, 0));
+		pending.push(tree.child(node, 1));
+	    } else if(tree.type(node) == AST.Type.Call) {
+		/* Child 0 is the function's name. */
+		for(int i = 1; i < tree.size(node); i++)
+		    pending.push(tree.child(node, i));
+	    }
+	}
+
+	for(int i = preorder.size() - 1; i >= 0; i--) {
+	    N node = preorder.get(i);
+	    switch(tree.type(node)) {
+	    case IntLiteral:
+		tree.resolve(node, null, -1, ValueType.INT);
+		break;
+	    case FloatLiteral:
+		tree.resolve(node, null, -1, ValueType.FLOAT);
+		break;
+	    case Identifier:
+		if(resolveVariable(node, scope).valueType == ValueType.STRING)
+		    throw new CompileException("Variable '"+tree.value(node)+"' cannot be used in an expression",
+					       tree.offset(node));
+		break;
+	    case Call:
+		resolveCall(node);
+		break;
+	    default:
+		if(isArithmetic(tree.type(node)))
+		    tree.resolve(node, null, -1, combine(tree.valueType(tree.child(node, 0)),
+							 tree.valueType(tree.child(node, 1))));
+		break;
+	    }
+	}
+	return tree.valueType(expr);
+    }
+
+    /* A call's value has the type its function returns; its arguments
+       are resolved already. */
+    private void resolveCall(N call) {
+	N ident = tree.child(call, 0);
+	String name = tree.value(ident);
+	N function = functions.get(name);
+	if(function == null)
+	    throw new CompileException("Function '"+name+"' not defined", tree.offset(ident));
+	if(name.equals(MAIN_FUNCTION))
+	    throw new CompileException("Function 'main' cannot be called", tree.offset(ident));
+	int params = tree.size(tree.child(function, 2));
+	if(tree.size(call) - 1 != params)
+	    throw new CompileException("Function '"+name+"' takes "+params+" arguments, not "+(tree.size(call) - 1),
+				       tree.offset(ident));
+	ValueType type = returnType(tree, function);
+	if(type == null)
+	    throw new CompileException("Function '"+name+"' returns VOID and cannot be used in an expression",
+				       tree.offset(ident));
+	tree.resolve(call, null, -1, type);
+	callees.add(function);
+    }
+
+    /* The type function returns, or null for VOID. */
+    static <N> ValueType returnType(SyntaxTree<N> tree, N function) {
+	switch(tree.type(tree.child(function, 0))) {
+	case IntType:
+	    return ValueType.INT;
+	case FloatType:
+	    return ValueType.FLOAT;
+	default:
+	    return null;
+	}
+    }
+
+    private static boolean isArithmetic(AST.Type type) {
+	return type == AST.Type.Addition || type == AST.Type.Subtraction ||
+	    type == AST.Type.Multiplication || type == AST.Type.Division;
+    }
+
+    /* An operation on INT and FLOAT is done in FLOAT. */
+    private static ValueType combine(ValueType left, ValueType right) {
+	return left == ValueType.FLOAT || right == ValueType.FLOAT ? ValueType.FLOAT : ValueType.INT;
+    }
+}
@@ -1,16 +1,63 @@
 import java.util.*;
 
 public class Scope {
-    private Map<String, Variable> varMap = new HashMap<String, Variable>();
+    /*
+     * A scope's variables are a copy of the enclosing scope's and its
+     * own. The copy is made only once the scope declares something or
+     * is printed; until then varMap is null and from is the innermost
+     * enclosing scope that has made one. Parsers declare into a scope
+     * before opening any inside it, so this finds what a copy made on
+     * construction would.
+     */
+    private Map<String, Variable> varMap;
+    private Scope from;
+    private final Scope enclosing;
     private Set<String> variables = new HashSet<String>();
     private int scopeNum;
     public Scope(int num) {
 	scopeNum = num;
+	varMap = new HashMap<String, Variable>();
+	enclosing = null;
     }
 
     public Scope(int num, Scope src) {
 	scopeNum = num;
-	varMap.putAll(src.varMap);
+	from = src.varMap != null ? src : src.from;
+	enclosing = src;
+    }
+
+    /* Declares only the named ones of of's variables, and looks up no
+       others; for a pass that has moved the rest out of a declaration. */
+    private Scope(Scope of, Collection<String> names) {
+	scopeNum = of.scopeNum;
+	enclosing = of.enclosing;
+	varMap = new HashMap<String, Variable>();
+	for(String name : names) {
+	    varMap.put(name, of.getVariable(name));
+	    variables.add(name);
+	}
+    }
+
+    public Scope declaring(Collection<String> names) {
+	return new Scope(this, names);
+    }
+
+    public int getNumber() {
+	return scopeNum;
+    }
+
+    /* The scope this one was opened in, or null for the global scope. */
+    public Scope getEnclosing() {
+	return enclosing;
+    }
+
+    private Map<String, Variable> varMap() {
+	if(varMap == null) {
+	    varMap = new HashMap<String, Variable>();
+	    varMap.putAll(from.varMap);
+	    from = null;
+	}
+	return varMap;
     }
 
     public Set<String> getDeclared() {
@@ -18,7 +65,7 @@ public class Scope {
     }
 
     public Variable getVariable(String name) {
-	return varMap.get(name);
+	return (varMap != null ? varMap : from.varMap).get(name);
     }
 
     public void addVariable(Variable var) {
@@ -27,7 +74,7 @@ public class Scope {
 				       var.nameToken);
 
 	var.scopeNum = scopeNum;
-	varMap.put(var.name, var);
+	varMap().put(var.name, var);
 	variables.add(var.name);
     }
 
@@ -41,61 +88,12 @@ public class Scope {
 	buf.append("Symbol table ");
 	buf.append(scopeNum);
 
-	for(String var : varMap.keySet()) {
+	Map<String, Variable> vars = varMap();
+	for(String var : vars.keySet()) {
 	    buf.append("\n");
-	    buf.append(varMap.get(var));
+	    buf.append(vars.get(var));
 	}
 
 	return buf.toString();
     }
 }
-
-class Variable {
-    public final Token nameToken;
-    public final String name;
-    public final String type;
-    public final String value;
-    public int scopeNum;
-
-    public Variable(Token nameToken, String type) {
-	this.nameToken = nameToken;
-	this.name = nameToken.value;
-	this.type = type;
-	this.value = null;
-    }
-
-    public Variable(Token nameToken, String type, String value) {
-	this.nameToken = nameToken;
-	this.name = nameToken.value;
-	this.type = type;
-	this.value = value;
-    }
-
-    private static final String PREFIX="var";
-    public String makeName() {
-	StringBuffer buf = new StringBuffer(PREFIX);
-	buf.append(scopeNum);
-	buf.append(name);
-	return buf.toString();
-    }
-
-    @Override
-    public String toString() {
-	StringBuffer buf = new StringBuffer();
-
-	buf.append("name ");
-	buf.append(name);
-	buf.append("_");
-	buf.append(scopeNum);
-	buf.append(" type ");
-	buf.append(type);
-	if(value != null) {
-	    buf.append(" value ");
-	    buf.append("\"");
-	    buf.append(value);
-	    buf.append("\"");
-	}
-	
-	return buf.toString();
-    }
-}
@@ -0,0 +1,143 @@
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/*
+ * A program's text and where each of its lines starts, so that tokens,
+ * tree nodes and errors need only carry an offset into the text. Line
+ * and column are found by binary search when an error is reported.
+ *
+ * LittleScanner records the lines as it scans them. A line is where the
+ * scanner counts one: after \n, \r\n or a lone \r outside a string
+ * literal. Columns count from a line's first non-blank character, or
+ * from the start of the text on the first line. Lines the scanner has
+ * not reached, as after a scan error or for text no scanner has seen,
+ * are found on demand by the same rules.
+ */
+public class SourceFile {
+    private final String text;
+    private final int firstLine;
+    private int[] starts = new int[64];
+    private int count;
+    /* The lines starting before this offset are all in starts. */
+    private int indexed;
+
+    public SourceFile(String text) {
+	this(text, 0, 1);
+    }
+
+    /* For scanning text from origin, which is the start of firstLine. */
+    SourceFile(String text, int origin, int firstLine) {
+	this.text = text;
+	this.firstLine = firstLine;
+	starts[count++] = origin;
+	indexed = origin;
+    }
+
+    public String getText() {
+	return text;
+    }
+
+    /* A line starts at origin, its first non-blank character. */
+    void startLine(int origin) {
+	if(count == starts.length)
+	    starts = Arrays.copyOf(starts, 2 * count);
+	starts[count++] = origin;
+	indexed = origin;
+    }
+
+    /* A scanner has seen every line break before offset. */
+    void indexedTo(int offset) {
+	indexed = Math.max(indexed, offset);
+    }
+
+    /* Appends the lines a scanner of the following text recorded; its
+       first line is this one's last, which it has the better start of. */
+    void append(SourceFile next) {
+	int from = 0;
+	if(next.firstLine == firstLine + count - 1) {
+	    starts[count - 1] = next.starts[0];
+	    from = 1;
+	}
+	for(int i = from; i < next.count; i++)
+	    startLine(next.starts[i]);
+	indexed = next.indexed;
+    }
+
+    public int line(int offset) {
+	return offset < 0 ? 0 : firstLine + lineIndex(offset);
+    }
+
+    public int col(int offset) {
+	return offset < 0 ? 0 : offset - starts[lineIndex(offset)];
+    }
+
+    /* The line, without its leading and trailing blanks, or null if there
+       is no such line. The text is not copied. */
+    public CharSequence lineText(int line) {
+	if(line < firstLine)
+	    return null;
+	if(line - firstLine >= count)
+	    indexTo(text.length());
+	if(line - firstLine >= count)
+	    return null;
+	int start = starts[line - firstLine];
+	int end = start;
+	while(end < text.length() && text.charAt(end) != '\n' && text.charAt(end) != '\r')
+	    end++;
+	while(start < end && text.charAt(start) <= ' ')
+	    start++;
+	while(end > start && text.charAt(end - 1) <= ' ')
+	    end--;
+	return CharBuffer.wrap(text, start, end);
+    }
+
+    private int lineIndex(int offset) {
+	if(offset >= indexed)
+	    indexTo(offset);
+	int lo = 0, hi = count - 1;
+	while(lo < hi) {
+	    int mid = (lo + hi + 1) >>> 1;
+	    if(starts[mid] <= offset)
+		lo = mid;
+	    else
+		hi = mid - 1;
+	}
+	return lo;
+    }
+
+    /* Finds the lines starting up to offset as the scanner would. */
+    private void indexTo(int offset) {
+	int length = text.length();
+	int i = indexed;
+	while(i < length && i <= offset) {
+	    char c = text.charAt(i);
+	    if(c == '"') {
+		int close = text.indexOf('"', i + 1);
+		i = close < 0 ? length : close + 1;
+	    } else if(c == LittleScanner.COMMENT_CHAR && i + 1 < length && text.charAt(i + 1) == LittleScanner.COMMENT_CHAR) {
+		while(i < length && text.charAt(i) != '\n' && text.charAt(i) != '\r')
+		    i++;
+	    } else if(c == '\n' || c == '\r') {
+		i++;
+		if(c == '\r' && i < length && text.charAt(i) == '\n')
+		    i++;
+		i = skipBlanks(text, i, length);
+		startLine(i);
+	    } else {
+		i++;
+	    }
+	}
+	indexed = Math.max(indexed, i);
+    }
+
+    /* Skips whitespace other than line breaks. */
+    static int skipBlanks(String text, int i, int length) {
+	while(i < length) {
+	    char c = text.charAt(i);
+	    if(c == '\n' || c == '\r' || !Character.isWhitespace(c))
+		break;
+	    i++;
+	}
+	return i;
+    }
+}
@@ -0,0 +1,205 @@
+import java.util.*;
+
+/*
+ * Lets the variables of blocks that are never open at the same time share
+ * storage. Two variables of the same type declared in disjoint scopes --
+ * neither scope inside the other -- get one slot, named for the first of
+ * them, unless one of them is written while the other's value may still
+ * be read. That is found by liveness over the code's flow graph, so a
+ * block's variable that keeps its value round a loop keeps its slot to
+ * itself for the whole loop. Every slot starts at zero, so variables read
+ * before they are written may share one as long as neither is written
+ * while the other is still to read its zero.
+ *
+ * Globals keep their own storage. String constants with the same text are
+ * declared once, wherever they are declared.
+ */
+public class StorageCoalescing implements PassManager.Pass {
+    public String name() {
+	return "coalesce-storage";
+    }
+
+    public List<IRNode> run(List<IRNode> code) {
+	List<Variable> vars = new ArrayList<Variable>();
+	List<Scope> scopes = new ArrayList<Scope>();
+	Map<String, Integer> index = new HashMap<String, Integer>();
+	Map<String, String> rename = new HashMap<String, String>();
+	Map<String, String> strings = new HashMap<String, String>();
+	List<IRNode> instrs = new ArrayList<IRNode>(code.size());
+	for(IRNode node : code) {
+	    if(!node.isDeclaration()) {
+		instrs.add(node);
+		continue;
+	    }
+	    Scope scope = node.getScope();
+	    for(String name : scope.getDeclared()) {
+		Variable var = scope.getVariable(name);
+		String irName = var.makeName();
+		if(var.valueType == ValueType.STRING) {
+		    String first = strings.putIfAbsent(var.value, irName);
+		    if(first != null && !first.equals(irName))
+			rename.put(irName, first);
+		} else if(scope.getEnclosing() != null && !index.containsKey(irName)) {
+		    index.put(irName, vars.size());
+		    vars.add(var);
+		    scopes.add(scope);
+		}
+	    }
+	}
+
+	if(vars.size() > 1) {
+	    BitSet[] conflicts = interference(instrs, index);
+	    Nesting nesting = new Nesting(scopes);
+	    List<Slot> slots = new ArrayList<Slot>();
+	    for(int v = 0; v < vars.size(); v++) {
+		Slot slot = null;
+		for(Slot s : slots) {
+		    if(s.admits(v, vars, scopes, nesting)) {
+			slot = s;
+			break;
+		    }
+		}
+		if(slot == null) {
+		    slots.add(new Slot(v, conflicts[v]));
+		} else {
+		    slot.add(v, conflicts[v]);
+		    rename.put(vars.get(v).makeName(), vars.get(slot.first).makeName());
+		}
+	    }
+	}
+
+	if(rename.isEmpty())
+	    return code;
+	List<IRNode> out = new ArrayList<IRNode>(code.size());
+	for(IRNode node : code) {
+	    if(node.isDeclaration()) {
+		Scope scope = node.getScope();
+		List<String> kept = new ArrayList<String>();
+		for(String name : scope.getDeclared()) {
+		    if(!rename.containsKey(scope.getVariable(name).makeName()))
+			kept.add(name);
+		}
+		if(kept.size() == scope.getDeclared().size())
+		    out.add(node);
+		else if(!kept.isEmpty())
+		    out.add(new IRNode(scope.declaring(kept)));
+	    } else {
+		out.add(rename(node, rename));
+	    }
+	}
+	return out;
+    }
+
+    static IRNode rename(IRNode node, Map<String, String> rename) {
+	String op1 = renamed(node.getOp1(), rename);
+	String op2 = renamed(node.getOp2(), rename);
+	String res = node.getType() == IRNode.Type.LABEL || node.getTarget() != null ?
+	    node.getRes() : renamed(node.getRes(), rename);
+	if(op1 == node.getOp1() && op2 == node.getOp2() && res == node.getRes())
+	    return node;
+	return new IRNode(node.getType(), op1, op2, res);
+    }
+
+    private static String renamed(String operand, Map<String, String> rename) {
+	String to = operand == null ? null : rename.get(operand);
+	return to == null ? operand : to;
+    }
+
+    /* Variables that share a slot, and every variable any of them conflicts with. */
+    private static class Slot {
+	final int first;
+	final List<Integer> members = new ArrayList<Integer>();
+	final BitSet conflicts = new BitSet();
+
+	Slot(int v, BitSet conflicts) {
+	    first = v;
+	    add(v, conflicts);
+	}
+
+	void add(int v, BitSet conflicts) {
+	    members.add(v);
+	    this.conflicts.or(conflicts);
+	}
+
+	boolean admits(int v, List<Variable> vars, List<Scope> scopes, Nesting nesting) {
+	    if(vars.get(v).valueType != vars.get(first).valueType || conflicts.get(v))
+		return false;
+	    for(int m : members) {
+		if(!nesting.disjoint(scopes.get(m), scopes.get(v)))
+		    return false;
+	    }
+	    return true;
+	}
+    }
+
+    /* Numbers scopes in preorder, so that whether one is inside another is
+       a comparison of the ranges their descendants are numbered in. */
+    private static class Nesting {
+	final Map<Scope, int[]> ranges = new HashMap<Scope, int[]>();
+
+	Nesting(List<Scope> scopes) {
+	    Map<Scope, List<Scope>> inner = new LinkedHashMap<Scope, List<Scope>>();
+	    for(Scope scope : scopes) {
+		for(Scope s = scope; s != null && !inner.containsKey(s); s = s.getEnclosing())
+		    inner.put(s, new ArrayList<Scope>());
+	    }
+	    List<Scope> roots = new ArrayList<Scope>();
+	    for(Scope s : inner.keySet()) {
+		if(s.getEnclosing() == null)
+		    roots.add(s);
+		else
+		    inner.get(s.getEnclosing()).add(s);
+	    }
+
+	    int next = 0;
+	    Deque<Scope> stack = new ArrayDeque<Scope>();
+	    for(Scope root : roots) {
+		stack.push(root);
+		while(!stack.isEmpty()) {
+		    Scope s = stack.pop();
+		    int[] range = ranges.get(s);
+		    if(range != null) {
+			range[1] = next;
+			continue;
+		    }
+		    ranges.put(s, new int[] {next++, 0});
+		    stack.push(s);
+		    for(Scope child : inner.get(s))
+			stack.push(child);
+		}
+	    }
+	}
+
+	boolean disjoint(Scope a, Scope b) {
+	    int[] ra = ranges.get(a), rb = ranges.get(b);
+	    return ra[1] <= rb[0] || rb[1] <= ra[0];
+	}
+    }
+
+    /*
+     * For each variable, the variables it may not share a slot with: those
+     * live where it is written.
+     */
+    private static BitSet[] interference(List<IRNode> instrs, Map<String, Integer> index) {
+	Liveness liveness = new Liveness(instrs, index);
+	BitSet[] conflicts = new BitSet[index.size()];
+	for(int v = 0; v < conflicts.length; v++)
+	    conflicts[v] = new BitSet();
+	for(int b = 0; b < liveness.blocks(); b++) {
+	    BitSet live = liveness.liveOut(b);
+	    for(int i = liveness.end(b) - 1; i >= liveness.start(b); i--) {
+		Integer d = index.get(instrs.get(i).getDef());
+		if(d != null) {
+		    for(int v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1)) {
+			if(v != d) {
+			    conflicts[d].set(v);
+			    conflicts[v].set(d);
+			}
+		    }
+		}
+		liveness.step(instrs.get(i), live);
+	    }
+	}
+	return conflicts;
+    }
+}
@@ -0,0 +1,89 @@
+import java.util.*;
+
+/*
+ * Access to a syntax tree whose nodes are N, so that code walking the
+ * tree works the same on AST nodes and on a NodeTable. Nodes with a
+ * value have the offset of their token, and others -1. Resolver annotates nodes
+ * through resolve; until then variable and valueType are null and slot
+ * is -1.
+ */
+public interface SyntaxTree<N> {
+    AST.Type type(N node);
+    String value(N node);
+    Scope scope(N node);
+    int size(N node);
+    N child(N node, int i);
+    int offset(N node);
+
+    Variable variable(N node);
+    int slot(N node);
+    ValueType valueType(N node);
+    void resolve(N node, Variable variable, int slot, ValueType valueType);
+
+    default List<N> children(N node) {
+	List<N> children = new ArrayList<N>(size(node));
+	for(int i = 0; i < size(node); i++)
+	    children.add(child(node, i));
+	return children;
+    }
+
+    /* The nodes in node's subtree, node included, counted without recursion. */
+    default int count(N node) {
+	List<N> open = new ArrayList<N>();
+	open.add(node);
+	int count = 0;
+	while(!open.isEmpty()) {
+	    N n = open.remove(open.size() - 1);
+	    count++;
+	    for(int i = 0; i < size(n); i++)
+		open.add(child(n, i));
+	}
+	return count;
+    }
+
+    /*
+     * Appends node as XML, each node on its own line with its value and
+     * scope. The walk keeps its own stack of open nodes, so any depth
+     * of nesting prints without deep recursion.
+     */
+    default void appendXml(StringBuffer buf, N node) {
+	List<N> open = new ArrayList<N>();
+	int[] next = new int[16];
+	while(node != null) {
+	    buf.append("<");
+	    buf.append(type(node).string);
+	    if(value(node) != null) {
+		buf.append(" ");
+		buf.append(value(node));
+	    }
+	    if(scope(node) != null) {
+		buf.append(" table=\"");
+		buf.append(scope(node));
+		buf.append("\"");
+	    }
+	    if(size(node) > 0) {
+		buf.append(">\n");
+		if(open.size() == next.length)
+		    next = Arrays.copyOf(next, 2 * next.length);
+		next[open.size()] = 0;
+		open.add(node);
+	    } else {
+		buf.append("/>\n");
+	    }
+
+	    node = null;
+	    while(node == null && !open.isEmpty()) {
+		int top = open.size() - 1;
+		N parent = open.get(top);
+		if(next[top] < size(parent)) {
+		    node = child(parent, next[top]++);
+		} else {
+		    buf.append("</");
+		    buf.append(type(parent).string);
+		    buf.append(">\n");
+		    open.remove(top);
+		}
+	    }
+	}
+    }
+}
@@ -0,0 +1,370 @@
+import java.io.*;
+import java.util.*;
+
+public class TinySimulator {
+    private static final int MOVE = 0, ADDI = 1, ADDR = 2, SUBI = 3, SUBR = 4, MULI = 5, MULR = 6,
+	DIVI = 7, DIVR = 8, INCI = 9, DECI = 10, CMPI = 11, CMPR = 12, JMP = 13, JGT = 14, JLT = 15,
+	JGE = 16, JLE = 17, JEQ = 18, JNE = 19, PUSH = 20, POP = 21, JSR = 22, RET = 23, LINK = 24,
+	UNLNK = 25, READI = 26, READR = 27, WRITEI = 28, WRITER = 29, WRITES = 30, HALT = 31;
+
+    private static final Map<String, Integer> OPCODES = new HashMap<String, Integer>();
+    static {
+	String[] names = {"move", "addi", "addr", "subi", "subr", "muli", "mulr", "divi", "divr",
+			  "inci", "deci", "cmpi", "cmpr", "jmp", "jgt", "jlt", "jge", "jle", "jeq",
+			  "jne", "push", "pop", "jsr", "ret", "link", "unlnk", "sys readi",
+			  "sys readr", "sys writei", "sys writer", "sys writes", "sys halt"};
+	for(int i = 0; i < names.length; i++)
+	    OPCODES.put(names[i], i);
+	OPCODES.put("end", HALT);
+    }
+
+    private static final int[] BASE_CYCLES = {1, 1, 1, 1, 1, 3, 3, 8, 8, 1, 1, 1, 1, 1, 1, 1,
+					      1, 1, 1, 1, 2, 2, 2, 2, 2, 2, 10, 10, 10, 10, 10, 1};
+    static final int MEMORY_CYCLES = 2;
+
+    /* The cycles of each instruction, by mnemonic, before its memory operands. */
+    static Map<String, Integer> baseCycles() {
+	Map<String, Integer> cycles = new LinkedHashMap<String, Integer>();
+	for(Map.Entry<String, Integer> op : OPCODES.entrySet())
+	    cycles.put(op.getKey(), BASE_CYCLES[op.getValue()]);
+	return cycles;
+    }
+
+    private static final int NONE = Integer.MAX_VALUE;
+    private static final int STACK_TAG = 0x80000000;
+    private static final int STACK_SIZE = 1 << 16;
+
+    private final int[] ops, a, b, cycles;
+    private final double[] cells;
+    private final String[] strings;
+
+    private final double[] stack = new double[STACK_SIZE];
+    private int sp = STACK_SIZE, fp = STACK_SIZE;
+
+    private long executed, cycleCount;
+    private BufferedReader in;
+    private PrintStream out;
+
+    public static class TrapException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public TrapException(String msg, int pc) {
+	    super(msg+" @ instruction "+pc);
+	}
+    }
+
+    public TinySimulator(String program) {
+	List<String[]> instrs = new ArrayList<String[]>();
+	Map<String, Integer> labels = new HashMap<String, Integer>();
+	Map<String, Integer> memory = new LinkedHashMap<String, Integer>();
+	Map<String, Integer> stringIds = new HashMap<String, Integer>();
+	List<String> stringValues = new ArrayList<String>();
+	List<Double> constants = new ArrayList<Double>();
+	int registers = 0;
+
+	for(String line : program.split("\n")) {
+	    line = line.trim();
+	    if(line.isEmpty() || line.startsWith(";"))
+		continue;
+	    String[] parts = line.split("\\s+", 3);
+	    if(parts[0].equals("var")) {
+		memory.putIfAbsent(parts[1], memory.size());
+	    } else if(parts[0].equals("str")) {
+		int quote = line.indexOf('"');
+		stringIds.put(parts[1], stringValues.size());
+		stringValues.add(unescape(line.substring(quote+1, line.lastIndexOf('"'))));
+	    } else if(parts[0].equals("label")) {
+		labels.put(parts[1], instrs.size());
+	    } else {
+		if(parts[0].equals("sys"))
+		    parts = line.split("\\s+");
+		instrs.add(parts);
+		for(int i = 1; i < parts.length; i++) {
+		    if(isRegisterName(parts[i]))
+			registers = Math.max(registers, Integer.parseInt(parts[i].substring(1))+1);
+		}
+	    }
+	}
+
+	int n = instrs.size();
+	ops = new int[n];
+	a = new int[n];
+	b = new int[n];
+	cycles = new int[n];
+	strings = stringValues.toArray(new String[0]);
+
+	int memBase = registers;
+	int constBase = memBase + memory.size();
+	for(int pc = 0; pc < n; pc++) {
+	    String[] parts = instrs.get(pc);
+	    int operandStart = 1;
+	    String mnemonic = parts[0];
+	    if(mnemonic.equals("sys")) {
+		mnemonic = "sys "+parts[1];
+		operandStart = 2;
+	    }
+	    Integer op = OPCODES.get(mnemonic);
+	    if(op == null)
+		throw new TrapException("Unknown instruction '"+mnemonic+"'", pc);
+	    ops[pc] = op;
+	    cycles[pc] = BASE_CYCLES[op];
+
+	    int[] decoded = {NONE, NONE};
+	    for(int i = operandStart; i < parts.length && i - operandStart < 2; i++) {
+		String operand = parts[i];
+		int slot;
+		if(op >= JMP && op <= JNE || op == JSR) {
+		    Integer target = labels.get(operand);
+		    if(target == null)
+			throw new TrapException("Undefined label '"+operand+"'", pc);
+		    slot = target;
+		} else if(op == WRITES) {
+		    Integer id = stringIds.get(operand);
+		    if(id == null)
+			throw new TrapException("Undefined string '"+operand+"'", pc);
+		    slot = id;
+		} else if(op == LINK) {
+		    slot = Integer.parseInt(operand);
+		} else if(isRegisterName(operand)) {
+		    slot = Integer.parseInt(operand.substring(1));
+		} else if(operand.startsWith("$")) {
+		    slot = STACK_TAG | (Integer.parseInt(operand.substring(1)) & 0xFFFF);
+		    cycles[pc] += MEMORY_CYCLES;
+		} else if(IRNode.isLiteral(operand)) {
+		    slot = constBase + constants.size();
+		    constants.add(Double.parseDouble(operand));
+		} else {
+		    Integer cell = memory.get(operand);
+		    if(cell == null)
+			throw new TrapException("Undeclared variable '"+operand+"'", pc);
+		    slot = memBase + cell;
+		    cycles[pc] += MEMORY_CYCLES;
+		}
+		decoded[i - operandStart] = slot;
+	    }
+	    a[pc] = decoded[0];
+	    b[pc] = decoded[1];
+	}
+
+	cells = new double[constBase + constants.size()];
+	for(int i = 0; i < constants.size(); i++)
+	    cells[constBase + i] = constants.get(i);
+    }
+
+    private static boolean isRegisterName(String operand) {
+	if(operand.length() < 2 || operand.charAt(0) != 'r')
+	    return false;
+	for(int i = 1; i < operand.length(); i++) {
+	    if(!Character.isDigit(operand.charAt(i)))
+		return false;
+	}
+	return true;
+    }
+
+    private double get(int operand) {
+	return operand >= 0 ? cells[operand] : stack[fp + (short) operand];
+    }
+
+    private void set(int operand, double value) {
+	if(operand >= 0)
+	    cells[operand] = value;
+	else
+	    stack[fp + (short) operand] = value;
+    }
+
+    public void run(InputStream input, PrintStream output) {
+	in = new BufferedReader(new InputStreamReader(input));
+	out = output;
+	final int[] ops = this.ops, a = this.a, b = this.b, cycles = this.cycles;
+	final int n = ops.length;
+	long executed = 0, cycleCount = 0;
+	int flag = 0;
+	int pc = 0;
+
+	try {
+	    while(pc < n) {
+		executed++;
+		cycleCount += cycles[pc];
+		switch(ops[pc]) {
+		case MOVE: set(b[pc], get(a[pc])); break;
+		case ADDI: set(b[pc], (int) get(b[pc]) + (int) get(a[pc])); break;
+		case ADDR: set(b[pc], get(b[pc]) + get(a[pc])); break;
+		case SUBI: set(b[pc], (int) get(b[pc]) - (int) get(a[pc])); break;
+		case SUBR: set(b[pc], get(b[pc]) - get(a[pc])); break;
+		case MULI: set(b[pc], (int) get(b[pc]) * (int) get(a[pc])); break;
+		case MULR: set(b[pc], get(b[pc]) * get(a[pc])); break;
+		case DIVI: {
+		    int divisor = (int) get(a[pc]);
+		    if(divisor == 0)
+			throw new TrapException("Integer division by zero", pc);
+		    set(b[pc], (int) get(b[pc]) / divisor);
+		    break;
+		}
+		case DIVR: set(b[pc], get(b[pc]) / get(a[pc])); break;
+		case INCI: set(a[pc], (int) get(a[pc]) + 1); break;
+		case DECI: set(a[pc], (int) get(a[pc]) - 1); break;
+		case CMPI: flag = Integer.compare((int) get(a[pc]), (int) get(b[pc])); break;
+		case CMPR: flag = Double.compare(get(a[pc]), get(b[pc])); break;
+		case JMP: pc = a[pc]; continue;
+		case JGT: if(flag > 0) { pc = a[pc]; continue; } break;
+		case JLT: if(flag < 0) { pc = a[pc]; continue; } break;
+		case JGE: if(flag >= 0) { pc = a[pc]; continue; } break;
+		case JLE: if(flag <= 0) { pc = a[pc]; continue; } break;
+		case JEQ: if(flag == 0) { pc = a[pc]; continue; } break;
+		case JNE: if(flag != 0) { pc = a[pc]; continue; } break;
+		case PUSH: push(a[pc] == NONE ? 0 : get(a[pc]), pc); break;
+		case POP: {
+		    double value = stack[sp++];
+		    if(a[pc] != NONE)
+			set(a[pc], value);
+		    break;
+		}
+		case JSR: push(pc+1, pc); pc = a[pc]; continue;
+		case RET: pc = (int) stack[sp++]; continue;
+		case LINK: push(fp, pc); fp = sp; sp -= a[pc]; break;
+		case UNLNK: sp = fp; fp = (int) stack[sp++]; break;
+		case READI: set(a[pc], readInt(pc)); break;
+		case READR: set(a[pc], readReal(pc)); break;
+		case WRITEI: out.print((int) get(a[pc])); break;
+		case WRITER: out.print(formatReal(get(a[pc]))); break;
+		case WRITES: out.print(strings[a[pc]]); break;
+		case HALT: pc = n; continue;
+		}
+		pc++;
+	    }
+	} finally {
+	    this.executed = executed;
+	    this.cycleCount = cycleCount;
+	    out.flush();
+	}
+    }
+
+    private void push(double value, int pc) {
+	if(sp == 0)
+	    throw new TrapException("Stack overflow", pc);
+	stack[--sp] = value;
+    }
+
+    private StringTokenizer pending = new StringTokenizer("");
+    private String nextInput(int pc) {
+	try {
+	    while(!pending.hasMoreTokens()) {
+		String line = in.readLine();
+		if(line == null)
+		    throw new TrapException("Unexpected end of input", pc);
+		pending = new StringTokenizer(line);
+	    }
+	    return pending.nextToken();
+	} catch(IOException e) {
+	    throw new TrapException(e.getMessage(), pc);
+	}
+    }
+
+    private int readInt(int pc) {
+	String token = nextInput(pc);
+	try {
+	    return Integer.parseInt(token);
+	} catch(NumberFormatException e) {
+	    throw new TrapException("Bad input '"+token+"', expected an integer", pc);
+	}
+    }
+
+    private double readReal(int pc) {
+	String token = nextInput(pc);
+	try {
+	    return Double.parseDouble(token);
+	} catch(NumberFormatException e) {
+	    throw new TrapException("Bad input '"+token+"', expected a real", pc);
+	}
+    }
+
+    public long getExecuted() {
+	return executed;
+    }
+
+    public long getCycles() {
+	return cycleCount;
+    }
+
+    public int getInstructionCount() {
+	return ops.length;
+    }
+
+    public static String formatReal(double value) {
+	if(Double.isNaN(value))
+	    return "nan";
+	if(Double.isInfinite(value))
+	    return value > 0 ? "inf" : "-inf";
+	if(value == 0)
+	    return "0";
+
+	String sci = String.format(Locale.ROOT, "%.5e", value);
+	int e = sci.indexOf('e');
+	int exp = Integer.parseInt(sci.substring(e+1));
+	if(exp < -4 || exp >= 6) {
+	    String mantissa = trimZeros(sci.substring(0, e));
+	    return mantissa+(exp < 0 ? "e-" : "e+")+(Math.abs(exp) < 10 ? "0" : "")+Math.abs(exp);
+	}
+	return trimZeros(String.format(Locale.ROOT, "%."+(5-exp)+"f", value));
+    }
+
+    private static String trimZeros(String num) {
+	if(num.indexOf('.') < 0)
+	    return num;
+	int end = num.length();
+	while(num.charAt(end-1) == '0')
+	    end--;
+	if(num.charAt(end-1) == '.')
+	    end--;
+	return num.substring(0, end);
+    }
+
+    public static String unescape(String str) {
+	if(str.indexOf('\\') < 0)
+	    return str;
+	StringBuffer buf = new StringBuffer();
+	for(int i = 0; i < str.length(); i++) {
+	    char c = str.charAt(i);
+	    if(c == '\\' && i+1 < str.length()) {
+		char next = str.charAt(++i);
+		switch(next) {
+		case 'n': buf.append('\n'); break;
+		case 't': buf.append('\t'); break;
+		default: buf.append(next); break;
+		}
+	    } else {
+		buf.append(c);
+	    }
+	}
+	return buf.toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+	boolean stats = false;
+	String fileName = null;
+	for(String arg : args) {
+	    if(arg.equals("-stats"))
+		stats = true;
+	    else
+		fileName = arg;
+	}
+
+	String program = new String(java.nio.file.Files.readAllBytes(new java.io.File(fileName).toPath()));
+	TinySimulator sim = new TinySimulator(program);
+	long start = System.nanoTime();
+	try {
+	    sim.run(System.in, System.out);
+	} catch(TrapException t) {
+	    System.out.println();
+	    System.out.println("Runtime error: "+t.getMessage());
+	}
+	long nanos = System.nanoTime() - start;
+	if(stats) {
+	    System.err.println();
+	    System.err.println("Instructions executed: "+sim.getExecuted());
+	    System.err.println("Total cycles: "+sim.getCycles());
+	    System.err.printf("Run time: %.3f ms (%.1f M instructions/s)%n",
+			      nanos / 1e6, sim.getExecuted() * 1e3 / Math.max(nanos, 1));
+	}
+    }
+}
@@ -1,21 +1,19 @@
+/* A token's position is its offset in the program's SourceFile, or -1. */
 public class Token {
     public final String value;
     public final Type type;
-    public final int line;
-    public final int col;
+    public final int offset;
     
     public Token(Type type, String value) {
 	this.value = value;
 	this.type = type;
-	this.line = -1;
-	this.col = -1;
+	this.offset = -1;
     }
 
-    public Token(Type type, String value, int line, int col) {
+    public Token(Type type, String value, int offset) {
 	this.value = value;
 	this.type = type;
-	this.line = line;
-	this.col = col-value.length();
+	this.offset = offset;
     }
     
     enum Type {
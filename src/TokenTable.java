@@ -0,0 +1,41 @@
+/*
+ * Tokens stored off-heap in a CompileArena, three ints each: type,
+ * offset and interned value.
+ */
+public class TokenTable implements Tokens {
+    private static final Token.Type[] TYPES = Token.Type.values();
+
+    private final CompileArena arena;
+    private final CompileArena.Ints data;
+
+    public TokenTable(CompileArena arena) {
+	this.arena = arena;
+	this.data = new CompileArena.Ints(arena);
+    }
+
+    public void add(Token.Type type, String value, int offset) {
+	data.add(type.ordinal());
+	data.add(offset);
+	data.add(arena.intern(value));
+    }
+
+    public int size() {
+	return data.size() / 3;
+    }
+
+    public Token.Type type(int i) {
+	return TYPES[data.get(3*i)];
+    }
+
+    public String value(int i) {
+	return arena.string(data.get(3*i + 2));
+    }
+
+    public int offset(int i) {
+	return data.get(3*i + 1);
+    }
+
+    public Token get(int i) {
+	return new Token(type(i), value(i), offset(i));
+    }
+}
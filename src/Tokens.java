@@ -0,0 +1,37 @@
+/*
+ * The parser's view of a token sequence, either a Token[] or an
+ * off-heap TokenTable. get materializes a Token, for declarations and
+ * errors; the parser's matching needs only type and value, and the
+ * tree only an offset.
+ */
+public interface Tokens {
+    int size();
+    Token.Type type(int i);
+    String value(int i);
+    int offset(int i);
+    Token get(int i);
+
+    static Tokens of(Token[] tokens) {
+	return new Tokens() {
+	    public int size() {
+		return tokens.length;
+	    }
+
+	    public Token.Type type(int i) {
+		return tokens[i].type;
+	    }
+
+	    public String value(int i) {
+		return tokens[i].value;
+	    }
+
+	    public int offset(int i) {
+		return tokens[i].offset;
+	    }
+
+	    public Token get(int i) {
+		return tokens[i];
+	    }
+	};
+    }
+}
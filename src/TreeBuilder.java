@@ -0,0 +1,15 @@
+/*
+ * What LittleParser builds its tree with. Nodes are built bottom-up on
+ * a stack: a node with children takes the topmost nodes as its children,
+ * and a mark records the stack height so that a variable number of
+ * children can be counted. A node with a value is built from the token
+ * at offset.
+ */
+public interface TreeBuilder {
+    void buildNode(AST.Type type);
+    void buildNode(AST.Type type, String value, int offset);
+    void buildNode(AST.Type type, int numChildren);
+    void setTopScope(Scope scope);
+    void startMark();
+    int endMark();
+}
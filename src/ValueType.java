@@ -0,0 +1,4 @@
+/* The type of a variable or of an expression's value. */
+enum ValueType {
+    INT, FLOAT, STRING
+}
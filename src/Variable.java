@@ -0,0 +1,57 @@
+class Variable {
+    public final Token nameToken;
+    public final String name;
+    public final String type;
+    public final ValueType valueType;
+    public final String value;
+    public int scopeNum;
+
+    public Variable(Token nameToken, String type) {
+	this.nameToken = nameToken;
+	this.name = nameToken.value;
+	this.type = type;
+	this.valueType = ValueType.valueOf(type);
+	this.value = null;
+    }
+
+    public Variable(Token nameToken, String type, String value) {
+	this.nameToken = nameToken;
+	this.name = nameToken.value;
+	this.type = type;
+	this.valueType = ValueType.valueOf(type);
+	this.value = value;
+    }
+
+    private static final String PREFIX="var";
+    private String irName;
+    /* Only valid once the variable is in a scope, which sets scopeNum. */
+    public String makeName() {
+	if(irName == null) {
+	    StringBuffer buf = new StringBuffer(PREFIX);
+	    buf.append(scopeNum);
+	    buf.append(name);
+	    irName = buf.toString();
+	}
+	return irName;
+    }
+
+    @Override
+    public String toString() {
+	StringBuffer buf = new StringBuffer();
+
+	buf.append("name ");
+	buf.append(name);
+	buf.append("_");
+	buf.append(scopeNum);
+	buf.append(" type ");
+	buf.append(type);
+	if(value != null) {
+	    buf.append(" value ");
+	    buf.append("\"");
+	    buf.append(value);
+	    buf.append("\"");
+	}
+	
+	return buf.toString();
+    }
+}